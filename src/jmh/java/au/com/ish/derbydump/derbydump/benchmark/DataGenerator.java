@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.benchmark;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Fills a Derby database with synthetic tables, repeatably for the same settings.
+ * <p>
+ * The settings are read from properties:
+ * <ul>
+ * <li><code>bench.tables</code> number of tables, named T1, T2 and so on</li>
+ * <li><code>bench.rows</code> rows per table. A comma separated list is used in turn, so tables
+ * can have different sizes.</li>
+ * <li><code>bench.columns</code> comma separated SQL types of the columns following the BIGINT
+ * primary key, out of SMALLINT, INTEGER, BIGINT, DECIMAL, REAL, DOUBLE, CHAR, VARCHAR, DATE, TIME,
+ * TIMESTAMP, BOOLEAN, CLOB and BLOB</li>
+ * <li><code>bench.lobMin</code> and <code>bench.lobMax</code> the size range of large objects. Sizes
+ * are spread evenly on a logarithmic scale, so most are small and a few are large.</li>
+ * <li><code>bench.escapeDensity</code> share of characters in text values which need escaping</li>
+ * <li><code>bench.seed</code> seed of the random values</li>
+ * </ul>
+ */
+public class DataGenerator {
+
+  private static final char[] ESCAPED = {'\'', '\\', '\n', '\r', '\t'};
+  private static final String PLAIN = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.,-";
+  private static final int BATCH_SIZE = 500;
+  private static final int VARCHAR_LENGTH = 200;
+  private static final int CHAR_LENGTH = 20;
+
+  private final int tables;
+  private final long[] rows;
+  private final String[] columns;
+  private final int lobMin;
+  private final int lobMax;
+  private final double escapeDensity;
+  private final long seed;
+
+  public DataGenerator(Properties settings) {
+    tables = Integer.parseInt(settings.getProperty("bench.tables", "4"));
+    String[] rowCounts = settings.getProperty("bench.rows", "25000").split(",");
+    rows = new long[rowCounts.length];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = Long.parseLong(rowCounts[i].trim());
+    }
+    columns = settings.getProperty("bench.columns", "INTEGER,BIGINT,DECIMAL,DOUBLE,VARCHAR,TIMESTAMP,CLOB,BLOB")
+        .toUpperCase(Locale.ROOT).split(",");
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = columns[i].trim();
+      sqlType(columns[i]);
+    }
+    lobMin = Integer.parseInt(settings.getProperty("bench.lobMin", "16"));
+    lobMax = Math.max(lobMin, Integer.parseInt(settings.getProperty("bench.lobMax", "4096")));
+    escapeDensity = Double.parseDouble(settings.getProperty("bench.escapeDensity", "0.02"));
+    seed = Long.parseLong(settings.getProperty("bench.seed", "1"));
+  }
+
+  /**
+   * @return the settings in one line, which is the same exactly when the generated data is the same
+   */
+  public String describe() {
+    StringBuilder rowCounts = new StringBuilder();
+    for (long count : rows) {
+      rowCounts.append(rowCounts.length() == 0 ? "" : ",").append(count);
+    }
+    return "tables=" + tables + " rows=" + rowCounts + " columns=" + String.join(",", columns)
+        + " lobs=" + lobMin + "-" + lobMax + " escapeDensity=" + escapeDensity + " seed=" + seed;
+  }
+
+  /**
+   * @return the total number of rows generated
+   */
+  public long getRowCount() {
+    long total = 0;
+    for (int table = 0; table < tables; table++) {
+      total += rows[table % rows.length];
+    }
+    return total;
+  }
+
+  /**
+   * Create the tables in the default schema of the connection and fill them.
+   */
+  public void generate(Connection connection) throws SQLException {
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    Random random = new Random(seed);
+    try {
+      for (int table = 1; table <= tables; table++) {
+        generateTable(connection, "T" + table, rows[(table - 1) % rows.length], random);
+      }
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  private void generateTable(Connection connection, String name, long rowCount, Random random) throws SQLException {
+    StringBuilder create = new StringBuilder("CREATE TABLE ").append(name).append(" (ID BIGINT NOT NULL PRIMARY KEY");
+    StringBuilder insert = new StringBuilder("INSERT INTO ").append(name).append(" VALUES (?");
+    for (int i = 0; i < columns.length; i++) {
+      create.append(", C").append(i + 1).append(' ').append(columnDefinition(columns[i]));
+      insert.append(", ?");
+    }
+    create.append(')');
+    insert.append(')');
+
+    try (Statement statement = connection.createStatement()) {
+      statement.execute(create.toString());
+    }
+    try (PreparedStatement rows = connection.prepareStatement(insert.toString())) {
+      for (long row = 1; row <= rowCount; row++) {
+        rows.setLong(1, row);
+        for (int i = 0; i < columns.length; i++) {
+          setValue(rows, i + 2, columns[i], random);
+        }
+        rows.addBatch();
+        if (row % BATCH_SIZE == 0) {
+          rows.executeBatch();
+          connection.commit();
+        }
+      }
+      rows.executeBatch();
+      connection.commit();
+    }
+  }
+
+  private static String columnDefinition(String type) {
+    switch (type) {
+      case "DECIMAL":
+        return "DECIMAL(15,4)";
+      case "CHAR":
+        return "CHAR(" + CHAR_LENGTH + ")";
+      case "VARCHAR":
+        return "VARCHAR(" + VARCHAR_LENGTH + ")";
+      default:
+        return type;
+    }
+  }
+
+  private static int sqlType(String type) {
+    try {
+      return Types.class.getField(type).getInt(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("Unknown column type " + type);
+    }
+  }
+
+  private void setValue(PreparedStatement rows, int index, String type, Random random) throws SQLException {
+    // one value in twenty is null, so the null handling is part of the measurement
+    if (random.nextInt(20) == 0) {
+      rows.setNull(index, sqlType(type));
+      return;
+    }
+    switch (type) {
+      case "SMALLINT":
+        rows.setShort(index, (short) random.nextInt());
+        break;
+      case "INTEGER":
+        rows.setInt(index, random.nextInt());
+        break;
+      case "BIGINT":
+        rows.setLong(index, random.nextLong());
+        break;
+      case "DECIMAL":
+        rows.setBigDecimal(index, BigDecimal.valueOf(random.nextLong() % 100000000000000L, 4));
+        break;
+      case "REAL":
+        rows.setFloat(index, random.nextFloat() * 1000);
+        break;
+      case "DOUBLE":
+        rows.setDouble(index, random.nextDouble() * 1000000);
+        break;
+      case "CHAR":
+        rows.setString(index, text(random, random.nextInt(CHAR_LENGTH + 1)));
+        break;
+      case "VARCHAR":
+        rows.setString(index, text(random, random.nextInt(VARCHAR_LENGTH + 1)));
+        break;
+      case "DATE":
+        rows.setDate(index, new Date(time(random)));
+        break;
+      case "TIME":
+        rows.setTime(index, new Time(time(random)));
+        break;
+      case "TIMESTAMP":
+        rows.setTimestamp(index, new Timestamp(time(random)));
+        break;
+      case "BOOLEAN":
+        rows.setBoolean(index, random.nextBoolean());
+        break;
+      case "CLOB":
+        rows.setString(index, text(random, lobSize(random)));
+        break;
+      case "BLOB":
+        byte[] bytes = new byte[lobSize(random)];
+        random.nextBytes(bytes);
+        rows.setBytes(index, bytes);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported column type " + type);
+    }
+  }
+
+  private static long time(Random random) {
+    // somewhere between 2000 and 2030
+    return 946684800000L + (long) (random.nextDouble() * 946684800000L);
+  }
+
+  private int lobSize(Random random) {
+    double logMin = Math.log(lobMin);
+    double logMax = Math.log(lobMax);
+    return (int) Math.round(Math.exp(logMin + random.nextDouble() * (logMax - logMin)));
+  }
+
+  private String text(Random random, int length) {
+    char[] text = new char[length];
+    for (int i = 0; i < length; i++) {
+      text[i] = random.nextDouble() < escapeDensity
+          ? ESCAPED[random.nextInt(ESCAPED.length)]
+          : PLAIN.charAt(random.nextInt(PLAIN.length()));
+    }
+    return new String(text);
+  }
+}
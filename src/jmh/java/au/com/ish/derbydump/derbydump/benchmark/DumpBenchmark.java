@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.benchmark;
+
+import au.com.ish.derbydump.derbydump.main.DerbyDump;
+import au.com.ish.derbydump.derbydump.main.DumpStats;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Runs the whole dump against a generated database and records how it went.
+ * <p>
+ * The database is generated by {@link DataGenerator} into <code>bench.dir</code>, and generated again
+ * only when its settings change. The dump is configured through system properties as usual, with
+ * the database, schema and output path defaulting to the generated database. The results are
+ * written as JSON to <code>bench.results</code>:
+ * <ul>
+ * <li><code>rowsPerSecond</code> and <code>megabytesPerSecond</code> of output</li>
+ * <li><code>peakHeapMegabytes</code>, the highest heap use while dumping</li>
+ * <li><code>gcMillis</code>, the time spent collecting garbage while dumping</li>
+ * </ul>
+ * together with the totals they come from and the data set they were measured on.
+ */
+public class DumpBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    Properties settings = System.getProperties();
+    File directory = new File(settings.getProperty("bench.dir", "build/benchmark/db")).getAbsoluteFile();
+    File results = new File(settings.getProperty("bench.results", "build/reports/benchmark/results.json"));
+
+    DataGenerator generator = new DataGenerator(settings);
+    prepareDatabase(directory, generator);
+
+    setDefault("db.driverClassName", "org.apache.derby.jdbc.EmbeddedDriver");
+    setDefault("db.derbyDbPath", directory.getPath());
+    setDefault("db.schemaName", "app");
+    setDefault("outputPath", new File(directory.getParentFile(), "dump.sql").getPath());
+    File output = new File(System.getProperty("outputPath"));
+
+    long rowsBefore = DumpStats.getStats().getRowsRead();
+    long gcBefore = gcMillis();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    long start = System.nanoTime();
+
+    DerbyDump.main(new String[0]);
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long gc = gcMillis() - gcBefore;
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+    }
+    long rows = DumpStats.getStats().getRowsRead() - rowsBefore;
+    long bytes = output.isDirectory() ? FileUtils.sizeOfDirectory(output) : output.length();
+
+    String json = String.format(Locale.ROOT, "{\n"
+            + "  \"dataSet\": \"%s\",\n"
+            + "  \"rows\": %d,\n"
+            + "  \"bytes\": %d,\n"
+            + "  \"seconds\": %.3f,\n"
+            + "  \"rowsPerSecond\": %.1f,\n"
+            + "  \"megabytesPerSecond\": %.3f,\n"
+            + "  \"peakHeapMegabytes\": %.1f,\n"
+            + "  \"gcMillis\": %d\n"
+            + "}\n",
+        generator.describe(), rows, bytes, seconds, rows / seconds, bytes / 1048576.0 / seconds, peakHeap / 1048576.0, gc);
+    FileUtils.writeStringToFile(results, json, StandardCharsets.UTF_8);
+    System.out.print(json);
+
+    if (rows != generator.getRowCount()) {
+      System.err.println("Dumped " + rows + " rows, but the database holds " + generator.getRowCount());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Generate the database, unless it was generated with the same settings before.
+   */
+  private static void prepareDatabase(File directory, DataGenerator generator) throws IOException, SQLException {
+    File description = new File(directory.getPath() + ".dataset");
+    if (directory.isDirectory() && description.isFile()
+        && FileUtils.readFileToString(description, StandardCharsets.UTF_8).equals(generator.describe())) {
+      return;
+    }
+
+    FileUtils.deleteDirectory(directory);
+    FileUtils.deleteQuietly(description);
+    directory.getParentFile().mkdirs();
+    System.out.println("Generating " + generator.describe() + " in " + directory);
+    try (Connection connection = DriverManager.getConnection("jdbc:derby:" + directory.getPath() + ";create=true")) {
+      generator.generate(connection);
+    }
+    // start the dump with a freshly booted database rather than the pages cached while generating
+    try {
+      DriverManager.getConnection("jdbc:derby:" + directory.getPath() + ";shutdown=true");
+    } catch (SQLException e) {
+      // a successful shutdown is reported as an exception
+    }
+    FileUtils.writeStringToFile(description, generator.describe(), StandardCharsets.UTF_8);
+  }
+
+  private static void setDefault(String name, String value) {
+    if (System.getProperty(name) == null) {
+      System.setProperty(name, value);
+    }
+  }
+
+  private static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, collector.getCollectionTime());
+    }
+    return total;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handing chunks to the writer thread, which drains them into a writer discarding everything.
+ * The producer blocks once the writer falls behind, so this measures the combined throughput
+ * of adding and draining. The chunks are already encoded, so only their size varies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputThreadBenchmark {
+
+  private static final int CHUNKS_PER_SECTION = 16;
+
+  @Param({"1024", "65536"})
+  int chunkSize;
+
+  private String chunk;
+  private OutputThread output;
+  private Thread writer;
+
+  @Setup
+  public void setUp() {
+    char[] text = new char[chunkSize];
+    Arrays.fill(text, 'x');
+    chunk = new String(text);
+    output = new OutputThread(new NullWriter());
+    writer = new Thread(output, "File_Writer");
+    writer.start();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    writer.interrupt();
+    writer.join();
+  }
+
+  @Benchmark
+  public void add() {
+    output.add(chunk);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CHUNKS_PER_SECTION)
+  public void addToSection() {
+    OutputThread.Section section = output.openSection();
+    for (int i = 0; i < CHUNKS_PER_SECTION; i++) {
+      section.add(chunk);
+    }
+    section.close();
+  }
+}
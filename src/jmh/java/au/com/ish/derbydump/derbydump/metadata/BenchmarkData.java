@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.metadata;
+
+import java.util.Random;
+
+/**
+ * Repeatable values for the benchmarks.
+ */
+final class BenchmarkData {
+
+  /**
+   * Characters which {@link Column#escapeQuotes(String)} has to replace.
+   */
+  private static final char[] ESCAPED = {'\'', '\\', '\n', '\r', '\t', 0x00};
+  private static final String PLAIN = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.,-";
+
+  private BenchmarkData() {
+  }
+
+  /**
+   * @param size Length of the text
+   * @param escapeDensity Share of characters which need escaping, between 0 and 1
+   * @return text of plain characters mixed with characters which need escaping
+   */
+  static String text(int size, double escapeDensity) {
+    Random random = new Random(size);
+    char[] text = new char[size];
+    for (int i = 0; i < size; i++) {
+      text[i] = random.nextDouble() < escapeDensity
+          ? ESCAPED[random.nextInt(ESCAPED.length)]
+          : PLAIN.charAt(random.nextInt(PLAIN.length()));
+    }
+    return new String(text);
+  }
+
+  /**
+   * @param size Number of bytes
+   * @return random bytes
+   */
+  static byte[] bytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.metadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a single value of each JDBC type, both through {@link Column#toString(ResultSet)} and
+ * through the encoder the dump uses for every row. Size and escape density only matter to the
+ * character and large object types.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnToStringBenchmark {
+
+  @Param({"SMALLINT", "INTEGER", "BIGINT", "DECIMAL", "REAL", "DOUBLE", "CHAR", "VARCHAR",
+      "DATE", "TIME", "TIMESTAMP", "BOOLEAN", "CLOB", "BLOB"})
+  String type;
+
+  @Param({"16", "4096"})
+  int size;
+
+  @Param({"0", "0.1"})
+  double escapeDensity;
+
+  private Column column;
+  private ResultSet row;
+  private ColumnEncoder encoder;
+  private final StringBuilder output = new StringBuilder();
+
+  @Setup
+  public void setUp() throws Exception {
+    column = new Column();
+    column.setColumnName("VALUE");
+    column.setColumnDataType(Types.class.getField(type).getInt(null));
+    row = InMemoryResultSet.of(value());
+    encoder = ColumnEncoder.forColumn(column, 1);
+  }
+
+  private Object value() {
+    switch (column.getColumnDataType()) {
+      case Types.SMALLINT:
+        return 1234;
+      case Types.INTEGER:
+        return 123456789;
+      case Types.BIGINT:
+        return 1234567890123456789L;
+      case Types.DECIMAL:
+        return new BigDecimal("12345678.9012");
+      case Types.REAL:
+        return 1234.5f;
+      case Types.DOUBLE:
+        return 12345.678901;
+      case Types.DATE:
+        return Date.valueOf("2013-05-17");
+      case Types.TIME:
+        return Time.valueOf("13:45:10");
+      case Types.TIMESTAMP:
+        return Timestamp.valueOf("2013-05-17 13:45:10.123");
+      case Types.BOOLEAN:
+        return Boolean.TRUE;
+      case Types.BLOB:
+        return BenchmarkData.bytes(size);
+      default:
+        return BenchmarkData.text(size, escapeDensity);
+    }
+  }
+
+  @Benchmark
+  public String columnToString() throws SQLException {
+    return column.toString(row);
+  }
+
+  @Benchmark
+  public int encode() throws SQLException {
+    output.setLength(0);
+    encoder.encode(row, output);
+    return output.length();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.metadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Clob;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Escaping of string and clob values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+
+  @Param({"16", "1024", "65536"})
+  int size;
+
+  @Param({"0", "0.01", "0.2"})
+  double escapeDensity;
+
+  private String text;
+  private Clob clob;
+  private final StringBuilder output = new StringBuilder();
+
+  @Setup
+  public void setUp() {
+    text = BenchmarkData.text(size, escapeDensity);
+    clob = InMemoryResultSet.clob(text);
+  }
+
+  @Benchmark
+  public String escapeQuotes() {
+    return Column.escapeQuotes(text);
+  }
+
+  @Benchmark
+  public int escapeQuotesInto() {
+    output.setLength(0);
+    Column.escapeQuotes(text, output);
+    return output.length();
+  }
+
+  @Benchmark
+  public String processClobData() {
+    return Column.processClobData(clob);
+  }
+}
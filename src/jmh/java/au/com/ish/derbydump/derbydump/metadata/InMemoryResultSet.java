@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package au.com.ish.derbydump.derbydump.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * A result set holding a single row with a single value, so that encoding can be measured
+ * without the cost of a database. Only the accessors the encoders call are implemented, as plain
+ * methods over values converted up front, so that the measurement is not swamped by the stub itself.
+ */
+final class InMemoryResultSet extends AbstractResultSet {
+
+  private final Object value;
+  private final boolean isNull;
+  private final String text;
+  private final long longValue;
+  private final double doubleValue;
+  private final boolean booleanValue;
+  private boolean wasNull;
+
+  private InMemoryResultSet(Object value) {
+    this.value = value;
+    isNull = value == null;
+    text = isNull ? null : value.toString();
+    longValue = value instanceof Number ? ((Number) value).longValue() : 0L;
+    doubleValue = value instanceof Number ? ((Number) value).doubleValue() : 0d;
+    booleanValue = value instanceof Boolean && (Boolean) value;
+  }
+
+  /**
+   * @param value The value of the only column, which may be null. It is returned by whichever getter
+   *              the encoder calls, as a blob if it is a byte array and as a clob if it is text.
+   * @return a result set positioned on its only row
+   */
+  static ResultSet of(Object value) {
+    return new InMemoryResultSet(value);
+  }
+
+  /**
+   * The encoders free every blob they read, so each read gets a new one over the same bytes.
+   */
+  static Blob blob(byte[] data) {
+    return new InMemoryBlob(data);
+  }
+
+  static Clob clob(String data) {
+    return new InMemoryClob(data);
+  }
+
+  @Override
+  public int findColumn(String columnLabel) {
+    return 1;
+  }
+
+  @Override
+  public boolean wasNull() {
+    return wasNull;
+  }
+
+  @Override
+  public Blob getBlob(int columnIndex) {
+    wasNull = isNull;
+    return isNull ? null : new InMemoryBlob((byte[]) value);
+  }
+
+  @Override
+  public Clob getClob(int columnIndex) {
+    wasNull = isNull;
+    return isNull ? null : new InMemoryClob(text);
+  }
+
+  @Override
+  public byte[] getBytes(int columnIndex) {
+    wasNull = isNull;
+    return (byte[]) value;
+  }
+
+  @Override
+  public String getString(int columnIndex) {
+    wasNull = isNull;
+    return text;
+  }
+
+  @Override
+  public int getInt(int columnIndex) {
+    wasNull = isNull;
+    return (int) longValue;
+  }
+
+  @Override
+  public long getLong(int columnIndex) {
+    wasNull = isNull;
+    return longValue;
+  }
+
+  @Override
+  public float getFloat(int columnIndex) {
+    wasNull = isNull;
+    return (float) doubleValue;
+  }
+
+  @Override
+  public double getDouble(int columnIndex) {
+    wasNull = isNull;
+    return doubleValue;
+  }
+
+  @Override
+  public boolean getBoolean(int columnIndex) {
+    wasNull = isNull;
+    return booleanValue;
+  }
+
+  @Override
+  public BigDecimal getBigDecimal(int columnIndex) {
+    wasNull = isNull;
+    return (BigDecimal) value;
+  }
+
+  @Override
+  public Date getDate(int columnIndex) {
+    wasNull = isNull;
+    return (Date) value;
+  }
+
+  @Override
+  public Time getTime(int columnIndex) {
+    wasNull = isNull;
+    return (Time) value;
+  }
+
+  @Override
+  public Timestamp getTimestamp(int columnIndex) {
+    wasNull = isNull;
+    return (Timestamp) value;
+  }
+
+  @Override
+  public Object getObject(int columnIndex) {
+    wasNull = isNull;
+    return value;
+  }
+
+  private static final class InMemoryBlob implements Blob {
+
+    private final byte[] data;
+
+    private InMemoryBlob(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public long length() {
+      return data.length;
+    }
+
+    @Override
+    public InputStream getBinaryStream() {
+      return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public void free() {
+    }
+
+    @Override
+    public byte[] getBytes(long pos, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public InputStream getBinaryStream(long pos, long length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long position(byte[] pattern, long start) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long position(Blob pattern, long start) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int setBytes(long pos, byte[] bytes) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int setBytes(long pos, byte[] bytes, int offset, int len) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public OutputStream setBinaryStream(long pos) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void truncate(long len) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final class InMemoryClob implements Clob {
+
+    private final String data;
+
+    private InMemoryClob(String data) {
+      this.data = data;
+    }
+
+    @Override
+    public long length() {
+      return data.length();
+    }
+
+    @Override
+    public Reader getCharacterStream() {
+      return new StringReader(data);
+    }
+
+    @Override
+    public void free() {
+    }
+
+    @Override
+    public String getSubString(long pos, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public InputStream getAsciiStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Reader getCharacterStream(long pos, long length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long position(String searchstr, long start) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long position(Clob searchstr, long start) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int setString(long pos, String str) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int setString(long pos, String str, int offset, int len) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public OutputStream setAsciiStream(long pos) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Writer setCharacterStream(long pos) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void truncate(long len) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
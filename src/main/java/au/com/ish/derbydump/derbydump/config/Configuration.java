@@ -16,7 +16,11 @@
 
 package au.com.ish.derbydump.derbydump.config;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.Properties;
 
 /**
@@ -24,28 +28,48 @@ import java.util.Properties;
  */
 public class Configuration {
 
+  private static final Logger LOGGER = LogManager.getLogger(Configuration.class);
+
   private static Configuration configuration;
   private final Properties prop = new Properties();
   private final Properties tableRewriteProp = new Properties();
+  private final Properties watermarkProp = new Properties();
 
   private Configuration() {
-    try {
-      try (FileInputStream file = new FileInputStream("derbydump.properties")) {
-        prop.load(file);
+    try (FileInputStream file = new FileInputStream("derbydump.properties")) {
+      prop.load(file);
+    } catch (IOException ignored) {
+    }
+    // check if system properties are provided and override it:
+    setPassedInProperties();
+
+    // each file is loaded on its own, so that a missing one does not keep the others from loading
+    if (getTableRewritePath() != null && getTableRewritePath().length() > 0) {
+      try {
+        loadCaseInsensitive(getTableRewritePath(), tableRewriteProp);
+      } catch (IOException e) {
+        LOGGER.warn("Could not read the table rewrites from " + getTableRewritePath() + ": " + e.getMessage());
       }
-      // check if system properties are provided and override it:
-      setPassedInProperties();
-
-      if (getTableRewritePath() != null && getTableRewritePath().length() > 0) {
-        try (FileInputStream file = new FileInputStream(getTableRewritePath())) {
-          tableRewriteProp.load(file);
-        }
-        for (String entry : tableRewriteProp.stringPropertyNames()) {
-          // put a copy of every entry into the properties as lowercase for case-insensitive matching later
-          tableRewriteProp.setProperty(entry.toLowerCase(), tableRewriteProp.getProperty(entry));
-        }
+    }
+
+    if (getWatermarkPath() != null && getWatermarkPath().length() > 0) {
+      try {
+        loadCaseInsensitive(getWatermarkPath(), watermarkProp);
+      } catch (IOException e) {
+        // without its watermarks every table would quietly be dumped in full
+        LOGGER.error("Could not read the watermark columns from " + getWatermarkPath() + ": " + e.getMessage());
+        throw new RuntimeException(e);
       }
-    } catch (Exception ignored) {
+    }
+  }
+
+  private static void loadCaseInsensitive(String path, Properties properties) throws IOException {
+    try (FileInputStream file = new FileInputStream(path)) {
+      properties.load(file);
+    }
+    for (String entry : properties.stringPropertyNames()) {
+      // put a copy of every entry into the properties as lowercase for case-insensitive matching later
+      properties.setProperty(entry.toLowerCase(), properties.getProperty(entry));
     }
   }
 
@@ -57,6 +81,30 @@ public class Configuration {
     setPassedInProperty("db.password");
     setPassedInProperty("outputPath");
     setPassedInProperty("output.truncateTables");
+    setPassedInProperty("output.perTable");
+    setPassedInProperty("output.format");
+    setPassedInProperty("output.columnar.rowGroupSize");
+    setPassedInProperty("output.copy.url");
+    setPassedInProperty("output.compression");
+    setPassedInProperty("output.compression.level");
+    setPassedInProperty("output.compression.blockSize");
+    setPassedInProperty("output.compression.threads");
+    setPassedInProperty("watermarkPath");
+    setPassedInProperty("watermarkStatePath");
+    setPassedInProperty("metadataCachePath");
+    setPassedInProperty("dump.threads");
+    setPassedInProperty("dump.partitions");
+    setPassedInProperty("dump.chunk.characters");
+    setPassedInProperty("dump.statement.rows");
+    setPassedInProperty("dump.statement.size");
+    setPassedInProperty("dump.checkpoint.interval");
+    setPassedInProperty("restore.threads");
+    setPassedInProperty("restore.commitRows");
+    setPassedInProperty("dump.waitForParents");
+    setPassedInProperty("dump.largestFirst");
+    setPassedInProperty("dump.countRows");
+    setPassedInProperty("progress.interval");
+    setPassedInProperty("progress.path");
   }
 
   private void setPassedInProperty(String propertyName) {
@@ -97,6 +145,22 @@ public class Configuration {
     return tableName;
   }
 
+  public void setWatermarkProperty(String key, String value) {
+    watermarkProp.setProperty(key.toLowerCase(), value);
+  }
+
+  /**
+   * @param tableName the name of the table in the database
+   * @return the name of the column whose value grows whenever a row changes, or null to dump the table in full
+   */
+  public String getWatermarkColumn(String tableName) {
+    String column = watermarkProp.getProperty(tableName.toLowerCase());
+    if (column != null && column.trim().length() > 0) {
+      return column.trim();
+    }
+    return null;
+  }
+
   public String getUserName() {
     return prop.getProperty("db.userName");
   }
@@ -148,6 +212,196 @@ public class Configuration {
     prop.setProperty("dump.buffer.size", "" + bufferMaxSize);
   }
 
+  /**
+   * @return the number of characters in the blocks of rows which a table reader hands to the writer.
+   * Defaults to 65536.
+   */
+  public int getChunkCharacters() {
+    if (prop.getProperty("dump.chunk.characters") == null) {
+      return 65536;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("dump.chunk.characters").trim()));
+  }
+
+  public void setChunkCharacters(int characters) {
+    prop.setProperty("dump.chunk.characters", "" + characters);
+  }
+
+  /**
+   * @return the most rows written into one INSERT statement. Defaults to 100.
+   */
+  public int getStatementRows() {
+    if (prop.getProperty("dump.statement.rows") == null) {
+      return 100;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("dump.statement.rows").trim()));
+  }
+
+  public void setStatementRows(int rows) {
+    prop.setProperty("dump.statement.rows", "" + rows);
+  }
+
+  /**
+   * @return the size in kB, once encoded in UTF-8, at which a new INSERT statement is started. A
+   * single row which is larger gets a statement of its own. Defaults to 1024.
+   */
+  public int getStatementSize() {
+    if (prop.getProperty("dump.statement.size") == null) {
+      return 1024;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("dump.statement.size").trim()));
+  }
+
+  public void setStatementSize(int size) {
+    prop.setProperty("dump.statement.size", "" + size);
+  }
+
+  /**
+   * @return the size in kB of the output between two checkpoints within a table, or 0 if no checkpoints
+   * are kept. Defaults to 0.
+   */
+  public int getCheckpointInterval() {
+    if (prop.getProperty("dump.checkpoint.interval") == null) {
+      return 0;
+    }
+    return Math.max(0, Integer.parseInt(prop.getProperty("dump.checkpoint.interval").trim()));
+  }
+
+  public void setCheckpointInterval(int interval) {
+    prop.setProperty("dump.checkpoint.interval", "" + interval);
+  }
+
+  /**
+   * @return the number of tables which are read concurrently, each on its own connection. Defaults to 1.
+   */
+  public int getDumpThreads() {
+    if (prop.getProperty("dump.threads") == null) {
+      return 1;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("dump.threads").trim()));
+  }
+
+  public void setDumpThreads(int threads) {
+    prop.setProperty("dump.threads", "" + threads);
+  }
+
+  /**
+   * @return the number of key ranges a table with a whole number key is split into, so the ranges
+   * can be read in parallel. Defaults to 1, which reads every table in a single scan.
+   */
+  public int getPartitions() {
+    if (prop.getProperty("dump.partitions") == null) {
+      return 1;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("dump.partitions").trim()));
+  }
+
+  public void setPartitions(int partitions) {
+    prop.setProperty("dump.partitions", "" + partitions);
+  }
+
+  /**
+   * @return the number of tables DerbyRestore loads at the same time, each on its own connection.
+   * Defaults to 1.
+   */
+  public int getRestoreThreads() {
+    if (prop.getProperty("restore.threads") == null) {
+      return 1;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("restore.threads").trim()));
+  }
+
+  public void setRestoreThreads(int threads) {
+    prop.setProperty("restore.threads", "" + threads);
+  }
+
+  /**
+   * @return the number of rows DerbyRestore and the copy format insert into a table between two commits,
+   * or 0 to commit each table once it is complete. Defaults to 10000.
+   */
+  public int getRestoreCommitRows() {
+    if (prop.getProperty("restore.commitRows") == null) {
+      return 10000;
+    }
+    return Math.max(0, Integer.parseInt(prop.getProperty("restore.commitRows").trim()));
+  }
+
+  public void setRestoreCommitRows(int rows) {
+    prop.setProperty("restore.commitRows", "" + rows);
+  }
+
+  /**
+   * @return true if, when tables are loaded in parallel, a table waits until the tables its foreign keys
+   * refer to are loaded. Defaults to true.
+   */
+  public boolean getWaitForParents() {
+    if (prop.getProperty("dump.waitForParents") == null) {
+      return true;
+    }
+    return Boolean.valueOf(prop.getProperty("dump.waitForParents").trim());
+  }
+
+  public void setWaitForParents(boolean wait) {
+    prop.setProperty("dump.waitForParents", String.valueOf(wait));
+  }
+
+  /**
+   * @return true to start on the largest tables first wherever the tables may be read in any order,
+   * with their size estimated from the space they take up. Defaults to true.
+   */
+  public boolean getLargestFirst() {
+    if (prop.getProperty("dump.largestFirst") == null) {
+      return true;
+    }
+    return Boolean.valueOf(prop.getProperty("dump.largestFirst").trim());
+  }
+
+  public void setLargestFirst(boolean largestFirst) {
+    prop.setProperty("dump.largestFirst", String.valueOf(largestFirst));
+  }
+
+  /**
+   * @return true to count the rows of the tables which have no statistics to estimate them from.
+   * Defaults to false, as counting reads the whole table.
+   */
+  public boolean getCountRows() {
+    if (prop.getProperty("dump.countRows") == null) {
+      return false;
+    }
+    return Boolean.valueOf(prop.getProperty("dump.countRows").trim());
+  }
+
+  public void setCountRows(boolean countRows) {
+    prop.setProperty("dump.countRows", String.valueOf(countRows));
+  }
+
+  /**
+   * @return the seconds between two reports of the progress of a dump, or 0 to only report once it ends.
+   * Defaults to 60.
+   */
+  public int getProgressInterval() {
+    if (prop.getProperty("progress.interval") == null) {
+      return 60;
+    }
+    return Math.max(0, Integer.parseInt(prop.getProperty("progress.interval").trim()));
+  }
+
+  public void setProgressInterval(int seconds) {
+    prop.setProperty("progress.interval", "" + seconds);
+  }
+
+  /**
+   * @return the file the progress of a dump is written to as JSON at every report, or null for none
+   */
+  public String getProgressPath() {
+    String path = prop.getProperty("progress.path");
+    return path == null || path.trim().length() == 0 ? null : path.trim();
+  }
+
+  public void setProgressPath(String filePath) {
+    prop.setProperty("progress.path", filePath);
+  }
+
   public String getOutputFilePath() {
     return prop.getProperty("outputPath");
   }
@@ -164,6 +418,42 @@ public class Configuration {
     prop.setProperty("tableRewritePath", filePath);
   }
 
+  public String getWatermarkPath() {
+    return prop.getProperty("watermarkPath");
+  }
+
+  public void setWatermarkPath(String filePath) {
+    prop.setProperty("watermarkPath", filePath);
+  }
+
+  /**
+   * @return the file holding the high-water mark of every table from the previous dump. Defaults to
+   * the watermark file name with .state appended.
+   */
+  public String getWatermarkStatePath() {
+    if (prop.getProperty("watermarkStatePath") == null) {
+      return getWatermarkPath() == null ? null : getWatermarkPath() + ".state";
+    }
+    return prop.getProperty("watermarkStatePath");
+  }
+
+  public void setWatermarkStatePath(String filePath) {
+    prop.setProperty("watermarkStatePath", filePath);
+  }
+
+  /**
+   * @return the file in which the tables, columns and keys of the schema are kept between runs, or null
+   * if they are read from the database every time
+   */
+  public String getMetadataCachePath() {
+    String path = prop.getProperty("metadataCachePath");
+    return path == null || path.trim().length() == 0 ? null : path.trim();
+  }
+
+  public void setMetadataCachePath(String filePath) {
+    prop.setProperty("metadataCachePath", filePath);
+  }
+
   public void setTruncateTables(boolean truncate) {
     prop.setProperty("output.truncateTables", String.valueOf(truncate));
   }
@@ -174,4 +464,115 @@ public class Configuration {
     }
     return Boolean.valueOf(prop.getProperty("output.truncateTables").trim());
   }
+
+  /**
+   * @return true to write every table into its own file, in which case the output path is a directory.
+   * Defaults to false.
+   */
+  public boolean getPerTableOutput() {
+    if (prop.getProperty("output.perTable") == null) {
+      return false;
+    }
+    return Boolean.valueOf(prop.getProperty("output.perTable").trim());
+  }
+
+  public void setPerTableOutput(boolean perTable) {
+    prop.setProperty("output.perTable", String.valueOf(perTable));
+  }
+
+  /**
+   * @return "columnar" to write the compact binary format, "export" to use Derby's export procedures,
+   * "copy" to copy the tables into another database, or "sql". Defaults to sql.
+   */
+  public String getOutputFormat() {
+    if (prop.getProperty("output.format") == null) {
+      return "sql";
+    }
+    return prop.getProperty("output.format").trim().toLowerCase();
+  }
+
+  public void setOutputFormat(String format) {
+    prop.setProperty("output.format", format);
+  }
+
+  /**
+   * @return the JDBC url of the database the copy format writes into
+   */
+  public String getCopyUrl() {
+    return prop.getProperty("output.copy.url");
+  }
+
+  public void setCopyUrl(String url) {
+    prop.setProperty("output.copy.url", url);
+  }
+
+  /**
+   * @return the most rows in one row group of the columnar format. Defaults to 10000.
+   */
+  public int getRowGroupSize() {
+    if (prop.getProperty("output.columnar.rowGroupSize") == null) {
+      return 10000;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("output.columnar.rowGroupSize").trim()));
+  }
+
+  public void setRowGroupSize(int rows) {
+    prop.setProperty("output.columnar.rowGroupSize", "" + rows);
+  }
+
+  /**
+   * @return "gzip" to compress the output while writing it, or "none". Defaults to none.
+   */
+  public String getCompression() {
+    if (prop.getProperty("output.compression") == null) {
+      return "none";
+    }
+    return prop.getProperty("output.compression").trim().toLowerCase();
+  }
+
+  public void setCompression(String compression) {
+    prop.setProperty("output.compression", compression);
+  }
+
+  /**
+   * @return the deflate level from 0 (none) to 9 (best). Defaults to 6.
+   */
+  public int getCompressionLevel() {
+    if (prop.getProperty("output.compression.level") == null) {
+      return 6;
+    }
+    return Integer.parseInt(prop.getProperty("output.compression.level").trim());
+  }
+
+  public void setCompressionLevel(int level) {
+    prop.setProperty("output.compression.level", "" + level);
+  }
+
+  /**
+   * @return the size in kB of the blocks which are compressed independently. Defaults to 1024.
+   */
+  public int getCompressionBlockSize() {
+    if (prop.getProperty("output.compression.blockSize") == null) {
+      return 1024;
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("output.compression.blockSize").trim()));
+  }
+
+  public void setCompressionBlockSize(int blockSize) {
+    prop.setProperty("output.compression.blockSize", "" + blockSize);
+  }
+
+  /**
+   * @return the number of blocks compressed at the same time. Defaults to the number of processors.
+   */
+  public int getCompressionThreads() {
+    if (prop.getProperty("output.compression.threads") == null) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    return Math.max(1, Integer.parseInt(prop.getProperty("output.compression.threads").trim()));
+  }
+
+  public void setCompressionThreads(int threads) {
+    prop.setProperty("output.compression.threads", "" + threads);
+  }
 }
@@ -19,12 +19,18 @@ package au.com.ish.derbydump.derbydump.config;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 
 public class DBConnectionManager {
 
 	private Connection innitialConnection;
 	private String url;
+	/**
+	 * Connections which have been handed back and can be reused by the next caller.
+	 */
+	private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
 
 	public DBConnectionManager(String url) throws ClassNotFoundException, IllegalAccessException, InstantiationException, SQLException {
 		Class.forName(Configuration.getConfiguration().getDriverClassName()).newInstance();
@@ -40,4 +46,46 @@ public class DBConnectionManager {
 		return DriverManager.getConnection(url);
 	}
 
+	/**
+	 * Borrow a connection from the pool, opening a new one if none is idle. The pool grows to
+	 * as many connections as there are concurrent borrowers.
+	 *
+	 * @return a connection which must be given back with {@link #releaseConnection(Connection)}
+	 */
+	public Connection acquireConnection() throws SQLException {
+		Connection connection = idleConnections.poll();
+		if (connection == null || connection.isClosed()) {
+			connection = createNewConnection();
+		}
+		return connection;
+	}
+
+	/**
+	 * @param connection a connection obtained from {@link #acquireConnection()}
+	 */
+	public void releaseConnection(Connection connection) {
+		if (connection != null) {
+			idleConnections.offer(connection);
+		}
+	}
+
+	/**
+	 * Close the initial connection and every pooled connection.
+	 */
+	public void close() throws SQLException {
+		SQLException failure = null;
+		Connection connection;
+		while ((connection = idleConnections.poll()) != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				failure = e;
+			}
+		}
+		innitialConnection.close();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
 }
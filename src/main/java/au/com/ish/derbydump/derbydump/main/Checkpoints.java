@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A journal of how far the dump file has been written, which lets an interrupted dump continue
+ * where it stopped instead of starting over.
+ * <p>
+ * The journal sits next to the output and gets one line for every consistent point of the output:
+ * <ul>
+ * <li><code>TABLE &lt;table&gt; &lt;offset&gt;</code> once all rows of a table have been written</li>
+ * <li><code>KEY &lt;table&gt; &lt;key&gt; &lt;offset&gt;</code> once a table read in key order has been
+ * written up to and including the given key</li>
+ * <li><code>END &lt;offset&gt;</code> once the dump is complete</li>
+ * </ul>
+ * The offset is the length of the output file at that point. The lines are written by the writer
+ * thread through {@link OutputThread#addMarker(OutputThread.Marker)}, after the output before them has been
+ * flushed and synced to disk, so they always describe data which is really in the file.
+ * <p>
+ * A resumed dump cuts the output back to the offset of the last line, skips the finished tables
+ * and reads the interrupted one from the key after the last one written.
+ */
+public class Checkpoints {
+
+	private static final Logger LOGGER = LogManager.getLogger(Checkpoints.class);
+
+	private static final String TABLE = "TABLE";
+	private static final String KEY = "KEY";
+	private static final String END = "END";
+
+	private final long interval;
+	private final Set<String> finishedTables = new HashSet<String>();
+	private String resumeTable;
+	private long resumeKey;
+	private boolean resumed;
+	private boolean complete;
+
+	private FileOutputStream file;
+	private CountingOutputStream counter;
+	private long startOffset;
+	private FileOutputStream journal;
+
+	/**
+	 * Checkpoints which are never recorded.
+	 */
+	public Checkpoints() {
+		this.interval = 0;
+	}
+
+	private Checkpoints(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Start a new dump, or continue an interrupted one.
+	 *
+	 * @param output The dump file
+	 * @param journalFile The journal of the dump file
+	 * @param interval Characters written between two checkpoints within a table
+	 * @param resume Whether to continue from the journal. Without a journal the dump starts over.
+	 */
+	public static Checkpoints open(File output, File journalFile, long interval, boolean resume) throws IOException {
+		Checkpoints checkpoints = new Checkpoints(interval);
+		if (resume && journalFile.exists()) {
+			checkpoints.readJournal(journalFile);
+		} else if (resume) {
+			LOGGER.warn("There is no journal at " + journalFile + ", starting the dump over.");
+		}
+
+		if (checkpoints.resumed) {
+			if (output.length() < checkpoints.startOffset) {
+				throw new IOException("The dump file " + output + " is shorter than its journal says");
+			}
+			// anything after the last checkpoint might be incomplete
+			try (RandomAccessFile truncate = new RandomAccessFile(output, "rw")) {
+				truncate.setLength(checkpoints.startOffset);
+			}
+		} else {
+			output.delete();
+			journalFile.delete();
+		}
+
+		checkpoints.file = new FileOutputStream(output, true);
+		checkpoints.counter = new CountingOutputStream(checkpoints.file);
+		checkpoints.journal = new FileOutputStream(journalFile, true);
+		return checkpoints;
+	}
+
+	private void readJournal(File journalFile) throws IOException {
+		byte[] bytes = Files.readAllBytes(journalFile.toPath());
+		// a line cut short by a crash is not a checkpoint, and is dropped so new lines follow the last complete one
+		int length = 0;
+		for (int i = bytes.length - 1; i >= 0 && length == 0; i--) {
+			if (bytes[i] == '\n') {
+				length = i + 1;
+			}
+		}
+		try (RandomAccessFile truncate = new RandomAccessFile(journalFile, "rw")) {
+			truncate.setLength(length);
+		}
+
+		for (String line : new String(bytes, 0, length, StandardCharsets.UTF_8).split("\n")) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			resumeTable = null;
+			if (TABLE.equals(fields[0]) && fields.length == 3) {
+				finishedTables.add(fields[1]);
+				startOffset = Long.parseLong(fields[2]);
+			} else if (KEY.equals(fields[0]) && fields.length == 4) {
+				resumeTable = fields[1];
+				resumeKey = Long.parseLong(fields[2]);
+				startOffset = Long.parseLong(fields[3]);
+			} else if (END.equals(fields[0]) && fields.length == 2) {
+				complete = true;
+				startOffset = Long.parseLong(fields[1]);
+			} else {
+				throw new IOException("Unexpected line in the journal " + journalFile + ": " + line);
+			}
+			resumed = true;
+		}
+	}
+
+	/**
+	 * @return the stream to write the dump to, which continues after the last checkpoint
+	 */
+	public OutputStream getOutputStream() {
+		return counter;
+	}
+
+	/**
+	 * @return true if checkpoints are recorded
+	 */
+	public boolean isEnabled() {
+		return journal != null;
+	}
+
+	/**
+	 * @return true if the output already holds the start of the dump
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * @return true if the dump had already been completed
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return true if all rows of the table have been written already
+	 */
+	public boolean isFinished(Table table) {
+		return finishedTables.contains(table.getDatabaseTableName());
+	}
+
+	/**
+	 * @return the last key written of an interrupted table, or null if the table has not been started
+	 */
+	public Long getResumeKey(Table table) {
+		return table.getDatabaseTableName().equals(resumeTable) ? resumeKey : null;
+	}
+
+	/**
+	 * @return characters written between two checkpoints within a table
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return a marker recording that the table has been written up to and including the key
+	 */
+	public OutputThread.Marker keyWritten(Table table, long key) {
+		return () -> record(KEY + "\t" + table.getDatabaseTableName() + "\t" + key);
+	}
+
+	/**
+	 * @return a marker recording that all rows of the table have been written
+	 */
+	public OutputThread.Marker tableWritten(Table table) {
+		return () -> record(TABLE + "\t" + table.getDatabaseTableName());
+	}
+
+	/**
+	 * @return a marker recording that the dump is complete
+	 */
+	public OutputThread.Marker dumpWritten() {
+		return () -> record(END);
+	}
+
+	private void record(String checkpoint) throws IOException {
+		try {
+			// the data has to be on disk before the journal may point past it
+			file.getFD().sync();
+			long offset = startOffset + counter.getByteCount();
+			journal.write((checkpoint + "\t" + offset + "\n").getBytes(StandardCharsets.UTF_8));
+			journal.getFD().sync();
+		} catch (IOException e) {
+			throw new IOException("Could not write a checkpoint: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Close the journal. The output stream is closed by its writer.
+	 */
+	public void close() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				LOGGER.error("Could not close the journal: " + e.getMessage());
+			}
+		}
+	}
+}
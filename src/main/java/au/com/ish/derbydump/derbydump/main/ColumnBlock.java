@@ -0,0 +1,734 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Column;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the values of one column for a row group of the columnar format, and writes them
+ * as a single block.
+ * <p>
+ * A block starts with the id of its encoding and the null bitmap, followed by the values which
+ * are not null. The encoding is chosen from the JDBC type of the column when writing, and read
+ * back from the block itself when reading, so that a reader does not need to know how the
+ * writer picked it:
+ * <ul>
+ * <li>whole numbers, dates and times: zigzag varint of the difference to the previous value</li>
+ * <li>strings: a dictionary and varint indexes when few values repeat often, otherwise plain UTF-8</li>
+ * <li>binary data: raw bytes</li>
+ * <li>booleans: one bit per value</li>
+ * <li>floating point and decimal numbers: their exact binary form</li>
+ * </ul>
+ */
+abstract class ColumnBlock {
+
+	static final int DELTA_VARINT = 1;
+	static final int PLAIN_STRING = 2;
+	static final int DICTIONARY_STRING = 3;
+	static final int RAW_BYTES = 4;
+	static final int BIT_PACKED = 5;
+	static final int DOUBLE = 6;
+	static final int FLOAT = 7;
+	static final int DECIMAL = 8;
+	static final int TIMESTAMP = 9;
+
+	private static final int NO_NULLS = 0;
+	private static final int NULL_BITMAP = 1;
+	private static final int ALL_NULL = 2;
+
+	private final int encoding;
+	private final BitSet nulls = new BitSet();
+	private int rows;
+
+	protected ColumnBlock(int encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * @param column The column whose values the block collects
+	 * @return a block with the encoding for the data type of the column
+	 */
+	static ColumnBlock forColumn(Column column) {
+		switch (column.getColumnDataType()) {
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.BLOB:
+				return new BytesBlock();
+
+			case Types.CLOB:
+			case Types.CHAR:
+			case Types.LONGNVARCHAR:
+			case Types.VARCHAR:
+				return new StringBlock();
+
+			case Types.TIME:
+				return new LongBlock() {
+					@Override
+					boolean readValue(ResultSet dataRow, int index) throws SQLException {
+						Time value = dataRow.getTime(index);
+						return value != null && add(value.toLocalTime().toSecondOfDay());
+					}
+				};
+
+			case Types.DATE:
+				return new LongBlock() {
+					@Override
+					boolean readValue(ResultSet dataRow, int index) throws SQLException {
+						Date value = dataRow.getDate(index);
+						return value != null && add(value.toLocalDate().toEpochDay());
+					}
+				};
+
+			case Types.TIMESTAMP:
+				return new TimestampBlock();
+
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return new DecimalBlock();
+
+			case Types.REAL:
+			case Types.FLOAT:
+				return new FloatBlock();
+
+			case Types.DOUBLE:
+				return new DoubleBlock();
+
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return new LongBlock() {
+					@Override
+					boolean readValue(ResultSet dataRow, int index) throws SQLException {
+						long value = dataRow.getLong(index);
+						return !dataRow.wasNull() && add(value);
+					}
+				};
+
+			case Types.BOOLEAN:
+				return new BooleanBlock();
+
+			default:
+				// anything else is kept in its string form, like the SQL output does
+				return new StringBlock();
+		}
+	}
+
+	/**
+	 * Add the value of the current row.
+	 *
+	 * @param dataRow The row which we are exporting
+	 * @param index   The 1-based position of the column in the result set
+	 */
+	final void add(ResultSet dataRow, int index) throws SQLException {
+		if (!readValue(dataRow, index)) {
+			nulls.set(rows);
+		}
+		rows++;
+	}
+
+	/**
+	 * @return false if the value is null, in which case nothing was stored
+	 */
+	abstract boolean readValue(ResultSet dataRow, int index) throws SQLException;
+
+	/**
+	 * @return roughly the number of bytes held by the block
+	 */
+	abstract long getSize();
+
+	abstract void writeValues(DataOutput out) throws IOException;
+
+	/**
+	 * Forget all values, so the block can collect the next row group.
+	 */
+	void clear() {
+		nulls.clear();
+		rows = 0;
+	}
+
+	void write(DataOutput out) throws IOException {
+		writeVarint(out, getEncoding());
+		int nullCount = nulls.cardinality();
+		if (nullCount == 0) {
+			out.writeByte(NO_NULLS);
+		} else if (nullCount == rows) {
+			out.writeByte(ALL_NULL);
+		} else {
+			out.writeByte(NULL_BITMAP);
+			byte[] bitmap = Arrays.copyOf(nulls.toByteArray(), (rows + 7) / 8);
+			out.write(bitmap);
+		}
+		writeValues(out);
+	}
+
+	int getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Read a block back into values of the Java types which JDBC uses for the column type.
+	 *
+	 * @param in       Positioned at the start of the block
+	 * @param rows     Number of rows in the row group
+	 * @param dataType The JDBC type of the column
+	 * @return the values of the block, with null for null values
+	 */
+	static Object[] read(DataInput in, int rows, int dataType) throws IOException {
+		int encoding = readVarint(in);
+		Object[] values = new Object[rows];
+		BitSet nulls;
+		switch (in.readByte()) {
+			case NO_NULLS:
+				nulls = new BitSet();
+				break;
+			case ALL_NULL:
+				return values;
+			case NULL_BITMAP:
+				byte[] bitmap = new byte[(rows + 7) / 8];
+				in.readFully(bitmap);
+				nulls = BitSet.valueOf(bitmap);
+				break;
+			default:
+				throw new IOException("Corrupt null bitmap in column block");
+		}
+
+		long previous = 0;
+		String[] dictionary = null;
+		if (encoding == DICTIONARY_STRING) {
+			dictionary = new String[readVarint(in)];
+			for (int i = 0; i < dictionary.length; i++) {
+				dictionary[i] = readString(in);
+			}
+		}
+		boolean[] bits = null;
+		if (encoding == BIT_PACKED) {
+			bits = readBits(in, rows - nulls.cardinality());
+		}
+
+		int position = 0;
+		for (int row = 0; row < rows; row++) {
+			if (nulls.get(row)) {
+				continue;
+			}
+			switch (encoding) {
+				case DELTA_VARINT:
+					previous += zigzagDecode(readVarLong(in));
+					values[row] = toObject(previous, dataType);
+					break;
+				case PLAIN_STRING:
+					values[row] = readString(in);
+					break;
+				case DICTIONARY_STRING:
+					values[row] = dictionary[readVarint(in)];
+					break;
+				case RAW_BYTES:
+					byte[] bytes = new byte[readVarint(in)];
+					in.readFully(bytes);
+					values[row] = bytes;
+					break;
+				case BIT_PACKED:
+					values[row] = bits[position];
+					break;
+				case DOUBLE:
+					values[row] = in.readDouble();
+					break;
+				case FLOAT:
+					values[row] = in.readFloat();
+					break;
+				case DECIMAL:
+					int scale = (int) zigzagDecode(readVarLong(in));
+					byte[] unscaled = new byte[readVarint(in)];
+					in.readFully(unscaled);
+					values[row] = new BigDecimal(new BigInteger(unscaled), scale);
+					break;
+				case TIMESTAMP:
+					previous += zigzagDecode(readVarLong(in));
+					LocalDateTime timestamp = LocalDateTime.ofEpochSecond(previous, readVarint(in), ZoneOffset.UTC);
+					values[row] = Timestamp.valueOf(timestamp);
+					break;
+				default:
+					throw new IOException("Unknown column block encoding " + encoding);
+			}
+			position++;
+		}
+		return values;
+	}
+
+	private static Object toObject(long value, int dataType) {
+		switch (dataType) {
+			case Types.TIME:
+				return Time.valueOf(LocalTime.ofSecondOfDay(value));
+			case Types.DATE:
+				return Date.valueOf(LocalDate.ofEpochDay(value));
+			case Types.BIGINT:
+				return value;
+			default:
+				return (int) value;
+		}
+	}
+
+	static void writeVarint(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static int readVarint(DataInput in) throws IOException {
+		return (int) readVarLong(in);
+	}
+
+	private static long zigzagEncode(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long zigzagDecode(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[readVarint(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeBits(DataOutput out, boolean[] bits, int count) throws IOException {
+		for (int i = 0; i < count; i += 8) {
+			int b = 0;
+			for (int j = 0; j < 8 && i + j < count; j++) {
+				if (bits[i + j]) {
+					b |= 1 << j;
+				}
+			}
+			out.writeByte(b);
+		}
+	}
+
+	private static boolean[] readBits(DataInput in, int count) throws IOException {
+		boolean[] bits = new boolean[count];
+		for (int i = 0; i < count; i += 8) {
+			int b = in.readUnsignedByte();
+			for (int j = 0; j < 8 && i + j < count; j++) {
+				bits[i + j] = (b & (1 << j)) != 0;
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Whole numbers, and dates and times in their whole number form.
+	 */
+	private abstract static class LongBlock extends ColumnBlock {
+		private long[] values = new long[64];
+		private int count;
+
+		LongBlock() {
+			super(DELTA_VARINT);
+		}
+
+		protected boolean add(long value) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = value;
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return 8L * count;
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			long previous = 0;
+			for (int i = 0; i < count; i++) {
+				writeVarint(out, zigzagEncode(values[i] - previous));
+				previous = values[i];
+			}
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			count = 0;
+		}
+	}
+
+	/**
+	 * Seconds since the epoch of the local date and time, delta encoded like {@link LongBlock},
+	 * each followed by the nanoseconds.
+	 */
+	private static final class TimestampBlock extends ColumnBlock {
+		private long[] seconds = new long[64];
+		private int[] nanos = new int[64];
+		private int count;
+
+		TimestampBlock() {
+			super(TIMESTAMP);
+		}
+
+		@Override
+		boolean readValue(ResultSet dataRow, int index) throws SQLException {
+			Timestamp value = dataRow.getTimestamp(index);
+			if (value == null) {
+				return false;
+			}
+			if (count == seconds.length) {
+				seconds = Arrays.copyOf(seconds, count * 2);
+				nanos = Arrays.copyOf(nanos, count * 2);
+			}
+			seconds[count] = value.toLocalDateTime().toEpochSecond(ZoneOffset.UTC);
+			nanos[count] = value.getNanos();
+			count++;
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return 12L * count;
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			long previous = 0;
+			for (int i = 0; i < count; i++) {
+				writeVarint(out, zigzagEncode(seconds[i] - previous));
+				writeVarint(out, nanos[i]);
+				previous = seconds[i];
+			}
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			count = 0;
+		}
+	}
+
+	/**
+	 * Strings, written with a dictionary when that is smaller than writing every value.
+	 */
+	private static final class StringBlock extends ColumnBlock {
+		/**
+		 * A dictionary is only kept while it stays small, beyond that the values are written plainly.
+		 */
+		private static final int MAX_DICTIONARY_SIZE = 4096;
+
+		private final List<String> values = new ArrayList<String>();
+		private Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		private long size;
+
+		StringBlock() {
+			super(PLAIN_STRING);
+		}
+
+		@Override
+		boolean readValue(ResultSet dataRow, int index) throws SQLException {
+			String value = dataRow.getString(index);
+			if (value == null) {
+				return false;
+			}
+			values.add(value);
+			size += 2L * value.length();
+			if (dictionary != null && dictionary.putIfAbsent(value, dictionary.size()) == null
+					&& dictionary.size() > MAX_DICTIONARY_SIZE) {
+				dictionary = null;
+			}
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return size;
+		}
+
+		@Override
+		int getEncoding() {
+			// values must repeat at least once on average to make the dictionary worth it
+			return dictionary != null && 2 * dictionary.size() <= values.size() ? DICTIONARY_STRING : PLAIN_STRING;
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			if (getEncoding() == DICTIONARY_STRING) {
+				String[] entries = new String[dictionary.size()];
+				for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+					entries[entry.getValue()] = entry.getKey();
+				}
+				writeVarint(out, entries.length);
+				for (String entry : entries) {
+					writeString(out, entry);
+				}
+				for (String value : values) {
+					writeVarint(out, dictionary.get(value));
+				}
+			} else {
+				for (String value : values) {
+					writeString(out, value);
+				}
+			}
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			values.clear();
+			dictionary = new HashMap<String, Integer>();
+			size = 0;
+		}
+	}
+
+	private static final class BytesBlock extends ColumnBlock {
+		private final List<byte[]> values = new ArrayList<byte[]>();
+		private long size;
+
+		BytesBlock() {
+			super(RAW_BYTES);
+		}
+
+		@Override
+		boolean readValue(ResultSet dataRow, int index) throws SQLException {
+			byte[] value = dataRow.getBytes(index);
+			if (value == null) {
+				return false;
+			}
+			values.add(value);
+			size += value.length;
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return size;
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			for (byte[] value : values) {
+				writeVarint(out, value.length);
+				out.write(value);
+			}
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			values.clear();
+			size = 0;
+		}
+	}
+
+	private static final class BooleanBlock extends ColumnBlock {
+		private boolean[] values = new boolean[64];
+		private int count;
+
+		BooleanBlock() {
+			super(BIT_PACKED);
+		}
+
+		@Override
+		boolean readValue(ResultSet dataRow, int index) throws SQLException {
+			boolean value = dataRow.getBoolean(index);
+			if (dataRow.wasNull()) {
+				return false;
+			}
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = value;
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return count / 8;
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			writeBits(out, values, count);
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			count = 0;
+		}
+	}
+
+	private static final class DoubleBlock extends ColumnBlock {
+		private double[] values = new double[64];
+		private int count;
+
+		DoubleBlock() {
+			super(DOUBLE);
+		}
+
+		@Override
+		boolean readValue(ResultSet dataRow, int index) throws SQLException {
+			double value = dataRow.getDouble(index);
+			if (dataRow.wasNull()) {
+				return false;
+			}
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = value;
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return 8L * count;
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			for (int i = 0; i < count; i++) {
+				out.writeDouble(values[i]);
+			}
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			count = 0;
+		}
+	}
+
+	private static final class FloatBlock extends ColumnBlock {
+		private float[] values = new float[64];
+		private int count;
+
+		FloatBlock() {
+			super(FLOAT);
+		}
+
+		@Override
+		boolean readValue(ResultSet dataRow, int index) throws SQLException {
+			float value = dataRow.getFloat(index);
+			if (dataRow.wasNull()) {
+				return false;
+			}
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = value;
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return 4L * count;
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			for (int i = 0; i < count; i++) {
+				out.writeFloat(values[i]);
+			}
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			count = 0;
+		}
+	}
+
+	private static final class DecimalBlock extends ColumnBlock {
+		private final List<BigDecimal> values = new ArrayList<BigDecimal>();
+
+		DecimalBlock() {
+			super(DECIMAL);
+		}
+
+		@Override
+		boolean readValue(ResultSet dataRow, int index) throws SQLException {
+			BigDecimal value = dataRow.getBigDecimal(index);
+			if (value == null) {
+				return false;
+			}
+			values.add(value);
+			return true;
+		}
+
+		@Override
+		long getSize() {
+			return 16L * values.size();
+		}
+
+		@Override
+		void writeValues(DataOutput out) throws IOException {
+			for (BigDecimal value : values) {
+				writeVarint(out, zigzagEncode(value.scale()));
+				byte[] unscaled = value.unscaledValue().toByteArray();
+				writeVarint(out, unscaled.length);
+				out.write(unscaled);
+			}
+		}
+
+		@Override
+		void clear() {
+			super.clear();
+			values.clear();
+		}
+	}
+}
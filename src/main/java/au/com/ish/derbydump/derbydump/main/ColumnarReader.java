@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a file written by {@link ColumnarWriter}, one table and one row group at a time.
+ */
+public class ColumnarReader implements Closeable {
+
+	private final DataInputStream in;
+	private Table table;
+	private long rowCount;
+	private boolean aborted;
+
+	public ColumnarReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+		byte[] magic = new byte[ColumnarWriter.MAGIC.length];
+		this.in.readFully(magic);
+		if (!Arrays.equals(magic, ColumnarWriter.MAGIC)) {
+			throw new IOException("Not a columnar dump");
+		}
+		int version = ColumnBlock.readVarint(this.in);
+		// version 2 only added the abort marker, so older files read the same
+		if (version < 1 || version > ColumnarWriter.VERSION) {
+			throw new IOException("Unsupported columnar dump version " + version);
+		}
+	}
+
+	/**
+	 * Move to the next table. The rows of the previous table must have been read to the end.
+	 *
+	 * @return the next table with its columns, or null at the end of the file
+	 */
+	public Table nextTable() throws IOException {
+		int marker = in.readByte();
+		if (marker == ColumnarWriter.END) {
+			table = null;
+			return null;
+		}
+		if (marker != ColumnarWriter.TABLE) {
+			throw new IOException("Expected a table header but found " + marker);
+		}
+
+		table = new Table();
+		// the writer stores the name as the dump rewrote it
+		table.setRewrittenTableName(ColumnBlock.readString(in));
+		int columnCount = ColumnBlock.readVarint(in);
+		for (int i = 0; i < columnCount; i++) {
+			Column column = new Column();
+			column.setColumnName(ColumnBlock.readString(in));
+			column.setColumnDataType(ColumnBlock.readVarint(in));
+			column.setNullable(in.readBoolean());
+			table.addColumn(column);
+		}
+		rowCount = 0;
+		aborted = false;
+		return table;
+	}
+
+	/**
+	 * @return the values of the next row group of the current table, indexed by column and then by
+	 * row, or null once the table has no more rows
+	 */
+	public Object[][] nextRowGroup() throws IOException {
+		int marker = in.readByte();
+		if (marker == ColumnarWriter.TABLE_END || marker == ColumnarWriter.TABLE_ABORTED) {
+			long expected = ColumnBlock.readVarLong(in);
+			if (expected != rowCount) {
+				throw new IOException("Table " + table.getTableName() + " has " + rowCount + " rows, expected " + expected);
+			}
+			aborted = marker == ColumnarWriter.TABLE_ABORTED;
+			return null;
+		}
+		if (marker != ColumnarWriter.ROW_GROUP) {
+			throw new IOException("Expected a row group but found " + marker);
+		}
+
+		int rows = ColumnBlock.readVarint(in);
+		List<Column> columns = table.getColumns();
+		Object[][] values = new Object[columns.size()][];
+		for (int i = 0; i < values.length; i++) {
+			// the length lets readers skip a column, here every column is read
+			ColumnBlock.readVarint(in);
+			values[i] = ColumnBlock.read(in, rows, columns.get(i).getColumnDataType());
+		}
+		rowCount += rows;
+		return values;
+	}
+
+	/**
+	 * @return true if reading the current table failed during the dump, so that it only has the
+	 * rows read before the failure. Known once {@link #nextRowGroup()} has returned null.
+	 */
+	public boolean isTableAborted() {
+		return aborted;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
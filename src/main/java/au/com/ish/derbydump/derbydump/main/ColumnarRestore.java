@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.ColumnEncoder;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import au.com.ish.derbydump.derbydump.util.ChunkBuffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Turns a columnar dump back into the SQL script the dump would otherwise have written, or
+ * loads it straight into a database through JDBC.
+ * <p>
+ * Usage: <code>ColumnarRestore &lt;dump file&gt; [&lt;sql file&gt; | &lt;jdbc url&gt;]</code>. Without
+ * a second argument the SQL is written to standard output. Compressed dumps are recognised
+ * by their gzip header.
+ */
+public class ColumnarRestore {
+
+	private static final Logger LOGGER = LogManager.getLogger(ColumnarRestore.class);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: ColumnarRestore <dump file> [<sql file> | <jdbc url>]");
+			System.exit(1);
+		}
+
+		try (ColumnarReader reader = new ColumnarReader(open(args[0]))) {
+			if (args.length > 1 && args[1].startsWith("jdbc:")) {
+				try (Connection connection = DriverManager.getConnection(args[1])) {
+					load(reader, connection);
+				}
+			} else {
+				try (Writer out = new BufferedWriter(new OutputStreamWriter(
+						args.length > 1 ? new FileOutputStream(args[1]) : System.out, StandardCharsets.UTF_8))) {
+					writeSql(reader, out);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the file, uncompressed if it starts with a gzip header
+	 */
+	static InputStream open(String path) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(path));
+		in.mark(2);
+		boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+		in.reset();
+		return gzip ? new GZIPInputStream(in, 64 * 1024) : in;
+	}
+
+	/**
+	 * Write the SQL statements for every table, in the form {@link DatabaseReader} writes them.
+	 *
+	 * @param reader Positioned before the first table
+	 * @param out    Receives the script
+	 */
+	public static void writeSql(ColumnarReader reader, Writer out) throws IOException {
+		Configuration config = Configuration.getConfiguration();
+		ChunkBuffer chunk = new ChunkBuffer(config.getChunkCharacters(), text -> {
+			try {
+				out.write(text);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+
+		try {
+			chunk.getBuilder().append("AUTOCOMMIT OFF;\n");
+			Table table;
+			while ((table = reader.nextTable()) != null) {
+				writeSql(reader, table, config, chunk);
+			}
+			chunk.getBuilder().append("COMMIT;\n");
+			chunk.getBuilder().append("AUTOCOMMIT ON;\n");
+			chunk.flush();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static void writeSql(ColumnarReader reader, Table table, Configuration config, ChunkBuffer chunk) throws IOException {
+		List<Column> columns = table.getColumns();
+		StatementBatch batch = new StatementBatch(table.getInsertSQL(), config.getStatementRows(), config.getStatementSize() * 1024L);
+		long rowCount = 0;
+
+		Object[][] values;
+		while ((values = reader.nextRowGroup()) != null) {
+			int rows = values.length == 0 ? 0 : values[0].length;
+			for (int row = 0; row < rows; row++) {
+				StringBuilder output = chunk.getBuilder();
+				if (rowCount == 0) {
+					if (config.getTruncateTables()) {
+						output.append("TRUNCATE TABLE \"").append(table.getTableName()).append("\";\n");
+					}
+					output.append(table.getInsertSQL());
+					chunk.startRow();
+				} else {
+					chunk.startRow();
+					output.append(StatementBatch.ROW_SEPARATOR);
+				}
+
+				output.append('(');
+				for (int i = 0; i < values.length; i++) {
+					if (i > 0) {
+						output.append(',');
+					}
+					ColumnEncoder.appendLiteral(columns.get(i), values[i][row], output);
+				}
+				output.append(')');
+				batch.endRow(chunk);
+				rowCount++;
+				chunk.flushIfFull();
+			}
+		}
+
+		if (rowCount > 0) {
+			chunk.getBuilder().append(";\n");
+		}
+		if (reader.isTableAborted()) {
+			// like the SQL dump, the rows read before the failure are kept
+			LOGGER.error("Table " + table.getTableName() + " could not be dumped completely, only " + rowCount + " rows were written.");
+		}
+	}
+
+	/**
+	 * Insert the rows of every table into the tables of the same name, committing after each table.
+	 * Tables which could not be dumped completely are rolled back.
+	 *
+	 * @param reader     Positioned before the first table
+	 * @param connection The database to load into
+	 */
+	public static void load(ColumnarReader reader, Connection connection) throws IOException, SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try {
+			Table table;
+			while ((table = reader.nextTable()) != null) {
+				LOGGER.info("Loading table " + table.getTableName());
+				load(reader, table, connection);
+				if (reader.isTableAborted()) {
+					LOGGER.error("Table " + table.getTableName() + " could not be dumped completely and is not loaded.");
+					connection.rollback();
+				} else {
+					connection.commit();
+				}
+			}
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static void load(ColumnarReader reader, Table table, Connection connection) throws IOException, SQLException {
+		List<Column> columns = table.getColumns();
+		StringBuilder sql = new StringBuilder(table.getInsertSQL()).append('(');
+		for (int i = 0; i < columns.size(); i++) {
+			sql.append(i == 0 ? "?" : ",?");
+		}
+		sql.append(')');
+
+		try (PreparedStatement insert = connection.prepareStatement(sql.toString())) {
+			Object[][] values;
+			while ((values = reader.nextRowGroup()) != null) {
+				int rows = values.length == 0 ? 0 : values[0].length;
+				for (int row = 0; row < rows; row++) {
+					for (int i = 0; i < values.length; i++) {
+						Object value = values[i][row];
+						if (value == null) {
+							insert.setNull(i + 1, columns.get(i).getColumnDataType());
+						} else {
+							insert.setObject(i + 1, value);
+						}
+					}
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes tables in the compact columnar format, as an alternative to SQL statements.
+ * <p>
+ * The file starts with {@link #MAGIC} and the format version. Every table follows as
+ * <ul>
+ * <li>a header with the table name and the name, JDBC type and nullability of each column</li>
+ * <li>any number of row groups, each holding the row count and then one {@link ColumnBlock} per
+ * column, prefixed with its length so a reader can skip columns it does not need</li>
+ * <li>an end marker with the total row count of the table, or an abort marker with the number of
+ * rows in the row groups written before reading the table failed</li>
+ * </ul>
+ * and the file ends with an end marker. All counts and lengths are unsigned varints.
+ * <p>
+ * A row group holds up to the configured number of rows, but is written earlier once its
+ * values take more than {@link #MAX_ROW_GROUP_SIZE} bytes. Unlike the SQL output, large
+ * objects are held in memory in full until their row group is written.
+ */
+public class ColumnarWriter implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger(ColumnarWriter.class);
+
+	static final byte[] MAGIC = {'D', 'E', 'R', 'B', 'Y', 'C', 'O', 'L'};
+	static final int VERSION = 2;
+
+	static final int END = 0;
+	static final int TABLE = 1;
+	static final int ROW_GROUP = 2;
+	static final int TABLE_END = 3;
+	/**
+	 * Ends a table which could not be read completely. Added in version 2.
+	 */
+	static final int TABLE_ABORTED = 4;
+
+	private static final long MAX_ROW_GROUP_SIZE = 16 * 1024 * 1024;
+
+	private final DataOutputStream out;
+	private final int rowGroupSize;
+	private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+	private final DataOutputStream blockOut = new DataOutputStream(block);
+
+	/**
+	 * @param out          Receives the file
+	 * @param rowGroupSize Most rows in one row group
+	 */
+	public ColumnarWriter(OutputStream out, int rowGroupSize) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		this.rowGroupSize = rowGroupSize;
+		this.out.write(MAGIC);
+		ColumnBlock.writeVarint(this.out, VERSION);
+	}
+
+	/**
+	 * Read every table which is not excluded and write it.
+	 *
+	 * @param tables     The tables to write, in order
+	 * @param connection The database connection used to fetch the data
+	 * @param schema     The name of the schema we are using
+	 * @return the tables which could not be read, in order, each with the reason. They are written
+	 * with an abort marker, or not at all if reading failed before the first row.
+	 */
+	public Map<Table, SQLException> writeTables(List<Table> tables, Connection connection, String schema) throws IOException {
+		Map<Table, SQLException> failures = new LinkedHashMap<Table, SQLException>();
+		for (Table table : tables) {
+			if (table.isExcluded()) {
+				continue;
+			}
+			LOGGER.info("Table " + table.getTableName() + "...\n");
+			try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			     ResultSet dataRows = statement.executeQuery(table.getSelectQuery(schema))) {
+				writeTable(table, dataRows);
+			} catch (SQLException e) {
+				LOGGER.error("Error: " + e.getErrorCode() + " - " + e.getMessage());
+				failures.put(table, e);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * If reading the rows fails, the row groups written so far are ended with an abort marker,
+	 * so that the tables after this one can still be read.
+	 *
+	 * @param table    The table to write
+	 * @param dataRows The rows of the table, with the columns in the order of {@link Table#getColumns()}
+	 * @return the number of rows written
+	 */
+	public long writeTable(Table table, ResultSet dataRows) throws IOException, SQLException {
+		List<Column> columns = table.getColumns();
+		out.writeByte(TABLE);
+		ColumnBlock.writeString(out, table.getTableName());
+		ColumnBlock.writeVarint(out, columns.size());
+		ColumnBlock[] blocks = new ColumnBlock[columns.size()];
+		for (int i = 0; i < blocks.length; i++) {
+			Column column = columns.get(i);
+			ColumnBlock.writeString(out, column.getColumnName());
+			ColumnBlock.writeVarint(out, column.getColumnDataType());
+			out.writeBoolean(column.isNullable());
+			blocks[i] = ColumnBlock.forColumn(column);
+		}
+
+		long rowCount = 0;
+		int groupRows = 0;
+		try {
+			while (dataRows.next()) {
+				long size = 0;
+				for (int i = 0; i < blocks.length; i++) {
+					blocks[i].add(dataRows, i + 1);
+					size += blocks[i].getSize();
+				}
+				rowCount++;
+				if (++groupRows == rowGroupSize || size >= MAX_ROW_GROUP_SIZE) {
+					writeRowGroup(blocks, groupRows);
+					groupRows = 0;
+				}
+			}
+		} catch (SQLException e) {
+			// the rows of the unfinished row group are dropped
+			out.writeByte(TABLE_ABORTED);
+			ColumnBlock.writeVarint(out, rowCount - groupRows);
+			throw e;
+		}
+		if (groupRows > 0) {
+			writeRowGroup(blocks, groupRows);
+		}
+
+		out.writeByte(TABLE_END);
+		ColumnBlock.writeVarint(out, rowCount);
+		return rowCount;
+	}
+
+	private void writeRowGroup(ColumnBlock[] blocks, int rows) throws IOException {
+		out.writeByte(ROW_GROUP);
+		ColumnBlock.writeVarint(out, rows);
+		for (ColumnBlock columnBlock : blocks) {
+			block.reset();
+			columnBlock.write(blockOut);
+			columnBlock.clear();
+			ColumnBlock.writeVarint(out, block.size());
+			block.writeTo(out);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.writeByte(END);
+		out.close();
+	}
+}
@@ -19,8 +19,11 @@ package au.com.ish.derbydump.derbydump.main;
 import au.com.ish.derbydump.derbydump.config.Configuration;
 import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
 import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.ColumnEncoder;
 import au.com.ish.derbydump.derbydump.metadata.Database;
 import au.com.ish.derbydump.derbydump.metadata.Table;
+import au.com.ish.derbydump.derbydump.util.ChunkBuffer;
+import au.com.ish.derbydump.derbydump.util.Utf8;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -28,28 +31,93 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Logical module representing a reader/producer which reads from a database and
  * writes to a buffer.
+ * <p>
+ * Tables are read by a pool of worker threads, each on its own connection. Every table
+ * writes into its own {@link OutputThread.Section}, so the output contains the tables
+ * in their original order regardless of which worker finishes first. Tables with a whole
+ * number key can also be split into key ranges, which are read and written the same way.
+ * A worker ahead of the writer spools its section to a temporary file rather than waiting for
+ * the tables before it, so a few large tables are still read in parallel, at the cost of
+ * writing what runs ahead to disk twice.
+ * <p>
+ * A single output is filled in order, so the tables are started in that order. Where every table
+ * has a file of its own, the largest tables are started first, as {@link TableSizes} orders them.
+ * A {@link ProgressReporter} follows the tables as they are read.
+ * <p>
+ * A table which could not be read completely is left out of the checkpoints, and the dump as a whole
+ * is reported as incomplete, see {@link #isComplete()}.
  */
 public class DatabaseReader {
 
-	private final static int MAX_ALLOWED_ROWS = 100;
 	private static final Logger LOGGER = LogManager.getLogger(DatabaseReader.class);
-	private final OutputThread output;
+	private final DumpOutput output;
+	private final Watermarks watermarks;
+	private final Checkpoints checkpoints;
+	/**
+	 * Names of the tables which could not be read, or not completely
+	 */
+	private final Set<String> failedTables = ConcurrentHashMap.newKeySet();
+	private volatile boolean complete;
 
 	private final Configuration config;
 
 	public DatabaseReader(OutputThread output) {
+		this(new SingleFileOutput(output));
+	}
+
+	public DatabaseReader(DumpOutput output) {
+		this(output, new Watermarks());
+	}
+
+	public DatabaseReader(DumpOutput output, Watermarks watermarks) {
+		this(output, watermarks, new Checkpoints());
+	}
+
+	/**
+	 * @param output Receives the dump
+	 * @param watermarks Limits tables with a watermark column to the rows changed since the previous dump,
+	 *                   and is told about the marks reached. Saving them is up to the caller.
+	 * @param checkpoints Records how far the output has been written, and where an interrupted dump continues.
+	 *                    Only supported with a single output file.
+	 */
+	public DatabaseReader(DumpOutput output, Watermarks watermarks, Checkpoints checkpoints) {
 		this.output = output;
+		this.watermarks = watermarks;
+		this.checkpoints = checkpoints;
 		config = Configuration.getConfiguration();
 
 		LOGGER.debug("Database reader initializing...");
 		readMetaData(config.getSchemaName());
 	}
 
+	/**
+	 * @return whether every table was read completely. If not, the output must not be treated as a
+	 * complete dump, nor may the watermarks reached be saved.
+	 */
+	public boolean isComplete() {
+		return complete && failedTables.isEmpty();
+	}
+
+	/**
+	 * @return the names of the tables which could not be read, or not completely
+	 */
+	public Set<String> getFailedTables() {
+		return failedTables;
+	}
+
 	void readMetaData(String schema) {
 		// getting the connection
 		DBConnectionManager db;
@@ -60,13 +128,12 @@ public class DatabaseReader {
 			return;
 		}
 		// creating a skeleton of tables and columns present in the database
-		MetadataReader metadata = new MetadataReader();
 		LOGGER.debug("Resolving database structure...");
-		Database database = metadata.readDatabase(db.getConnection());
-		getInternalData(database.getTables(), db.getConnection(), schema);
+		Database database = MetadataCache.fromConfiguration().readDatabase(db.getConnection(), schema);
+		getInternalData(database.getTables(), db, schema);
 
 		try {
-			db.getConnection().close();
+			db.close();
 		} catch (SQLException e) {
 			LOGGER.error("Could not close database connection :" + e.getErrorCode() + " - " + e.getMessage());
 		}
@@ -78,75 +145,293 @@ public class DatabaseReader {
 	 * the output.
 	 *
 	 * @param tables A list of tables to read from
-	 * @param connection The database connection used to fetch the data
+	 * @param db The connection pool used to fetch the data
 	 * @param schema The name of the schema we are using
 	 */
-	private void getInternalData(List<Table> tables, Connection connection, String schema) {
+	private void getInternalData(List<Table> tables, DBConnectionManager db, String schema) {
 		LOGGER.debug("Fetching database data...");
 
-		output.add("AUTOCOMMIT OFF;\n");
+		if (!checkpoints.isResumed()) {
+			output.begin();
+		}
+
+		if (output.isTableOrderFree()) {
+			// restores follow the order of the files, so parents still come first
+			tables = TableSizes.schedule(tables, db.getConnection(), schema, true);
+		}
+		ProgressReporter progress = ProgressReporter.fromConfiguration(tables, db.getConnection(), schema);
+		progress.start();
 
+		ExecutorService workers = createWorkers(config.getDumpThreads());
+		KeyRangePartitioner partitioner = new KeyRangePartitioner(config.getPartitions());
 		for (Table table : tables) {
-			if (!table.isExcluded()) {
-				List<Column> columns = table.getColumns();
-				LOGGER.info("Table " + table.getTableName() + "...\n");
-
+			if (checkpoints.isFinished(table)) {
+				LOGGER.info("Table " + table.getTableName() + " was dumped before the interruption.");
+				progress.finishTable(table);
+			} else if (!table.isExcluded()) {
+				Watermarks.Delta delta;
 				try {
-					Statement statement = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-					ResultSet dataRows = statement.executeQuery(table.getSelectQuery(schema));
-					int rowCount = 0;
+					delta = watermarks.prepare(table, db.getConnection(), schema);
+				} catch (SQLException e) {
+					LOGGER.error("Could not find the watermark of table " + table.getTableName() + ": " + e.getMessage());
+					failedTables.add(table.getTableName());
+					progress.finishTable(table);
+					continue;
+				}
 
-					if (dataRows.first()) { // check that we have at least one row
-						dataRows.beforeFirst();
+				// rows read in key order can be checkpointed by their key, as long as no key is null
+				Column key = table.getKeyColumn();
+				boolean keyCheckpoints = checkpoints.isEnabled() && delta == null && key != null && !key.isNullable();
+				Long resumeKey = checkpoints.getResumeKey(table);
 
-//						output.add("LOCK TABLE '" + table.getTableName() + "' IN EXCLUSIVE MODE;\n");
-						if (config.getTruncateTables()) {
-							output.add("TRUNCATE TABLE \"" + table.getTableName() + "\";\n");
-						}
-						output.add(table.getInsertSQL());
+				List<String> queries;
+				if (delta != null) {
+					// changed rows are few, so a delta is read in a single scan
+					queries = delta.getSelectQuery() == null ? Collections.<String>emptyList() : Collections.singletonList(delta.getSelectQuery());
+				} else if (resumeKey != null && keyCheckpoints) {
+					queries = Collections.singletonList(table.getSelectQueryAfter(schema, resumeKey));
+				} else {
+					try {
+						queries = partitioner.getSelectQueries(table, db.getConnection(), schema);
+					} catch (SQLException e) {
+						LOGGER.warn("Could not split table " + table.getTableName() + " into key ranges: " + e.getMessage());
+						queries = Collections.singletonList(table.getSelectQuery(schema));
+					}
+					if (keyCheckpoints && queries.size() == 1) {
+						queries = Collections.singletonList(table.getKeyOrderedSelectQuery(schema));
+					}
+				}
 
-						while (dataRows.next()) {
+				OutputThread tableOutput = output.openTable(table);
+				AtomicLong rowCount = new AtomicLong();
 
-							output.add("(");
+				// a partitioned table is known to have rows, but its first range might still be empty
+				boolean partitioned = queries.size() > 1;
+				if (partitioned && config.getTruncateTables()) {
+					tableOutput.add("TRUNCATE TABLE \"" + table.getTableName() + "\";\n");
+				}
+				// only a full dump may replace the rows of the table, and a resumed table has been truncated already
+				boolean truncate = !partitioned && config.getTruncateTables() && (delta == null || delta.isFull()) && resumeKey == null;
+				if (delta != null && queries.isEmpty()) {
+					watermarks.commit(delta);
+				}
+				// the table is done once the last of its key ranges is
+				AtomicInteger remainingQueries = new AtomicInteger(queries.size());
+				AtomicInteger failedQueries = new AtomicInteger();
+				if (queries.isEmpty()) {
+					progress.finishTable(table);
+				}
 
-							boolean firstColumn = true;
-							for (Column column : columns) {
-								if (firstColumn) {
-									firstColumn = false;
-								} else {
-									output.add(",");
-								}
-								output.add(column.toString(dataRows));
+				for (String query : queries) {
+					OutputThread.Section section = tableOutput.openSection();
+					workers.execute(() -> {
+						Connection connection = null;
+						try {
+							progress.startTable(table);
+							connection = db.acquireConnection();
+							if (delta != null && delta.getKeyQuery() != null) {
+								deleteChangedRows(table, connection, delta.getKeyQuery(), section);
+							}
+							rowCount.addAndGet(getTableData(table, connection, query, truncate, keyCheckpoints, section));
+							if (delta != null) {
+								watermarks.commit(delta);
 							}
-							rowCount++;
-							output.add(")");
-
-
-							if (!dataRows.isLast()) {
-								if (rowCount % MAX_ALLOWED_ROWS == 0) {
-									output.add(";\n");
-									output.add(table.getInsertSQL());
-									output.add("\n");
-								} else {
-									output.add(",\n");
-								}
+						} catch (SQLException e) {
+							LOGGER.error("Error: " + e.getErrorCode() + " - " + e.getMessage());
+							failedQueries.incrementAndGet();
+							failedTables.add(table.getTableName());
+						} finally {
+							db.releaseConnection(connection);
+							section.close();
+							if (remainingQueries.decrementAndGet() == 0) {
+								progress.finishTable(table);
 							}
 						}
+					});
+				}
+				if (checkpoints.isEnabled()) {
+					// the writer reaches the marker only once every range is closed, so their failures are counted by then
+					OutputThread.Marker tableWritten = checkpoints.tableWritten(table);
+					tableOutput.addMarker(() -> {
+						if (failedQueries.get() == 0) {
+							tableWritten.run();
+						}
+					});
+				}
+				output.closeTable(table, rowCount);
+			}
+		}
 
-						output.add(";\n");
+		workers.shutdown();
+		boolean finished = true;
+		try {
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			LOGGER.error("Interrupted while waiting for the table readers to finish.");
+			workers.shutdownNow();
+			finished = false;
+		}
+		progress.close();
+
+		output.end();
+		complete = finished;
+		if (!failedTables.isEmpty()) {
+			LOGGER.error("Could not read the tables " + failedTables + ".");
+		}
+		LOGGER.debug("Reading done.");
+	}
 
-						dataRows.close();
-						statement.close();
+	private static ExecutorService createWorkers(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "Table_Reader-" + count.incrementAndGet()));
+	}
 
+	/**
+	 * Write DELETE statements for the rows of a delta, so that their new versions can be inserted
+	 * whether or not the target already has them.
+	 *
+	 * @param table The table to read
+	 * @param connection The database connection used to fetch the keys
+	 * @param keyQuery Returns the primary key of every row in the delta
+	 * @param section Where the statements are written
+	 */
+	private void deleteChangedRows(Table table, Connection connection, String keyQuery, OutputThread.Section section) throws SQLException {
+		List<Column> primaryKey = table.getPrimaryKey();
+		ColumnEncoder[] encoders = new ColumnEncoder[primaryKey.size()];
+		for (int i = 0; i < encoders.length; i++) {
+			encoders[i] = ColumnEncoder.forColumn(primaryKey.get(i), i + 1);
+		}
+		boolean single = encoders.length == 1;
+		LOGGER.debug(keyQuery);
+
+		try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		     ResultSet keys = statement.executeQuery(keyQuery)) {
+			int keyCount = 0;
+			ChunkBuffer chunk = new ChunkBuffer(config.getChunkCharacters(), section::add);
+			while (keys.next()) {
+				StringBuilder output = chunk.getBuilder();
+				if (keyCount % config.getStatementRows() == 0) {
+					if (keyCount > 0) {
+						output.append(single ? ");\n" : ";\n");
+					}
+					output.append("DELETE FROM \"").append(table.getTableName()).append("\" WHERE ");
+					if (single) {
+						output.append('"').append(primaryKey.get(0).getColumnName()).append("\" IN (");
 					}
+				} else {
+					output.append(single ? "," : " OR ");
+				}
 
-				} catch (SQLException e) {
-					LOGGER.error("Error: " + e.getErrorCode() + " - " + e.getMessage());
+				if (single) {
+					encoders[0].encode(keys, output);
+				} else {
+					output.append('(');
+					for (int i = 0; i < encoders.length; i++) {
+						if (i > 0) {
+							output.append(" AND ");
+						}
+						output.append('"').append(primaryKey.get(i).getColumnName()).append("\" = ");
+						encoders[i].encode(keys, output);
+					}
+					output.append(')');
 				}
+				keyCount++;
+				chunk.flushIfFull();
+			}
+
+			if (keyCount > 0) {
+				chunk.getBuilder().append(single ? ");\n" : ";\n");
 			}
+			chunk.flush();
+		}
+	}
+
+	/**
+	 * Read the rows of a table, or of one key range of it, into a section of the output.
+	 *
+	 * @param table The table to read
+	 * @param connection The database connection used to fetch the data, not shared with other threads
+	 * @param query The select query returning the rows to dump
+	 * @param truncate Whether to truncate the table before inserting the rows
+	 * @param keyCheckpoints Whether the rows come in key order, so that checkpoints can be recorded between them
+	 * @param section Where the statements for these rows are written
+	 * @return the number of rows written
+	 */
+	private int getTableData(Table table, Connection connection, String query, boolean truncate, boolean keyCheckpoints, OutputThread.Section section) throws SQLException {
+		ColumnEncoder[] encoders = table.createEncoders();
+		LOGGER.info("Table " + table.getTableName() + "...\n");
+		LOGGER.debug(query);
+		DumpStats.TableStats stats = DumpStats.getStats().startTable(table);
+		long start = System.nanoTime();
+
+		// a forward only cursor streams the rows, where a scrollable one would be materialized first
+		try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		     ResultSet dataRows = statement.executeQuery(query)) {
+			int rowCount = 0;
+			boolean statementOpen = false;
+			// characters passed on to the section, counted towards the next checkpoint
+			long[] written = new long[1];
+			long nextCheckpoint = checkpoints.getInterval();
+			int keyIndex = table.getColumns().indexOf(table.getKeyColumn()) + 1;
+			// rows are collected into chunks of about chunkSize characters, each handed to the writer at once
+			ChunkBuffer chunk = new ChunkBuffer(config.getChunkCharacters(), text -> {
+				written[0] += text.length();
+				stats.addCharacters(text.length());
+				stats.addBytes(Utf8.encodedLength(text));
+				section.add(text);
+			});
+			StatementBatch batch = new StatementBatch(table.getInsertSQL(), config.getStatementRows(), config.getStatementSize() * 1024L);
+			chunk.setSpillHandler(() -> batch.spill(chunk));
+
+			while (dataRows.next()) {
+				StringBuilder row = chunk.getBuilder();
+				// the separator after the previous row is only written once we know another row follows
+				if (!statementOpen) {
+//					row.append("LOCK TABLE '" + table.getTableName() + "' IN EXCLUSIVE MODE;\n");
+					if (truncate && rowCount == 0) {
+						row.append("TRUNCATE TABLE \"").append(table.getTableName()).append("\";\n");
+					}
+					row.append(table.getInsertSQL());
+					chunk.startRow();
+					statementOpen = true;
+				} else {
+					// assume the row continues the statement, the batch replaces this once the row size is known
+					chunk.startRow();
+					row.append(StatementBatch.ROW_SEPARATOR);
+				}
+
+				row.append('(');
+				for (int i = 0; i < encoders.length; i++) {
+					if (i > 0) {
+						chunk.getBuilder().append(',');
+					}
+					encoders[i].encode(dataRows, chunk);
+				}
+				chunk.getBuilder().append(')');
+				batch.endRow(chunk);
+				rowCount++;
+				stats.addRow();
+				chunk.flushIfFull();
+
+				if (keyCheckpoints && written[0] + chunk.getBuilder().length() >= nextCheckpoint) {
+					// a checkpoint has to fall between two statements, so the statement ends here
+					long key = dataRows.getLong(keyIndex);
+					chunk.getBuilder().append(";\n");
+					chunk.flush();
+					section.addMarker(checkpoints.keyWritten(table, key));
+					batch.reset();
+					statementOpen = false;
+					nextCheckpoint = written[0] + checkpoints.getInterval();
+				}
+			}
+
+			if (statementOpen) {
+				chunk.getBuilder().append(";\n");
+			}
+			chunk.flush();
+			return rowCount;
+		} finally {
+			stats.finish(System.nanoTime() - start);
 		}
-		output.add("COMMIT;\n");
-		output.add("AUTOCOMMIT ON;\n");
-		LOGGER.debug("Reading done.");
 	}
 }
@@ -17,14 +17,28 @@
 package au.com.ish.derbydump.derbydump.main;
 
 import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
 
 public class DerbyDump {
 
 	private static final Logger LOGGER = LogManager.getLogger(DerbyDump.class);
 
+	/**
+	 * @param args <code>--resume</code> continues an interrupted dump from its checkpoint journal
+	 */
 	public static void main(String[] args) {
 
 			Configuration config = Configuration.getConfiguration();
@@ -37,19 +51,233 @@ public class DerbyDump {
 			LOGGER.debug("\tschema =" + config.getSchemaName());
 			LOGGER.debug("\tbuffer size =" + config.getBufferMaxSize());
 			LOGGER.debug("\toutput file path =" + config.getOutputFilePath());
+			LOGGER.debug("\tfile per table =" + config.getPerTableOutput());
 			LOGGER.debug("\ttruncate tables =" + config.getTruncateTables());
+			LOGGER.debug("\tdump threads =" + config.getDumpThreads());
+			LOGGER.debug("\tcompression =" + config.getCompression());
+			LOGGER.debug("\toutput format =" + config.getOutputFormat());
+			LOGGER.debug("\tcheckpoint interval =" + config.getCheckpointInterval());
+
+			// live throughput, for JConsole or any other JMX client
+			DumpStats.getStats().register();
+
+			if ("export".equals(config.getOutputFormat())) {
+				export(config);
+				return;
+			}
+
+			if ("copy".equals(config.getOutputFormat())) {
+				copy(config);
+				return;
+			}
+
+			if ("columnar".equals(config.getOutputFormat())) {
+				if (config.getPerTableOutput()) {
+					LOGGER.warn("The columnar format is always written into a single file.");
+				}
+				writeColumnar(config);
+				return;
+			}
 
-			OutputThread output = OutputThread.createFromConfiguration();
+			Watermarks watermarks = Watermarks.fromConfiguration();
+			if (config.getPerTableOutput()) {
+				// every table file has its own writer, which the output waits for
+				if (config.getCheckpointInterval() > 0) {
+					LOGGER.warn("Checkpoints are only kept for a single output file.");
+				}
+				TableFilesOutput tableFiles = new TableFilesOutput(new File(config.getOutputFilePath()), 2 * config.getDumpThreads());
+				DatabaseReader reader = new DatabaseReader(tableFiles, watermarks);
+				if (tableFiles.getFailure() != null) {
+					// the marks would skip rows which never made it into the files
+					LOGGER.error("The dump in " + config.getOutputFilePath() + " is incomplete: " + tableFiles.getFailure().getMessage());
+					System.exit(1);
+				}
+				if (!reader.isComplete()) {
+					LOGGER.error("The dump in " + config.getOutputFilePath() + " is incomplete, not every table could be read.");
+					System.exit(1);
+				}
+				saveWatermarks(watermarks);
+				return;
+			}
+
+			Checkpoints checkpoints = openCheckpoints(config, Arrays.asList(args).contains("--resume"));
+			if (checkpoints.isComplete()) {
+				LOGGER.info("The dump in " + config.getOutputFilePath() + " is already complete.");
+				checkpoints.close();
+				return;
+			}
+
+			OutputThread output = checkpoints.isEnabled()
+					? OutputThread.createFromOutputStream(checkpoints.getOutputStream(), 1)
+					: OutputThread.createFromConfiguration();
 			Thread writer = new Thread(output, "File_Writer");
 			writer.start();
 
-			new DatabaseReader(output);
+			DatabaseReader reader = new DatabaseReader(new SingleFileOutput(output), watermarks, checkpoints);
+			// a dump missing some rows must not be taken for complete when it is resumed
+			if (checkpoints.isEnabled() && reader.isComplete()) {
+				output.addMarker(checkpoints.dumpWritten());
+			}
 		try {
 			// Let the writer know that no more data is coming
-			writer.interrupt();
+			output.finish();
 			writer.join();
 
 		} catch (InterruptedException ignored) {}
+		checkpoints.close();
+		if (output.getFailure() != null) {
+			// the marks would skip rows which never made it into the file
+			LOGGER.error("The dump in " + config.getOutputFilePath() + " is incomplete: " + output.getFailure().getMessage());
+			System.exit(1);
+		}
+		if (!reader.isComplete()) {
+			LOGGER.error("The dump in " + config.getOutputFilePath() + " is incomplete, not every table could be read.");
+			System.exit(1);
+		}
+
+		// only once the output is complete, the next dump may start from the new marks
+		saveWatermarks(watermarks);
+	}
+
+	/**
+	 * @param resume Whether to continue from the journal of an earlier dump
+	 * @return the checkpoints of the output file, disabled unless configured
+	 */
+	private static Checkpoints openCheckpoints(Configuration config, boolean resume) {
+		if (config.getCheckpointInterval() == 0) {
+			if (resume) {
+				LOGGER.warn("Cannot resume without checkpoints, set dump.checkpoint.interval. Starting the dump over.");
+			}
+			return new Checkpoints();
+		}
+		if (OutputThread.isCompressed()) {
+			LOGGER.warn("Checkpoints are not kept for compressed output.");
+			return new Checkpoints();
+		}
+
+		String path = config.getOutputFilePath();
+		try {
+			return Checkpoints.open(new File(path), new File(path + ".journal"), config.getCheckpointInterval() * 1024L, resume);
+		} catch (IOException e) {
+			LOGGER.error("Could not open the checkpoint journal of " + path + ": " + e.getMessage());
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void saveWatermarks(Watermarks watermarks) {
+		try {
+			watermarks.save();
+		} catch (IOException e) {
+			LOGGER.error("Could not save the watermarks: " + e.getMessage());
+		}
+	}
+
+	private static void export(Configuration config) {
+		DBConnectionManager db = connect(config);
+		if (db == null) {
+			return;
+		}
 
+		Database database = MetadataCache.fromConfiguration().readDatabase(db.getConnection());
+		boolean failed;
+		try {
+			Map<Table, SQLException> failures = new TableExport(new File(config.getOutputFilePath())).export(database.getTables(), db, config.getSchemaName());
+			for (Map.Entry<Table, SQLException> failure : failures.entrySet()) {
+				System.out.println(failure.getKey().getTableName() + ": failed: " + failure.getValue().getMessage());
+			}
+			failed = !failures.isEmpty();
+		} catch (IOException e) {
+			LOGGER.error("Could not write to the directory " + config.getOutputFilePath() + ": " + e.getMessage());
+			failed = true;
+		}
+		close(db);
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	private static void copy(Configuration config) {
+		if (config.getCopyUrl() == null) {
+			LOGGER.error("Set output.copy.url to the database the tables are copied into.");
+			return;
+		}
+		DBConnectionManager db = connect(config);
+		if (db == null) {
+			return;
+		}
+
+		Database database = MetadataCache.fromConfiguration().readDatabase(db.getConnection());
+		boolean failed = false;
+		try {
+			for (DerbyRestore.TableResult result : new TableCopy(config.getCopyUrl()).copy(database.getTables(), db, config.getSchemaName())) {
+				System.out.println(result);
+				failed |= result.getFailure() != null;
+			}
+		} catch (InterruptedException e) {
+			LOGGER.error("Interrupted while copying the tables.");
+			failed = true;
+		}
+		close(db);
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	private static void writeColumnar(Configuration config) {
+		DBConnectionManager db = connect(config);
+		if (db == null) {
+			return;
+		}
+
+		File file = new File(config.getOutputFilePath());
+		OutputStream out;
+		try {
+			out = new FileOutputStream(file);
+		} catch (IOException e) {
+			LOGGER.error("Could not write to the file " + config.getOutputFilePath() + ": " + e.getMessage());
+			close(db);
+			System.exit(1);
+			return;
+		}
+		if (OutputThread.isCompressed()) {
+			out = new ParallelGzipOutputStream(out, config.getCompressionLevel(), config.getCompressionBlockSize() * 1024, config.getCompressionThreads());
+		}
+
+		Database database = MetadataCache.fromConfiguration().readDatabase(db.getConnection());
+		boolean failed;
+		try (ColumnarWriter writer = new ColumnarWriter(out, config.getRowGroupSize())) {
+			Map<Table, SQLException> failures = writer.writeTables(database.getTables(), db.getConnection(), config.getSchemaName());
+			for (Map.Entry<Table, SQLException> failure : failures.entrySet()) {
+				System.out.println(failure.getKey().getTableName() + ": failed: " + failure.getValue().getMessage());
+			}
+			failed = !failures.isEmpty();
+		} catch (IOException e) {
+			LOGGER.error("Could not write to the file " + config.getOutputFilePath() + ": " + e.getMessage());
+			failed = true;
+		}
+		close(db);
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return the connection pool, or null if the database could not be reached
+	 */
+	private static DBConnectionManager connect(Configuration config) {
+		try {
+			return new DBConnectionManager(config.getDerbyUrl());
+		} catch (Exception e) {
+			LOGGER.error("Could not establish Database connection.", e);
+			return null;
+		}
+	}
+
+	private static void close(DBConnectionManager db) {
+		try {
+			db.close();
+		} catch (SQLException e) {
+			LOGGER.error("Could not close database connection :" + e.getErrorCode() + " - " + e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,845 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads SQL dumps into a database through JDBC, several tables at a time.
+ * <p>
+ * Usage: <code>DerbyRestore &lt;dump file | directory&gt; &lt;jdbc url&gt;</code>. A directory is
+ * the output of <code>output.perTable</code>, whose files are loaded in the order of their manifest,
+ * <code>restore.threads</code> at a time. The statements of a single file are handed out table by
+ * table to the same number of connections. A single thread reads the file, and spools the statements
+ * of tables whose load cannot keep up to temporary files, so it moves on to the next tables while
+ * earlier ones are still loading. Compressed dumps are recognised by their gzip header.
+ * <p>
+ * The rows of INSERT statements are bound to prepared statements and sent in batches, committing
+ * every <code>restore.commitRows</code> rows and at the end of every table. Other statements are
+ * run as they are, with the backslash escapes of their string literals resolved. The
+ * <code>AUTOCOMMIT</code> and <code>COMMIT</code> commands meant for ij are skipped. Any statement
+ * which does not belong to a table waits for all the tables before it.
+ * <p>
+ * Unless <code>dump.waitForParents</code> is turned off, a table is not loaded before the tables
+ * its foreign keys refer to in the target database, if those come earlier in the dump, so the
+ * target may keep its constraints. A table is only handed to a thread once its parents are done,
+ * so tables waiting for their parents never keep independent tables from starting.
+ */
+public class DerbyRestore {
+
+	private static final Logger LOGGER = LogManager.getLogger(DerbyRestore.class);
+
+	private static final Pattern TABLE_STATEMENT = Pattern.compile(
+			"^(?:INSERT\\s+INTO|TRUNCATE\\s+TABLE|DELETE\\s+FROM)\\s+\"((?:[^\"]|\"\")+)\"", Pattern.CASE_INSENSITIVE);
+	private static final Pattern IGNORED_STATEMENT = Pattern.compile("^(?:AUTOCOMMIT\\s+(?:ON|OFF)|COMMIT)$", Pattern.CASE_INSENSITIVE);
+	private static final Pattern NUMBER = Pattern.compile("-?[0-9]+(?:\\.[0-9]*)?(?:[eE][-+]?[0-9]+)?");
+
+	/**
+	 * Most rows sent to the database in one batch
+	 */
+	private static final int BATCH_ROWS = 1000;
+	/**
+	 * Statements of a single file held in memory for the connection loading their table, and the
+	 * statements in each of its spool files
+	 */
+	private static final int QUEUED_STATEMENTS = 16;
+	private static final String END = new String("END");
+
+	private final String url;
+	private final int threads;
+	private final int commitRows;
+	private final boolean waitForParents;
+
+	/**
+	 * @param url        The database to load into
+	 * @param threads    Number of tables loaded at the same time, each on its own connection
+	 * @param commitRows Rows inserted between two commits, or 0 to commit once per table
+	 */
+	public DerbyRestore(String url, int threads, int commitRows) {
+		this.url = url;
+		this.threads = Math.max(1, threads);
+		this.commitRows = commitRows;
+		this.waitForParents = Configuration.getConfiguration().getWaitForParents();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: DerbyRestore <dump file | directory> <jdbc url>");
+			System.exit(1);
+		}
+
+		Configuration config = Configuration.getConfiguration();
+		DerbyRestore restore = new DerbyRestore(args[1], config.getRestoreThreads(), config.getRestoreCommitRows());
+		boolean failed = false;
+		for (TableResult result : restore.restore(new File(args[0]))) {
+			System.out.println(result);
+			failed |= result.getFailure() != null;
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Load a dump file, or the table files of a directory.
+	 *
+	 * @return the outcome for every table, in the order they were started
+	 */
+	public List<TableResult> restore(File dump) throws IOException, SQLException, InterruptedException {
+		BlockingQueue<Connection> connections = new ArrayBlockingQueue<Connection>(threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		// finds the foreign keys while the other connections are loading
+		Connection keys = null;
+		try {
+			for (int i = 0; i < threads; i++) {
+				Connection connection = DriverManager.getConnection(url);
+				connection.setAutoCommit(false);
+				connections.add(connection);
+			}
+			if (waitForParents) {
+				keys = DriverManager.getConnection(url);
+			}
+			DatabaseMetaData metaData = keys == null ? null : keys.getMetaData();
+			List<Future<TableResult>> loads = dump.isDirectory()
+					? restoreDirectory(dump, connections, executor, metaData)
+					: restoreFile(dump, connections, executor, metaData);
+			return results(loads);
+		} finally {
+			executor.shutdown();
+			if (keys != null) {
+				keys.close();
+			}
+			for (Connection connection : connections) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					LOGGER.warn("Could not close a connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private List<Future<TableResult>> restoreDirectory(File directory, BlockingQueue<Connection> connections, ExecutorService executor,
+	                                                   DatabaseMetaData metaData) throws IOException, SQLException {
+		File manifest = new File(directory, TableFilesOutput.MANIFEST);
+		List<Future<TableResult>> loads = new ArrayList<Future<TableResult>>();
+		Map<String, CompletableFuture<TableResult>> lastLoads = new HashMap<String, CompletableFuture<TableResult>>();
+		for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+			if (line.startsWith("#") || line.trim().isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			String tableName = fields[1];
+			File file = new File(directory, fields[2]);
+			long expectedRows = Long.parseLong(fields[3]);
+
+			List<CompletableFuture<TableResult>> parents = parentLoads(tableName, lastLoads, metaData);
+			CompletableFuture<TableResult> load = afterParents(parents, () -> {
+				warnAboutFailedParents(tableName, parents);
+				try (SqlScriptReader script = open(file)) {
+					TableResult result = load(tableName, script::next, connections);
+					if (result.getFailure() == null && result.getRows() != expectedRows) {
+						LOGGER.warn("Loaded " + result.getRows() + " rows of " + tableName + ", but the manifest lists " + expectedRows);
+					}
+					return result;
+				}
+			}, executor);
+			loads.add(load);
+			lastLoads.put(tableName, load);
+		}
+		return loads;
+	}
+
+	private List<Future<TableResult>> restoreFile(File file, BlockingQueue<Connection> connections, ExecutorService executor,
+	                                              DatabaseMetaData metaData) throws IOException, SQLException, InterruptedException {
+		List<Future<TableResult>> loads = new ArrayList<Future<TableResult>>();
+		Map<String, CompletableFuture<TableResult>> lastLoads = new HashMap<String, CompletableFuture<TableResult>>();
+		String currentTable = null;
+		TableStatements current = null;
+
+		try (SqlScriptReader script = open(file)) {
+			String statement;
+			while ((statement = script.next()) != null) {
+				if (IGNORED_STATEMENT.matcher(statement).matches()) {
+					continue;
+				}
+				String tableName = tableName(statement);
+				if (tableName == null || !tableName.equals(currentTable)) {
+					if (current != null) {
+						current.end();
+						current = null;
+					}
+					currentTable = tableName;
+				}
+
+				if (tableName == null) {
+					// statements outside of tables keep their place between them
+					results(loads);
+					executeAlone(statement, connections);
+					continue;
+				}
+
+				if (current == null) {
+					// a table found again later in the file is not loaded twice at the same time
+					Future<TableResult> earlier = lastLoads.get(tableName);
+					if (earlier != null) {
+						results(earlier);
+					}
+					TableStatements statements = new TableStatements();
+					List<CompletableFuture<TableResult>> parents = parentLoads(tableName, lastLoads, metaData);
+					CompletableFuture<TableResult> load = afterParents(parents, () -> {
+						warnAboutFailedParents(tableName, parents);
+						return load(tableName, statements, connections);
+					}, executor);
+					loads.add(load);
+					lastLoads.put(tableName, load);
+					current = statements;
+				}
+				current.put(statement);
+			}
+		} finally {
+			if (current != null) {
+				current.end();
+			}
+		}
+		return loads;
+	}
+
+	/**
+	 * @param lastLoads The latest load of every table started so far
+	 * @param metaData  The metadata of the target, or null if tables need not wait for their parents
+	 * @return the loads of the tables the foreign keys of the table refer to, within the schema the
+	 * dump is loaded into. These were started earlier, so waiting for them cannot deadlock even where
+	 * tables refer to each other.
+	 */
+	static List<CompletableFuture<TableResult>> parentLoads(String tableName, Map<String, CompletableFuture<TableResult>> lastLoads,
+	                                                        DatabaseMetaData metaData) throws SQLException {
+		List<CompletableFuture<TableResult>> parents = new ArrayList<CompletableFuture<TableResult>>();
+		if (metaData == null) {
+			return parents;
+		}
+		// the statements of the dump name their tables without a schema
+		String schema = metaData.getConnection().getSchema();
+		try (ResultSet foreignKeys = metaData.getImportedKeys(null, schema, tableName)) {
+			while (foreignKeys.next()) {
+				String parent = foreignKeys.getString("PKTABLE_NAME");
+				if (!schema.equals(foreignKeys.getString("PKTABLE_SCHEM"))) {
+					continue;
+				}
+				if (!parent.equals(tableName) && lastLoads.containsKey(parent) && !parents.contains(lastLoads.get(parent))) {
+					parents.add(lastLoads.get(parent));
+				}
+			}
+		}
+		return parents;
+	}
+
+	/**
+	 * Run a task on the executor once the parents are done, without holding a thread meanwhile.
+	 * The task also runs if a parent failed.
+	 *
+	 * @param parents  The loads which must end first
+	 * @param task     Loads the table
+	 * @param executor Runs the task
+	 * @return the outcome of the task
+	 */
+	static CompletableFuture<TableResult> afterParents(List<CompletableFuture<TableResult>> parents, Callable<TableResult> task, Executor executor) {
+		CompletableFuture<TableResult> result = new CompletableFuture<TableResult>();
+		CompletableFuture.allOf(parents.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, failure) -> {
+			try {
+				executor.execute(() -> {
+					try {
+						result.complete(task.call());
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * A table whose parent failed is still loaded, and fails in turn only where its rows refer to
+	 * rows which are missing.
+	 *
+	 * @param parents The loads of the parents, all done
+	 */
+	private static void warnAboutFailedParents(String tableName, List<CompletableFuture<TableResult>> parents) throws InterruptedException {
+		for (Future<TableResult> parent : parents) {
+			TableResult result = results(parent);
+			if (result.getFailure() != null) {
+				LOGGER.warn("Loading table " + tableName + " although its parent " + result.getTableName() + " failed");
+			}
+		}
+	}
+
+	private static SqlScriptReader open(File file) throws IOException {
+		return new SqlScriptReader(new InputStreamReader(ColumnarRestore.open(file.getPath()), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the table an INSERT, TRUNCATE or DELETE statement is for, or null for any other statement
+	 */
+	static String tableName(String statement) {
+		Matcher matcher = TABLE_STATEMENT.matcher(statement);
+		return matcher.find() ? matcher.group(1).replace("\"\"", "\"") : null;
+	}
+
+	private void executeAlone(String statement, BlockingQueue<Connection> connections) throws SQLException, InterruptedException {
+		Connection connection = connections.take();
+		try (Statement sql = connection.createStatement()) {
+			sql.execute(SqlScriptReader.toStandardSql(statement));
+			connection.commit();
+		} finally {
+			connections.put(connection);
+		}
+	}
+
+	private static List<TableResult> results(List<Future<TableResult>> loads) throws InterruptedException {
+		List<TableResult> results = new ArrayList<TableResult>();
+		for (Future<TableResult> load : loads) {
+			results.add(results(load));
+		}
+		return results;
+	}
+
+	private static TableResult results(Future<TableResult> load) throws InterruptedException {
+		try {
+			return load.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Run the statements of one table on a connection of its own.
+	 */
+	private TableResult load(String tableName, StatementSource statements, BlockingQueue<Connection> connections) throws Exception {
+		Connection connection = connections.take();
+		TableLoader loader = new TableLoader(connection);
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			String statement;
+			while ((statement = statements.next()) != null && statement != END) {
+				loader.execute(statement);
+			}
+			loader.commit();
+		} catch (SQLException | RuntimeException e) {
+			failure = e;
+			LOGGER.error("Could not load table " + tableName + ": " + e.getMessage());
+			try {
+				connection.rollback();
+			} catch (SQLException rollback) {
+				LOGGER.warn("Could not roll back table " + tableName + ": " + rollback.getMessage());
+			}
+			// the reader of a single file keeps handing out statements until the table ends
+			String statement;
+			while ((statement = statements.next()) != null && statement != END) {
+				// skipped
+			}
+		} finally {
+			loader.close();
+			connections.put(connection);
+		}
+
+		TableResult result = new TableResult(tableName, loader.rows, System.nanoTime() - start, failure);
+		LOGGER.info(result.toString());
+		return result;
+	}
+
+	private interface StatementSource {
+		/**
+		 * @return the next statement, or null or END once there are no more
+		 */
+		String next() throws IOException, InterruptedException;
+	}
+
+	/**
+	 * The statements of one table in a single file, handed from the thread reading the file to
+	 * the one loading the table. The reader never waits for the load: until the load has started,
+	 * and whenever it falls more than {@link #QUEUED_STATEMENTS} statements behind, the statements
+	 * are spooled to temporary files of that many statements each, which the load reads back in turn.
+	 */
+	private static class TableStatements implements StatementSource {
+		private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+		/**
+		 * Statements held in the queue rather than in a spool file
+		 */
+		private final AtomicInteger queued = new AtomicInteger();
+		private volatile boolean started = false;
+
+		// used by the reader
+		private File spool;
+		private DataOutputStream spoolOut;
+		private int spooled;
+
+		// used by the load
+		private File reading;
+		private DataInputStream spoolIn;
+
+		void put(String statement) throws IOException {
+			if (spoolOut == null && started && queued.get() < QUEUED_STATEMENTS) {
+				queued.incrementAndGet();
+				queue.add(statement);
+				return;
+			}
+			if (spoolOut == null) {
+				spool = File.createTempFile("derbyrestore-", ".spool");
+				spool.deleteOnExit();
+				spoolOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool)));
+				spooled = 0;
+			}
+			byte[] bytes = statement.getBytes(StandardCharsets.UTF_8);
+			spoolOut.writeInt(bytes.length);
+			spoolOut.write(bytes);
+			if (++spooled == QUEUED_STATEMENTS) {
+				closeSpool();
+			}
+		}
+
+		/**
+		 * Called by the reader after the last statement of the table, also if reading failed.
+		 */
+		void end() throws IOException {
+			try {
+				if (spoolOut != null) {
+					closeSpool();
+				}
+			} finally {
+				queue.add(END);
+			}
+		}
+
+		private void closeSpool() throws IOException {
+			DataOutputStream out = spoolOut;
+			spoolOut = null;
+			out.close();
+			queue.add(spool);
+		}
+
+		@Override
+		public String next() throws IOException, InterruptedException {
+			started = true;
+			while (true) {
+				if (spoolIn != null) {
+					try {
+						int length = spoolIn.readInt();
+						byte[] bytes = new byte[length];
+						spoolIn.readFully(bytes);
+						return new String(bytes, StandardCharsets.UTF_8);
+					} catch (EOFException e) {
+						spoolIn.close();
+						spoolIn = null;
+						reading.delete();
+					}
+				}
+				Object item = queue.take();
+				if (item instanceof File) {
+					reading = (File) item;
+					spoolIn = new DataInputStream(new BufferedInputStream(new FileInputStream(reading)));
+				} else {
+					if (item != END) {
+						queued.decrementAndGet();
+					}
+					return (String) item;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs statements on one connection, binding the rows of INSERT statements to batches.
+	 */
+	private class TableLoader {
+		private final Connection connection;
+		private final Map<String, PreparedStatement> inserts = new HashMap<String, PreparedStatement>();
+		private final Map<PreparedStatement, int[]> parameterTypes = new HashMap<PreparedStatement, int[]>();
+		private PreparedStatement pending;
+		private int pendingRows;
+		private long uncommittedRows;
+		private long rows;
+
+		TableLoader(Connection connection) {
+			this.connection = connection;
+		}
+
+		void execute(String statement) throws SQLException {
+			if (IGNORED_STATEMENT.matcher(statement).matches()) {
+				return;
+			}
+			Insert insert = Insert.parse(statement);
+			if (insert == null) {
+				flush();
+				try (Statement sql = connection.createStatement()) {
+					sql.execute(SqlScriptReader.toStandardSql(statement));
+				}
+				return;
+			}
+
+			PreparedStatement prepared = inserts.get(insert.prefix);
+			if (prepared == null) {
+				prepared = connection.prepareStatement(insert.getPreparedSql());
+				inserts.put(insert.prefix, prepared);
+				parameterTypes.put(prepared, parameterTypes(prepared, insert.columns));
+			}
+			if (prepared != pending) {
+				// rows are inserted in the order they come, whatever statement they belong to
+				flush();
+				pending = prepared;
+			}
+
+			int[] types = parameterTypes.get(prepared);
+			for (Object[] row : insert.rows) {
+				for (int i = 0; i < row.length; i++) {
+					bind(prepared, i + 1, row[i], types[i]);
+				}
+				prepared.addBatch();
+				pendingRows++;
+				rows++;
+				uncommittedRows++;
+				if (pendingRows >= BATCH_ROWS) {
+					flush();
+				}
+			}
+			if (commitRows > 0 && uncommittedRows >= commitRows) {
+				commit();
+			}
+		}
+
+		private int[] parameterTypes(PreparedStatement prepared, int columns) {
+			int[] types = new int[columns];
+			try {
+				ParameterMetaData metaData = prepared.getParameterMetaData();
+				for (int i = 0; i < columns; i++) {
+					types[i] = metaData.getParameterType(i + 1);
+				}
+			} catch (SQLException e) {
+				// without parameter types nulls are sent as VARCHAR, which most databases convert
+				Arrays.fill(types, Types.VARCHAR);
+			}
+			return types;
+		}
+
+		private void bind(PreparedStatement prepared, int index, Object value, int type) throws SQLException {
+			if (value == null) {
+				prepared.setNull(index, type);
+			} else if (value instanceof String) {
+				prepared.setString(index, (String) value);
+			} else if (value instanceof byte[]) {
+				prepared.setBytes(index, (byte[]) value);
+			} else if (value instanceof Boolean) {
+				prepared.setBoolean(index, (Boolean) value);
+			} else {
+				prepared.setBigDecimal(index, (BigDecimal) value);
+			}
+		}
+
+		private void flush() throws SQLException {
+			if (pendingRows > 0) {
+				pending.executeBatch();
+				pendingRows = 0;
+			}
+		}
+
+		void commit() throws SQLException {
+			flush();
+			connection.commit();
+			uncommittedRows = 0;
+		}
+
+		void close() {
+			for (PreparedStatement prepared : inserts.values()) {
+				try {
+					prepared.close();
+				} catch (SQLException e) {
+					LOGGER.warn("Could not close a statement: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * An INSERT statement written by the dump, taken apart into its rows.
+	 */
+	static class Insert {
+		/**
+		 * The statement up to the column list, which tells apart the statements of different tables
+		 */
+		final String prefix;
+		final int columns;
+		final List<Object[]> rows = new ArrayList<Object[]>();
+
+		private final String sql;
+		private int position;
+
+		private Insert(String sql) {
+			this.sql = sql;
+			int table = sql.indexOf('"');
+			position = sql.indexOf('"', table + 1);
+			while (position + 1 < sql.length() && sql.charAt(position + 1) == '"') {
+				position = sql.indexOf('"', position + 2);
+			}
+			position++;
+			skipWhitespace();
+			expect('(');
+			int columnsEnd = sql.indexOf(')', position);
+			if (columnsEnd < 0) {
+				throw new IllegalArgumentException("no column list");
+			}
+			columns = sql.substring(position, columnsEnd).split(",").length;
+			position = columnsEnd + 1;
+			prefix = sql.substring(0, position);
+		}
+
+		/**
+		 * @return the rows of the statement, or null if it is not an INSERT with literal values
+		 */
+		static Insert parse(String sql) {
+			if (!sql.regionMatches(true, 0, "INSERT", 0, 6)) {
+				return null;
+			}
+			try {
+				Insert insert = new Insert(sql);
+				insert.parseValues();
+				return insert;
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				LOGGER.debug("Running an INSERT statement as it is: " + e.getMessage());
+				return null;
+			}
+		}
+
+		String getPreparedSql() {
+			StringBuilder prepared = new StringBuilder(prefix).append(" VALUES (");
+			for (int i = 0; i < columns; i++) {
+				prepared.append(i == 0 ? "?" : ",?");
+			}
+			return prepared.append(')').toString();
+		}
+
+		private void parseValues() {
+			skipWhitespace();
+			if (!sql.regionMatches(true, position, "VALUES", 0, 6)) {
+				throw new IllegalArgumentException("no VALUES");
+			}
+			position += 6;
+			while (true) {
+				skipWhitespace();
+				expect('(');
+				Object[] row = new Object[columns];
+				for (int i = 0; i < columns; i++) {
+					if (i > 0) {
+						expect(',');
+					}
+					skipWhitespace();
+					row[i] = parseValue();
+					skipWhitespace();
+				}
+				expect(')');
+				rows.add(row);
+				skipWhitespace();
+				if (position == sql.length()) {
+					return;
+				}
+				expect(',');
+			}
+		}
+
+		private Object parseValue() {
+			char c = sql.charAt(position);
+			if (c == '\'') {
+				return parseString();
+			}
+			if (sql.regionMatches(true, position, "CAST(X'", 0, 7)) {
+				position += 6;
+				byte[] bytes = parseHex();
+				skipWhitespace();
+				if (!sql.regionMatches(true, position, "as BLOB)", 0, 8)) {
+					throw new IllegalArgumentException("unexpected binary literal");
+				}
+				position += 8;
+				return bytes;
+			}
+			if (c == 'X' || c == 'x') {
+				position++;
+				return parseHex();
+			}
+
+			int start = position;
+			while (position < sql.length() && sql.charAt(position) != ',' && sql.charAt(position) != ')') {
+				position++;
+			}
+			String token = sql.substring(start, position).trim();
+			if (token.equalsIgnoreCase("NULL")) {
+				return null;
+			}
+			if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+				return Boolean.valueOf(token.toLowerCase(Locale.ROOT));
+			}
+			if (NUMBER.matcher(token).matches()) {
+				return new BigDecimal(token);
+			}
+			throw new IllegalArgumentException("unknown literal " + token);
+		}
+
+		private String parseString() {
+			StringBuilder value = new StringBuilder();
+			position++;
+			while (true) {
+				char c = sql.charAt(position++);
+				if (c == '\\') {
+					value.append(SqlScriptReader.unescape(sql.charAt(position++)));
+				} else if (c != '\'') {
+					value.append(c);
+				} else if (position < sql.length() && sql.charAt(position) == '\'') {
+					value.append('\'');
+					position++;
+				} else {
+					return value.toString();
+				}
+			}
+		}
+
+		private byte[] parseHex() {
+			expect('\'');
+			int end = sql.indexOf('\'', position);
+			if (end < 0 || (end - position) % 2 != 0) {
+				throw new IllegalArgumentException("unexpected binary literal");
+			}
+			byte[] bytes = new byte[(end - position) / 2];
+			for (int i = 0; i < bytes.length; i++) {
+				int high = Character.digit(sql.charAt(position + 2 * i), 16);
+				int low = Character.digit(sql.charAt(position + 2 * i + 1), 16);
+				if (high < 0 || low < 0) {
+					throw new IllegalArgumentException("unexpected binary literal");
+				}
+				bytes[i] = (byte) (high << 4 | low);
+			}
+			position = end + 1;
+			return bytes;
+		}
+
+		private void skipWhitespace() {
+			while (position < sql.length() && Character.isWhitespace(sql.charAt(position))) {
+				position++;
+			}
+		}
+
+		private void expect(char c) {
+			if (position >= sql.length() || sql.charAt(position) != c) {
+				throw new IllegalArgumentException("expected " + c + " at " + position);
+			}
+			position++;
+		}
+	}
+
+	/**
+	 * How the load of one table went.
+	 */
+	public static class TableResult {
+		private final String tableName;
+		private final long rows;
+		private final long nanos;
+		private final Exception failure;
+
+		TableResult(String tableName, long rows, long nanos, Exception failure) {
+			this.tableName = tableName;
+			this.rows = rows;
+			this.nanos = nanos;
+			this.failure = failure;
+		}
+
+		public String getTableName() {
+			return tableName;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public double getSeconds() {
+			return nanos / 1e9;
+		}
+
+		public double getRowsPerSecond() {
+			return nanos == 0 ? 0 : rows / getSeconds();
+		}
+
+		/**
+		 * @return why the table could not be loaded, or null if it was
+		 */
+		public Exception getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			if (failure != null) {
+				return String.format(Locale.ROOT, "%s: failed after %d rows: %s", tableName, rows, failure.getMessage());
+			}
+			return String.format(Locale.ROOT, "%s: %d rows in %.1f s, %.0f rows/s", tableName, rows, getSeconds(), getRowsPerSecond());
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides where the statements of each table are written.
+ * <p>
+ * The reader calls {@link #begin()}, then {@link #openTable(Table)} and {@link #closeTable(Table, AtomicLong)}
+ * for every table in the order it reads them, and {@link #end()} once all table data has been read.
+ */
+public interface DumpOutput {
+
+	/**
+	 * Called once before the first table.
+	 */
+	void begin();
+
+	/**
+	 * @return true if every table has an output of its own, so that the tables may be read in any
+	 * order. Otherwise they are read in the order their statements are written.
+	 */
+	default boolean isTableOrderFree() {
+		return false;
+	}
+
+	/**
+	 * @param table The table about to be read
+	 * @return the output receiving the statements of the table, in the order its sections are opened
+	 */
+	OutputThread openTable(Table table);
+
+	/**
+	 * Called once every section of the table has been opened, possibly before they are filled.
+	 *
+	 * @param table    The table
+	 * @param rowCount Number of rows read from the table, complete by the time {@link #end()} is called
+	 */
+	void closeTable(Table table, AtomicLong rowCount);
+
+	/**
+	 * Called once after every table has been read completely.
+	 */
+	void end();
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the running dump, which the readers and the writer update as they go and which
+ * are published as {@link #OBJECT_NAME}.
+ */
+public class DumpStats implements DumpStatsMXBean {
+
+	private static final Logger LOGGER = LogManager.getLogger(DumpStats.class);
+
+	public static final String OBJECT_NAME = "au.com.ish.derbydump:type=DumpStats";
+
+	private static DumpStats stats;
+
+	private final ConcurrentMap<String, TableStats> tables = new ConcurrentHashMap<String, TableStats>();
+	private final LongAdder charactersWritten = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder readerBlocked = new LongAdder();
+	private final LongAdder writerBlocked = new LongAdder();
+	private final LongAdder charactersSpooled = new LongAdder();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+
+	private final Rate rowRate = new Rate();
+	private final Rate readRate = new Rate();
+	private final Rate writeRate = new Rate();
+	private final Rate readBytesRate = new Rate();
+	private final Rate writeBytesRate = new Rate();
+
+	public static synchronized DumpStats getStats() {
+		if (stats == null) {
+			stats = new DumpStats();
+		}
+		return stats;
+	}
+
+	/**
+	 * Publish the statistics in the platform MBean server, unless they already are.
+	 */
+	public void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			LOGGER.warn("Could not register the dump statistics with JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Called by a reader before it reads the rows of a table, or of one key range of it.
+	 *
+	 * @return the statistics of the table, which the reader updates and finally closes
+	 */
+	TableStats startTable(Table table) {
+		TableStats tableStats = tables.computeIfAbsent(table.getTableName(), name -> new TableStats());
+		tableStats.readers.incrementAndGet();
+		return tableStats;
+	}
+
+	/**
+	 * @return the statistics of the table, without counting a reader
+	 */
+	TableStats getTableStats(Table table) {
+		return tables.computeIfAbsent(table.getTableName(), name -> new TableStats());
+	}
+
+	/**
+	 * Called by the writer for every piece of output.
+	 */
+	void written(int characters) {
+		charactersWritten.add(characters);
+	}
+
+	/**
+	 * Called as the output, encoded in UTF-8, reaches the stream below the writer.
+	 */
+	void writtenBytes(int bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	void queued() {
+		queueDepth.incrementAndGet();
+	}
+
+	void dequeued() {
+		queueDepth.decrementAndGet();
+	}
+
+	void readerBlocked(long nanos) {
+		readerBlocked.add(nanos);
+	}
+
+	void writerBlocked(long nanos) {
+		writerBlocked.add(nanos);
+	}
+
+	/**
+	 * Called as a section spools output which the writer has not got to yet.
+	 */
+	void spooled(int characters) {
+		charactersSpooled.add(characters);
+	}
+
+	@Override
+	public String[] getCurrentTables() {
+		List<String> current = new ArrayList<String>();
+		for (Map.Entry<String, TableStats> entry : tables.entrySet()) {
+			if (entry.getValue().readers.get() > 0) {
+				current.add(entry.getKey());
+			}
+		}
+		return current.toArray(new String[current.size()]);
+	}
+
+	@Override
+	public long getRowsRead() {
+		long rows = 0;
+		for (TableStats tableStats : tables.values()) {
+			rows += tableStats.rows.sum();
+		}
+		return rows;
+	}
+
+	@Override
+	public double getRowsReadPerSecond() {
+		return rowRate.sample(getRowsRead());
+	}
+
+	@Override
+	public long getCharactersRead() {
+		long characters = 0;
+		for (TableStats tableStats : tables.values()) {
+			characters += tableStats.characters.sum();
+		}
+		return characters;
+	}
+
+	@Override
+	public double getCharactersReadPerSecond() {
+		return readRate.sample(getCharactersRead());
+	}
+
+	@Override
+	public long getBytesRead() {
+		long bytes = 0;
+		for (TableStats tableStats : tables.values()) {
+			bytes += tableStats.bytes.sum();
+		}
+		return bytes;
+	}
+
+	@Override
+	public double getBytesReadPerSecond() {
+		return readBytesRate.sample(getBytesRead());
+	}
+
+	@Override
+	public long getCharactersWritten() {
+		return charactersWritten.sum();
+	}
+
+	@Override
+	public double getCharactersWrittenPerSecond() {
+		return writeRate.sample(getCharactersWritten());
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public double getBytesWrittenPerSecond() {
+		return writeBytesRate.sample(getBytesWritten());
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	@Override
+	public double getReaderBlockedSeconds() {
+		return toSeconds(readerBlocked.sum());
+	}
+
+	@Override
+	public double getWriterBlockedSeconds() {
+		return toSeconds(writerBlocked.sum());
+	}
+
+	@Override
+	public long getCharactersSpooled() {
+		return charactersSpooled.sum();
+	}
+
+	@Override
+	public Map<String, TableStats> getTableStats() {
+		return new TreeMap<String, TableStats>(tables);
+	}
+
+	private static double toSeconds(long nanos) {
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * Cumulative statistics of one table.
+	 */
+	public static class TableStats {
+		private final AtomicInteger readers = new AtomicInteger();
+		private final LongAdder rows = new LongAdder();
+		private final LongAdder characters = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder readTime = new LongAdder();
+
+		void addRow() {
+			rows.increment();
+		}
+
+		void addCharacters(int count) {
+			characters.add(count);
+		}
+
+		void addBytes(long count) {
+			bytes.add(count);
+		}
+
+		/**
+		 * Called by the reader once it is done.
+		 *
+		 * @param nanos Time the reader took
+		 */
+		void finish(long nanos) {
+			readTime.add(nanos);
+			readers.decrementAndGet();
+		}
+
+		public long getRows() {
+			return rows.sum();
+		}
+
+		public long getCharacters() {
+			return characters.sum();
+		}
+
+		/**
+		 * @return the size of the SQL produced for the table, encoded in UTF-8
+		 */
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		/**
+		 * @return time spent reading the table, added up over all readers which have finished
+		 */
+		public double getReadSeconds() {
+			return toSeconds(readTime.sum());
+		}
+	}
+
+	/**
+	 * The rate of a counter since the previous sample which is at least a second old.
+	 */
+	private static class Rate {
+		private static final long INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+		private long lastTime = System.nanoTime();
+		private long lastCount;
+		private double perSecond;
+
+		synchronized double sample(long count) {
+			long now = System.nanoTime();
+			if (now - lastTime >= INTERVAL) {
+				perSecond = (count - lastCount) * (double) INTERVAL / (now - lastTime);
+				lastTime = now;
+				lastCount = count;
+			}
+			return perSecond;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import java.util.Map;
+
+/**
+ * Live throughput of a running dump, as seen through JMX.
+ * <p>
+ * Rates are averaged since the previous sample which is at least a second old, so a poller
+ * sees the average over its own polling interval. Data volumes are counted both in characters
+ * of the SQL output and in bytes of that SQL encoded in UTF-8, before any compression.
+ */
+public interface DumpStatsMXBean {
+
+	/**
+	 * @return the tables being read right now
+	 */
+	String[] getCurrentTables();
+
+	long getRowsRead();
+
+	double getRowsReadPerSecond();
+
+	/**
+	 * @return characters of SQL produced by the readers
+	 */
+	long getCharactersRead();
+
+	double getCharactersReadPerSecond();
+
+	/**
+	 * @return bytes of SQL produced by the readers, once encoded
+	 */
+	long getBytesRead();
+
+	double getBytesReadPerSecond();
+
+	/**
+	 * @return characters handed to the output stream by the writer
+	 */
+	long getCharactersWritten();
+
+	double getCharactersWrittenPerSecond();
+
+	/**
+	 * @return bytes handed to the output stream by the writer, before compression. Only counted for
+	 * output written to a stream.
+	 */
+	long getBytesWritten();
+
+	double getBytesWrittenPerSecond();
+
+	/**
+	 * @return chunks of output waiting for the writer
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return total time readers waited for room in the output queue. A growing value means the
+	 * dump is bound by the disk or the compression.
+	 */
+	double getReaderBlockedSeconds();
+
+	/**
+	 * @return total time the writer waited for data. A growing value means the dump is bound by
+	 * the database or by encoding the rows.
+	 */
+	double getWriterBlockedSeconds();
+
+	/**
+	 * @return characters which readers got ahead of the writer by, and which were spooled to
+	 * temporary files rather than held in memory. Each of them is written to disk once more.
+	 */
+	long getCharactersSpooled();
+
+	/**
+	 * @return cumulative statistics of every table read so far, by table name
+	 */
+	Map<String, DumpStats.TableStats> getTableStats();
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a table into ranges of its key column so that the ranges can be read on separate
+ * connections at the same time.
+ */
+class KeyRangePartitioner {
+
+	private final int partitions;
+
+	KeyRangePartitioner(int partitions) {
+		this.partitions = partitions;
+	}
+
+	/**
+	 * The key range between MIN and MAX is cut into equally wide slices. Tables without a key
+	 * column, or without any key values, are read in a single scan.
+	 *
+	 * @param table The table to split
+	 * @param connection Used to look up the lowest and highest key
+	 * @param schema The name of the schema we are using
+	 *
+	 * @return select queries which together return every row of the table once, in key order
+	 */
+	List<String> getSelectQueries(Table table, Connection connection, String schema) throws SQLException {
+		if (partitions < 2 || table.getKeyColumn() == null) {
+			return Collections.singletonList(table.getSelectQuery(schema));
+		}
+
+		long min;
+		long max;
+		try (Statement statement = connection.createStatement();
+		     ResultSet range = statement.executeQuery(table.getKeyRangeQuery(schema))) {
+			range.next();
+			min = range.getLong(1);
+			if (range.wasNull()) {
+				return Collections.singletonList(table.getSelectQuery(schema));
+			}
+			max = range.getLong(2);
+		}
+
+		// the width can exceed a long for keys spanning most of the BIGINT range
+		BigInteger lowest = BigInteger.valueOf(min);
+		BigInteger width = BigInteger.valueOf(max).subtract(lowest).add(BigInteger.ONE);
+		BigInteger count = width.min(BigInteger.valueOf(partitions));
+
+		List<String> queries = new ArrayList<String>();
+		long from = min;
+		for (int i = 1; i <= count.intValue(); i++) {
+			long to = lowest.add(width.multiply(BigInteger.valueOf(i)).divide(count)).subtract(BigInteger.ONE).longValue();
+			queries.add(table.getSelectQuery(schema, from, to));
+			from = to + 1;
+		}
+		if (table.getKeyColumn().isNullable()) {
+			queries.add(table.getNullKeySelectQuery(schema));
+		}
+		return queries;
+	}
+}
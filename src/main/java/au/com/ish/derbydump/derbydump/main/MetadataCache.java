@@ -0,0 +1,328 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the tables, columns and keys found by {@link MetadataReader} in a file, so that later runs
+ * need not discover them again.
+ * <p>
+ * The file is keyed by a fingerprint of the schema: a hash over the ids of its tables, indexes and
+ * foreign keys and the names and types of its columns, as found in the system tables. Reading those
+ * takes three queries, however many tables there are. Whenever the fingerprint differs from the stored one,
+ * for example because a table, column or index was added, dropped or altered, the metadata is read
+ * again and the file replaced.
+ * <p>
+ * The file holds one line per table, column and key, with the fields separated by tabs:
+ * <pre>
+ * TABLE   name
+ * COLUMN  name  type  nullable
+ * PRIMARY name  name ...
+ * KEY     name
+ * PARENT  name
+ * </pre>
+ * Tables are stored in the order {@link TableOrder} gives them, and a table's parents are the
+ * tables its foreign keys refer to.
+ */
+public class MetadataCache {
+
+	private static final Logger LOGGER = LogManager.getLogger(MetadataCache.class);
+
+	private static final String HEADER = "derbydump metadata 2";
+
+	private static final String COLUMN_QUERY = "SELECT T.TABLEID, T.TABLENAME, C.COLUMNNUMBER, C.COLUMNNAME, C.COLUMNDATATYPE"
+			+ " FROM SYS.SYSTABLES T"
+			+ " JOIN SYS.SYSSCHEMAS S ON S.SCHEMAID = T.SCHEMAID"
+			+ " JOIN SYS.SYSCOLUMNS C ON C.REFERENCEID = T.TABLEID"
+			+ " WHERE S.SCHEMANAME = ? AND T.TABLETYPE = 'T'"
+			+ " ORDER BY T.TABLEID, C.COLUMNNUMBER";
+
+	private static final String INDEX_QUERY = "SELECT CG.CONGLOMERATEID, K.CONSTRAINTID"
+			+ " FROM SYS.SYSCONGLOMERATES CG"
+			+ " JOIN SYS.SYSTABLES T ON T.TABLEID = CG.TABLEID"
+			+ " JOIN SYS.SYSSCHEMAS S ON S.SCHEMAID = T.SCHEMAID"
+			+ " LEFT JOIN SYS.SYSKEYS K ON K.CONGLOMERATEID = CG.CONGLOMERATEID"
+			+ " WHERE CG.ISINDEX AND S.SCHEMANAME = ?"
+			+ " ORDER BY CG.CONGLOMERATEID, K.CONSTRAINTID";
+
+	private static final String FOREIGN_KEY_QUERY = "SELECT FK.CONSTRAINTID, FK.KEYCONSTRAINTID"
+			+ " FROM SYS.SYSFOREIGNKEYS FK"
+			+ " JOIN SYS.SYSCONSTRAINTS C ON C.CONSTRAINTID = FK.CONSTRAINTID"
+			+ " JOIN SYS.SYSTABLES T ON T.TABLEID = C.TABLEID"
+			+ " JOIN SYS.SYSSCHEMAS S ON S.SCHEMAID = T.SCHEMAID"
+			+ " WHERE S.SCHEMANAME = ?"
+			+ " ORDER BY FK.CONSTRAINTID";
+
+	private final File cacheFile;
+
+	/**
+	 * @param cacheFile Where the metadata is kept. Null to always read it from the database.
+	 */
+	public MetadataCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * @return the cache kept in the configured file
+	 */
+	public static MetadataCache fromConfiguration() {
+		String path = Configuration.getConfiguration().getMetadataCachePath();
+		return new MetadataCache(path == null ? null : new File(path));
+	}
+
+	/**
+	 * Read the tables of the configured schema.
+	 */
+	public Database readDatabase(Connection conn) {
+		return readDatabase(conn, Configuration.getConfiguration().getSchemaName());
+	}
+
+	/**
+	 * Read the tables of a schema from the cache if the schema is unchanged since they were stored,
+	 * otherwise from the database.
+	 *
+	 * @param schema The schema to read, or null to read every schema without the cache
+	 */
+	public Database readDatabase(Connection conn, String schema) {
+		MetadataReader reader = new MetadataReader();
+		if (cacheFile == null || schema == null) {
+			return reader.readDatabase(conn, schema);
+		}
+
+		String fingerprint;
+		try {
+			fingerprint = fingerprint(conn, schema.toUpperCase(Locale.ROOT));
+		} catch (SQLException e) {
+			LOGGER.warn("Could not fingerprint the schema " + schema + ", reading its metadata without the cache: " + e.getMessage());
+			return reader.readDatabase(conn, schema);
+		}
+
+		Database database = load(fingerprint);
+		if (database != null) {
+			LOGGER.debug("Schema unchanged, using the metadata cached in " + cacheFile);
+			return database;
+		}
+
+		database = new Database();
+		database.setDatabaseName("mydatabase");
+		try {
+			reader.readTables(conn, schema, database);
+		} catch (SQLException e) {
+			// an incomplete read must not be kept for the later runs against the same schema
+			LOGGER.error("Could not read the metadata of schema " + schema + ": " + e.getMessage());
+			return database;
+		}
+		try {
+			save(fingerprint, database);
+		} catch (IOException e) {
+			LOGGER.warn("Could not write the metadata cache " + cacheFile + ": " + e.getMessage());
+		}
+		return database;
+	}
+
+	/**
+	 * @return a hash which changes whenever a table, column, index or foreign key of the schema does
+	 */
+	String fingerprint(Connection conn, String schemaName) throws SQLException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update((schemaName + "\n").getBytes(StandardCharsets.UTF_8));
+		for (String query : new String[]{COLUMN_QUERY, INDEX_QUERY, FOREIGN_KEY_QUERY}) {
+			try (PreparedStatement statement = conn.prepareStatement(query)) {
+				statement.setString(1, schemaName);
+				try (ResultSet rows = statement.executeQuery()) {
+					int fields = rows.getMetaData().getColumnCount();
+					while (rows.next()) {
+						StringBuilder row = new StringBuilder();
+						for (int i = 1; i <= fields; i++) {
+							row.append(rows.getString(i)).append('\t');
+						}
+						digest.update(row.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+					}
+				}
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return the cached tables, or null if there are none for this fingerprint
+	 */
+	Database load(String fingerprint) {
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			LOGGER.warn("Could not read the metadata cache " + cacheFile + ": " + e.getMessage());
+			return null;
+		}
+		if (lines.size() < 2 || !HEADER.equals(lines.get(0)) || !fingerprint.equals(lines.get(1))) {
+			return null;
+		}
+
+		Database database = new Database();
+		database.setDatabaseName("mydatabase");
+		Table table = null;
+		// parents may come later when tables refer to each other
+		Map<Table, List<String>> parents = new LinkedHashMap<Table, List<String>>();
+		try {
+			for (String line : lines.subList(2, lines.size())) {
+				String[] fields = line.split("\t", -1);
+				switch (fields[0]) {
+					case "TABLE":
+						table = new Table();
+						table.setTableName(fields[1]);
+						database.addTable(table);
+						break;
+					case "COLUMN":
+						Column column = new Column();
+						column.setColumnName(fields[1]);
+						column.setColumnDataType(Integer.parseInt(fields[2]));
+						column.setNullable(Boolean.parseBoolean(fields[3]));
+						table.addColumn(column);
+						break;
+					case "PRIMARY":
+						List<Column> primaryKey = new ArrayList<Column>();
+						for (int i = 1; i < fields.length; i++) {
+							primaryKey.add(findColumn(table, fields[i]));
+						}
+						table.setPrimaryKey(primaryKey);
+						break;
+					case "KEY":
+						table.setKeyColumn(findColumn(table, fields[1]));
+						break;
+					case "PARENT":
+						parents.computeIfAbsent(table, key -> new ArrayList<String>()).add(fields[1]);
+						break;
+					default:
+						throw new IllegalArgumentException("unknown line " + line);
+				}
+			}
+			for (Map.Entry<Table, List<String>> entry : parents.entrySet()) {
+				for (String parent : entry.getValue()) {
+					entry.getKey().addParent(findTable(database, parent));
+				}
+			}
+		} catch (RuntimeException e) {
+			LOGGER.warn("Ignoring the damaged metadata cache " + cacheFile + ": " + e.getMessage());
+			return null;
+		}
+		return database;
+	}
+
+	private static Column findColumn(Table table, String columnName) {
+		for (Column column : table.getColumns()) {
+			if (column.getColumnName().equals(columnName)) {
+				return column;
+			}
+		}
+		throw new IllegalArgumentException("no column " + columnName + " in table " + table.getDatabaseTableName());
+	}
+
+	private static Table findTable(Database database, String tableName) {
+		for (Table table : database.getTables()) {
+			if (table.getDatabaseTableName().equals(tableName)) {
+				return table;
+			}
+		}
+		throw new IllegalArgumentException("no table " + tableName);
+	}
+
+	/**
+	 * Store the tables for this fingerprint. The file is replaced in one step, so a run reading it
+	 * at the same time sees either the old or the new tables.
+	 */
+	void save(String fingerprint, Database database) throws IOException {
+		StringBuilder cache = new StringBuilder();
+		cache.append(HEADER).append('\n').append(fingerprint).append('\n');
+		for (Table table : database.getTables()) {
+			cache.append("TABLE\t").append(name(table.getDatabaseTableName())).append('\n');
+			for (Column column : table.getColumns()) {
+				cache.append("COLUMN\t").append(name(column.getColumnName()))
+						.append('\t').append(column.getColumnDataType())
+						.append('\t').append(column.isNullable()).append('\n');
+			}
+			if (!table.getPrimaryKey().isEmpty()) {
+				cache.append("PRIMARY");
+				for (Column column : table.getPrimaryKey()) {
+					cache.append('\t').append(column.getColumnName());
+				}
+				cache.append('\n');
+			}
+			if (table.getKeyColumn() != null) {
+				cache.append("KEY\t").append(table.getKeyColumn().getColumnName()).append('\n');
+			}
+			for (Table parent : table.getParents()) {
+				cache.append("PARENT\t").append(parent.getDatabaseTableName()).append('\n');
+			}
+		}
+
+		File directory = cacheFile.getAbsoluteFile().getParentFile();
+		File temporary = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+		try {
+			Files.write(temporary.toPath(), cache.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * @return the name, which must fit on one field of a line
+	 */
+	private static String name(String name) throws IOException {
+		if (name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+			throw new IOException("the name " + name + " cannot be cached");
+		}
+		return name;
+	}
+}
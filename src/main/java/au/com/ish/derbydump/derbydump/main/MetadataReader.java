@@ -16,10 +16,12 @@
 
 package au.com.ish.derbydump.derbydump.main;
 
+import au.com.ish.derbydump.derbydump.config.Configuration;
 import au.com.ish.derbydump.derbydump.metadata.Column;
 import au.com.ish.derbydump.derbydump.metadata.Database;
 import au.com.ish.derbydump.derbydump.metadata.MetaDataColumnDescriptor;
 import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.derby.catalog.IndexDescriptor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -27,9 +29,43 @@ import java.sql.*;
 import java.util.*;
 import java.util.regex.Pattern;
 
+/**
+ * Reads the tables of a schema with their columns and keys.
+ * <p>
+ * All tables and all columns of the schema are fetched in one metadata query each and grouped in
+ * memory, and the keys of all tables come from a single query on the system tables. Only if that
+ * query fails are the keys looked up table by table through the JDBC metadata. The foreign keys
+ * are read the same way, and the tables are returned parents first, as {@link TableOrder} sorts them.
+ */
 public class MetadataReader {
 	private static final Logger LOGGER = LogManager.getLogger(MetadataReader.class);
 
+    /**
+     * Every index of a schema, with the table it belongs to and the kind of constraint it backs.
+     * The descriptor holds the positions of the indexed columns.
+     */
+    private static final String INDEX_QUERY = "SELECT T.TABLENAME, CG.CONGLOMERATENAME, CG.DESCRIPTOR, CS.TYPE"
+            + " FROM SYS.SYSCONGLOMERATES CG"
+            + " JOIN SYS.SYSTABLES T ON T.TABLEID = CG.TABLEID"
+            + " JOIN SYS.SYSSCHEMAS S ON S.SCHEMAID = T.SCHEMAID"
+            + " LEFT JOIN SYS.SYSKEYS K ON K.CONGLOMERATEID = CG.CONGLOMERATEID"
+            + " LEFT JOIN SYS.SYSCONSTRAINTS CS ON CS.CONSTRAINTID = K.CONSTRAINTID"
+            + " WHERE CG.ISINDEX AND S.SCHEMANAME = ?"
+            + " ORDER BY T.TABLENAME, CG.CONGLOMERATENAME";
+
+    /**
+     * Every foreign key of a schema, as the table it belongs to and the table it refers to.
+     */
+    private static final String FOREIGN_KEY_QUERY = "SELECT T.TABLENAME, PT.TABLENAME"
+            + " FROM SYS.SYSFOREIGNKEYS FK"
+            + " JOIN SYS.SYSCONSTRAINTS C ON C.CONSTRAINTID = FK.CONSTRAINTID"
+            + " JOIN SYS.SYSTABLES T ON T.TABLEID = C.TABLEID"
+            + " JOIN SYS.SYSSCHEMAS S ON S.SCHEMAID = T.SCHEMAID"
+            + " JOIN SYS.SYSCONSTRAINTS PC ON PC.CONSTRAINTID = FK.KEYCONSTRAINTID"
+            + " JOIN SYS.SYSTABLES PT ON PT.TABLEID = PC.TABLEID"
+            + " WHERE S.SCHEMANAME = ? AND PT.SCHEMAID = T.SCHEMAID"
+            + " ORDER BY T.TABLENAME, C.CONSTRAINTNAME";
+
     private final Pattern searchStringPattern = Pattern.compile("[_%]");
     private static final List<MetaDataColumnDescriptor> columnsForColumn;
     private static final List<MetaDataColumnDescriptor> _columnsForTable;
@@ -57,20 +93,21 @@ public class MetadataReader {
         columnsForColumn.add(new MetaDataColumnDescriptor("REMARKS",        Types.VARCHAR));
     }
 
+    /**
+     * Read the tables of the configured schema.
+     */
     public Database readDatabase(Connection conn) {
+        return readDatabase(conn, Configuration.getConfiguration().getSchemaName());
+    }
+
+    /**
+     * @param schema The schema to read, or null to read every schema
+     */
+    public Database readDatabase(Connection conn, String schema) {
         Database database = new Database();
         database.setDatabaseName("mydatabase");
         try{
-
-            DatabaseMetaData dmd = conn.getMetaData();
-            ResultSet tables = dmd.getTables(null, null, null, new String[]{"TABLE"});
-            while (tables.next()) {
-                Map<String, Object> values = readMetaData(tables, _columnsForTable);
-                Table table = readTable(dmd, values);
-				LOGGER.debug("Found table: " + table.getTableName());
-
-				database.addTable(table);
-            }
+            readTables(conn, schema, database);
         }
         catch(SQLException e){
             LOGGER.error(e);
@@ -78,6 +115,38 @@ public class MetadataReader {
         return database;
     }
 
+    /**
+     * Add the tables of the schema to the database, parents first. Nothing is added if any part of
+     * their metadata cannot be read.
+     *
+     * @param schema The schema to read, or null to read every schema
+     */
+    void readTables(Connection conn, String schema, Database database) throws SQLException {
+        DatabaseMetaData dmd = conn.getMetaData();
+        // unquoted identifiers are stored in upper case
+        String schemaName = schema == null ? null : schema.toUpperCase(Locale.ROOT);
+        String schemaPattern = schemaName == null ? null : escapeForSearch(dmd, schemaName);
+        Map<String, List<Column>> columns = readColumns(dmd, schemaPattern);
+
+        List<Table> tables = new ArrayList<Table>();
+        try (ResultSet tableData = dmd.getTables(null, schemaPattern, "%", new String[]{"TABLE"})) {
+            while (tableData.next()) {
+                Map<String, Object> values = readMetaData(tableData, _columnsForTable);
+                Table table = readTable(values, columns);
+                if (table != null) {
+                    LOGGER.debug("Found table: " + table.getTableName());
+                    tables.add(table);
+                }
+            }
+        }
+        readKeys(conn, schemaName, tables);
+        readParents(conn, schemaName, tables);
+
+        for (Table table : TableOrder.sort(tables)) {
+            database.addTable(table);
+        }
+    }
+
     Map<String, Object> readMetaData(ResultSet resultSet, List<MetaDataColumnDescriptor> columnDescriptors) throws SQLException {
         HashMap<String, Object> values = new HashMap<String, Object>();
 
@@ -87,31 +156,197 @@ public class MetadataReader {
         return values;
     }
 
-    Table readTable(DatabaseMetaData metaData, Map values) throws SQLException {
+    Table readTable(Map values, Map<String, List<Column>> columns) {
         String tableName = (String)values.get("TABLE_NAME");
         Table table = null;
 
         if ((tableName != null) && (tableName.length() > 0)) {
             table = new Table();
             table.setTableName(tableName);
-	        table.addColumns(readColumns(metaData, tableName));
+            List<Column> tableColumns = columns.get(values.get("TABLE_SCHEM") + "." + tableName);
+            if (tableColumns != null) {
+                table.addColumns(tableColumns);
+            }
         }
         return table;
     }
 
-    List<Column> readColumns(DatabaseMetaData metaData, String tableName) throws SQLException {
-        ResultSet columnData = metaData.getColumns(null, null, escapeForSearch(metaData, tableName), "%");
-	    List<Column> columns = new ArrayList<Column>();
+    /**
+     * @param schemaPattern The schema to read, or null for every schema
+     * @return the columns of every table in column order, by schema and table name separated by a dot
+     */
+    Map<String, List<Column>> readColumns(DatabaseMetaData metaData, String schemaPattern) throws SQLException {
+        Map<String, List<Column>> columns = new HashMap<String, List<Column>>();
 
-	    while (columnData.next()) {
-	        Map<String, Object> values = readMetaData(columnData, columnsForColumn);
-		    Column column = new Column();
-		    column.setColumnName((String)values.get("COLUMN_NAME"));
-		    column.setColumnDataType((Integer) values.get("DATA_TYPE"));
-	        columns.add(column);
-	    }
-	    columnData.close();
-	    return columns;
+        try (ResultSet columnData = metaData.getColumns(null, schemaPattern, "%", "%")) {
+            while (columnData.next()) {
+                Map<String, Object> values = readMetaData(columnData, columnsForColumn);
+                Column column = new Column();
+                column.setColumnName((String)values.get("COLUMN_NAME"));
+                column.setColumnDataType((Integer) values.get("DATA_TYPE"));
+                column.setNullable(!"NO".equals(values.get("IS_NULLABLE")));
+                String tableName = columnData.getString("TABLE_SCHEM") + "." + values.get("TABLE_NAME");
+                columns.computeIfAbsent(tableName, name -> new ArrayList<Column>()).add(column);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Set the primary key and the key column of every table.
+     *
+     * @param schemaName The schema the tables belong to, or null if they come from every schema
+     */
+    void readKeys(Connection conn, String schemaName, List<Table> tables) throws SQLException {
+        if (schemaName != null) {
+            try {
+                readIndexes(conn, schemaName, tables);
+                return;
+            } catch (SQLException e) {
+                LOGGER.debug("Could not read the indexes of schema " + schemaName + " at once, reading them per table: " + e.getMessage());
+            }
+        }
+
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (Table table : tables) {
+            table.setPrimaryKey(readPrimaryKey(metaData, schemaName, table, table.getDatabaseTableName()));
+            table.setKeyColumn(readKeyColumn(metaData, schemaName, table, table.getDatabaseTableName()));
+        }
+    }
+
+    /**
+     * Read every index of the schema in one query, choosing the key column the way
+     * {@link #readKeyColumn(DatabaseMetaData, String, Table, String)} does: unique indexes first, then by name.
+     */
+    void readIndexes(Connection conn, String schemaName, List<Table> tables) throws SQLException {
+        Map<String, Table> tablesByName = new HashMap<String, Table>();
+        for (Table table : tables) {
+            tablesByName.put(table.getDatabaseTableName(), table);
+        }
+        Map<Table, List<Column>> primaryKeys = new HashMap<Table, List<Column>>();
+        Map<Table, Column> uniqueKeys = new HashMap<Table, Column>();
+        Map<Table, Column> otherKeys = new HashMap<Table, Column>();
+
+        try (PreparedStatement statement = conn.prepareStatement(INDEX_QUERY)) {
+            statement.setString(1, schemaName);
+            try (ResultSet indexes = statement.executeQuery()) {
+                while (indexes.next()) {
+                    Table table = tablesByName.get(indexes.getString(1));
+                    Object descriptor = indexes.getObject(3);
+                    if (!(descriptor instanceof IndexDescriptor)) {
+                        throw new SQLException("Unexpected index descriptor " + descriptor);
+                    }
+                    if (table == null) {
+                        continue;
+                    }
+                    IndexDescriptor index = (IndexDescriptor) descriptor;
+                    int[] positions = index.baseColumnPositions();
+
+                    if ("P".equals(indexes.getString(4))) {
+                        List<Column> primaryKey = new ArrayList<Column>();
+                        for (int position : positions) {
+                            primaryKey.add(table.getColumns().get(position - 1));
+                        }
+                        primaryKeys.put(table, primaryKey);
+                    }
+                    Column leading = table.getColumns().get(positions[0] - 1);
+                    if (leading.isIntegral()) {
+                        (index.isUnique() ? uniqueKeys : otherKeys).putIfAbsent(table, leading);
+                    }
+                }
+            }
+        }
+
+        for (Table table : tables) {
+            List<Column> primaryKey = primaryKeys.getOrDefault(table, Collections.<Column>emptyList());
+            table.setPrimaryKey(primaryKey);
+            if (primaryKey.size() == 1 && primaryKey.get(0).isIntegral()) {
+                table.setKeyColumn(primaryKey.get(0));
+            } else {
+                table.setKeyColumn(uniqueKeys.containsKey(table) ? uniqueKeys.get(table) : otherKeys.get(table));
+            }
+        }
+    }
+
+    /**
+     * Link every table to the tables its foreign keys refer to, leaving out tables which were not read.
+     *
+     * @param schemaName The schema the tables belong to, or null if they come from every schema
+     */
+    void readParents(Connection conn, String schemaName, List<Table> tables) throws SQLException {
+        Map<String, Table> tablesByName = new HashMap<String, Table>();
+        for (Table table : tables) {
+            tablesByName.put(table.getDatabaseTableName(), table);
+        }
+
+        if (schemaName != null) {
+            try (PreparedStatement statement = conn.prepareStatement(FOREIGN_KEY_QUERY)) {
+                statement.setString(1, schemaName);
+                try (ResultSet foreignKeys = statement.executeQuery()) {
+                    while (foreignKeys.next()) {
+                        Table table = tablesByName.get(foreignKeys.getString(1));
+                        if (table != null) {
+                            table.addParent(tablesByName.get(foreignKeys.getString(2)));
+                        }
+                    }
+                }
+                return;
+            } catch (SQLException e) {
+                LOGGER.debug("Could not read the foreign keys of schema " + schemaName + " at once, reading them per table: " + e.getMessage());
+            }
+        }
+
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (Table table : tables) {
+            try (ResultSet foreignKeys = metaData.getImportedKeys(null, schemaName, table.getDatabaseTableName())) {
+                while (foreignKeys.next()) {
+                    table.addParent(tablesByName.get(foreignKeys.getString("PKTABLE_NAME")));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param schemaName The schema of the table, or null if it is unknown
+     * @return the primary key columns in key order, empty if the table has no primary key
+     */
+    List<Column> readPrimaryKey(DatabaseMetaData metaData, String schemaName, Table table, String tableName) throws SQLException {
+        TreeMap<Short, Column> primaryKey = new TreeMap<Short, Column>();
+        try (ResultSet keys = metaData.getPrimaryKeys(null, schemaName, tableName)) {
+            while (keys.next()) {
+                Column column = table.getColumn(keys.getString("COLUMN_NAME"));
+                if (column != null) {
+                    primaryKey.put(keys.getShort("KEY_SEQ"), column);
+                }
+            }
+        }
+        return new ArrayList<Column>(primaryKey.values());
+    }
+
+    /**
+     * Find a column which lets the table be read in key ranges: a whole number primary key, or
+     * failing that any whole number column which leads an index.
+     *
+     * @param schemaName The schema of the table, or null if it is unknown
+     * @return the key column or null if the table has none
+     */
+    Column readKeyColumn(DatabaseMetaData metaData, String schemaName, Table table, String tableName) throws SQLException {
+        List<Column> primaryKey = table.getPrimaryKey();
+        if (primaryKey.size() == 1 && primaryKey.get(0).isIntegral()) {
+            return primaryKey.get(0);
+        }
+
+        try (ResultSet indexes = metaData.getIndexInfo(null, schemaName, tableName, false, true)) {
+            while (indexes.next()) {
+                if (indexes.getShort("ORDINAL_POSITION") == 1) {
+                    Column column = table.getColumn(indexes.getString("COLUMN_NAME"));
+                    if (column != null && column.isIntegral()) {
+                        return column;
+                    }
+                }
+            }
+        }
+        return null;
     }
 
 	/**
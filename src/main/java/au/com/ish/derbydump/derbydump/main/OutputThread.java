@@ -17,24 +17,52 @@
 package au.com.ish.derbydump.derbydump.main;
 
 import au.com.ish.derbydump.derbydump.config.Configuration;
+import org.apache.commons.io.output.ProxyOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Logical module representing a writer/consumer which flushes the buffer and
  * writes to a stream.
+ * <p>
+ * Data can either be added directly, or through a {@link Section} which is filled by another
+ * thread. The writer drains sections in the order they were opened, so the output of concurrent
+ * producers never interleaves. Sections the writer has not got to yet spool what they cannot
+ * hold to temporary files, so their producers keep going.
+ * <p>
+ * Markers can be queued in the same way as data. The writer flushes everything before a marker
+ * to the underlying stream and then runs it.
+ * <p>
+ * {@link #finish()} stops the writer once everything queued before it has been written.
+ * <p>
+ * If writing the output or running a marker fails, the writer keeps taking what the producers
+ * add, so they never block, but drops it. The failure is kept in {@link #getFailure()}.
+ * <p>
+ * The amount written and the time producers and writer spend waiting for each other are kept
+ * in {@link DumpStats}.
  */
 public class OutputThread implements Runnable {
   private static final Logger LOGGER = LogManager.getLogger(OutputThread.class);
 
+  /**
+   * Queued by {@link #finish()}
+   */
+  private static final Object END = new Object();
+
   private final Writer out;
-  private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>(1024);
+  /**
+   * Holds a {@link String}, a {@link Section} or a marker, in output order.
+   */
+  private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(1024);
   private boolean stopping = false;
+  private volatile IOException failure;
 
   public OutputThread(Writer writer) {
     this.out = new BufferedWriter(writer);
@@ -45,7 +73,7 @@ public class OutputThread implements Runnable {
   }
 
   public static OutputThread createFromOutputStream(OutputStream out) {
-    return new OutputThread(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+    return new OutputThread(new BufferedWriter(new OutputStreamWriter(countBytes(out), StandardCharsets.UTF_8)));
   }
 
   public static OutputThread createFromConfiguration() {
@@ -57,22 +85,117 @@ public class OutputThread implements Runnable {
         file.delete();
       }
       file.createNewFile();
-      return new OutputThread(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), config.getBufferMaxSize() * 1024));
+      return createFromOutputStream(new FileOutputStream(file), config.getCompressionThreads());
     } catch (IOException e) {
       LOGGER.error("Could not write to the file " + config.getOutputFilePath());
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * @param out                The stream receiving the output, compressed if configured
+   * @param compressionThreads Number of threads compressing the output
+   * @return an output with the configured buffer size and compression
+   */
+  static OutputThread createFromOutputStream(OutputStream out, int compressionThreads) {
+    Configuration config = Configuration.getConfiguration();
+    if (isCompressed()) {
+      out = new ParallelGzipOutputStream(out, config.getCompressionLevel(), config.getCompressionBlockSize() * 1024, compressionThreads);
+    }
+    return new OutputThread(new BufferedWriter(new OutputStreamWriter(countBytes(out), StandardCharsets.UTF_8), config.getBufferMaxSize() * 1024));
+  }
+
+  /**
+   * @return the stream, counting the encoded bytes written to it in {@link DumpStats}
+   */
+  private static OutputStream countBytes(OutputStream out) {
+    return new ProxyOutputStream(out) {
+      @Override
+      protected void afterWrite(int n) {
+        DumpStats.getStats().writtenBytes(n);
+      }
+    };
+  }
+
+  /**
+   * @return true if the configuration asks for gzip compressed output
+   */
+  static boolean isCompressed() {
+    return "gzip".equals(Configuration.getConfiguration().getCompression());
+  }
+
   public void add(String data) {
+    if (data != null) {
+      put(queue, data);
+    }
+  }
+
+  private static void put(BlockingQueue<Object> queue, String data) {
+    DumpStats stats = DumpStats.getStats();
+    stats.queued();
+    long start = System.nanoTime();
     try {
-      if (data != null) {
-        queue.put(data);
-      }
+      queue.put(data);
     } catch (InterruptedException ignored) {
+      stats.dequeued();
+    }
+    stats.readerBlocked(System.nanoTime() - start);
+  }
+
+  private static Object take(BlockingQueue<Object> queue) throws InterruptedException {
+    long start = System.nanoTime();
+    try {
+      return queue.take();
+    } finally {
+      DumpStats.getStats().writerBlocked(System.nanoTime() - start);
     }
   }
 
+  /**
+   * @param marker Run once everything added before it has been written out
+   */
+  public void addMarker(Marker marker) {
+    try {
+      queue.put(marker);
+    } catch (InterruptedException ignored) {
+    }
+  }
+
+  /**
+   * Let the writer close the output and stop once everything added so far has been written.
+   * Unlike interrupting the writer, this never reaches a stream which is still working through
+   * its data.
+   */
+  public void finish() {
+    try {
+      queue.put(END);
+    } catch (InterruptedException ignored) {
+    }
+  }
+
+  /**
+   * Reserve the next slice of the output. Everything added to the section is written at this
+   * position, after everything added before it and before anything added after it.
+   *
+   * @return a section which must be closed once the producer is done with it
+   */
+  public Section openSection() {
+    Section section = new Section();
+    try {
+      queue.put(section);
+    } catch (InterruptedException ignored) {
+    }
+    return section;
+  }
+
+  /**
+   * @return the error which stopped the output from being written completely, or null. Only
+   * final once the writer has finished.
+   */
+  public IOException getFailure() {
+    return failure;
+  }
+
   /**
    * Writing logic.
    * <p>
@@ -84,29 +207,302 @@ public class OutputThread implements Runnable {
 
     LOGGER.debug("File writer intializing...");
 
-    try {
-      while (!stopping || queue.size() > 0) {
-        try {
-          String item = queue.take();
-          if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Item taken from queue: " + item);
-          }
-          if (item != null) {
-            out.write(item);
-          }
-        } catch (InterruptedException e) {
-          LOGGER.debug("Writer has been asked to stop.");
+    while (!stopping || queue.size() > 0) {
+      try {
+        Object item = take(queue);
+        if (item == END) {
           stopping = true;
+        } else {
+          write(item);
         }
+      } catch (InterruptedException e) {
+        LOGGER.debug("Writer has been asked to stop.");
+        stopping = true;
       }
+    }
 
+    try {
       out.flush();
+    } catch (IOException e) {
+      fail(e);
+    }
+    try {
       out.close();
     } catch (IOException e) {
       LOGGER.error("Could not close the stream writer: " + e.getMessage());
+      fail(e);
     }
 
     LOGGER.debug("Total time (seconds): " + (System.currentTimeMillis() - startTime) / 1000);
     LOGGER.debug("Writing done.");
   }
+
+  private void write(Object item) {
+    if (item instanceof Section) {
+      write((Section) item);
+      return;
+    }
+    if (failure != null) {
+      // dropped, as the output is broken already
+      if (item instanceof String) {
+        DumpStats.getStats().dequeued();
+      }
+      return;
+    }
+    try {
+      if (item instanceof Marker) {
+        out.flush();
+        ((Marker) item).run();
+      } else {
+        write((String) item);
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void write(String item) throws IOException {
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Item taken from queue: " + item);
+    }
+    if (item != null) {
+      out.write(item);
+      DumpStats stats = DumpStats.getStats();
+      stats.dequeued();
+      stats.written(item.length());
+    }
+  }
+
+  private void fail(IOException e) {
+    if (failure == null) {
+      failure = e;
+      LOGGER.error("Could not write the output, the rest of it is dropped: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Drain the section until its producer closes it. Whatever the producer spooled before the
+   * writer got here is copied out first. A stop request received meanwhile is remembered, but
+   * the section is still written to the end.
+   */
+  private void write(Section section) {
+    List<Object> queued = new ArrayList<Object>();
+    Spool spool = section.reach(queued);
+    if (spool != null) {
+      for (Object item : queued) {
+        write(item);
+      }
+      if (copy(spool)) {
+        return;
+      }
+    }
+    while (true) {
+      try {
+        Object item = take(section.items);
+        if (item == Section.END) {
+          return;
+        }
+        write(item);
+      } catch (InterruptedException e) {
+        LOGGER.debug("Writer has been asked to stop.");
+        stopping = true;
+      }
+    }
+  }
+
+  /**
+   * Write out what a section spooled, and delete the spool.
+   *
+   * @return true if the section was closed while spooling
+   */
+  private boolean copy(Spool spool) {
+    if (spool.failure != null) {
+      fail(spool.failure);
+    }
+    Reader in = null;
+    try {
+      char[] buffer = new char[8192];
+      for (Object entry : spool.entries) {
+        if (entry == Section.END) {
+          return true;
+        }
+        if (!(entry instanceof Integer)) {
+          write(entry);
+        } else if (failure == null) {
+          if (in == null) {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(spool.file), StandardCharsets.UTF_8));
+          }
+          int remaining = (Integer) entry;
+          while (remaining > 0) {
+            int count = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (count < 0) {
+              throw new EOFException("The spool " + spool.file + " ended early.");
+            }
+            out.write(buffer, 0, count);
+            remaining -= count;
+          }
+          DumpStats.getStats().written((Integer) entry);
+        }
+      }
+      return false;
+    } catch (IOException e) {
+      fail(e);
+      return spool.entries.contains(Section.END);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ignored) {
+        }
+      }
+      if (spool.file != null) {
+        spool.file.delete();
+      }
+    }
+  }
+
+  /**
+   * Work done by the writer at a given position of the output, such as recording how far the
+   * output has been written.
+   */
+  public interface Marker {
+    void run() throws IOException;
+  }
+
+  /**
+   * A reserved, ordered slice of the output which is filled by a single producer thread.
+   * <p>
+   * Once the writer has reached the section, the producer blocks while the section holds too
+   * much data which has not been written yet. Before that, data beyond what the section holds
+   * is spooled to a temporary file, which the writer copies out when it gets here. A producer
+   * therefore never waits for the sections ahead of its own, but the data it gets ahead by is
+   * written to disk and read back once more.
+   * <p>
+   * Producers are expected to add large chunks rather than single values, so only a few
+   * items are held per section.
+   */
+  public static class Section {
+    private static final String END = new String();
+
+    private final BlockingQueue<Object> items = new LinkedBlockingQueue<Object>(16);
+    /**
+     * Set once the writer has got to this section
+     */
+    private boolean reached = false;
+    private Spool spool;
+
+    public void add(String data) {
+      if (data != null && !spoolOrQueue(data)) {
+        put(items, data);
+      }
+    }
+
+    /**
+     * @param marker Run once everything added to the output before it has been written out
+     */
+    public void addMarker(Marker marker) {
+      if (!spoolOrQueue(marker)) {
+        try {
+          items.put(marker);
+        } catch (InterruptedException ignored) {
+        }
+      }
+    }
+
+    /**
+     * Signal that no more data will be added to this section.
+     */
+    public void close() {
+      if (!spoolOrQueue(END)) {
+        try {
+          items.put(END);
+        } catch (InterruptedException ignored) {
+        }
+      }
+    }
+
+    /**
+     * @return false if the writer has reached the section, so that the producer should wait for
+     * room in it
+     */
+    private synchronized boolean spoolOrQueue(Object item) {
+      if (reached) {
+        return false;
+      }
+      if (spool == null) {
+        if (items.offer(item)) {
+          if (item instanceof String && item != END) {
+            DumpStats.getStats().queued();
+          }
+          return true;
+        }
+        spool = new Spool();
+      }
+      spool.add(item);
+      return true;
+    }
+
+    /**
+     * Called by the writer as it gets to the section.
+     *
+     * @param queued Receives the items queued before the section started spooling
+     * @return the spool, which is complete from now on, or null if nothing was spooled
+     */
+    private synchronized Spool reach(List<Object> queued) {
+      reached = true;
+      if (spool != null) {
+        items.drainTo(queued);
+        spool.close();
+      }
+      return spool;
+    }
+  }
+
+  /**
+   * The data a section received beyond what it holds, before the writer got to it. Text goes to
+   * a temporary file, while the entries keep its length, the markers and the end in order.
+   */
+  private static class Spool {
+    private File file;
+    private Writer out;
+    private final List<Object> entries = new ArrayList<Object>();
+    private IOException failure;
+
+    private void add(Object item) {
+      if (!(item instanceof String) || item == Section.END) {
+        entries.add(item);
+        return;
+      }
+      if (failure != null) {
+        // dropped, as the writer fails once it gets here
+        return;
+      }
+      String data = (String) item;
+      try {
+        if (out == null) {
+          file = File.createTempFile("derbydump-", ".spool");
+          file.deleteOnExit();
+          out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        }
+        out.write(data);
+        entries.add(data.length());
+        DumpStats.getStats().spooled(data.length());
+      } catch (IOException e) {
+        LOGGER.error("Could not spool the output to " + file + ": " + e.getMessage());
+        failure = e;
+      }
+    }
+
+    private void close() {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    }
+  }
 }
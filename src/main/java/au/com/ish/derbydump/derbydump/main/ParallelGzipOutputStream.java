@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compresses a stream on several threads.
+ * <p>
+ * The data is cut into blocks of a fixed size and every block is compressed on its own into a
+ * complete gzip member. The members are written in order, which makes the output a standard
+ * multi-member gzip file that gunzip and {@link java.util.zip.GZIPInputStream} read as one stream.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	private static final byte[] HEADER = {
+			0x1f, (byte) 0x8b, // magic
+			Deflater.DEFLATED, // compression method
+			0, // flags
+			0, 0, 0, 0, // modification time
+			0, // extra flags
+			(byte) 0xff // operating system unknown
+	};
+
+	private final OutputStream out;
+	private final int level;
+	private final int blockSize;
+	private final int threads;
+	private final ExecutorService compressors;
+	/**
+	 * Blocks being compressed, oldest first.
+	 */
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	private byte[] block;
+	private int blockLength;
+	private boolean empty = true;
+	private boolean closed;
+
+	/**
+	 * @param out       The stream receiving the compressed data
+	 * @param level     Deflate compression level from 0 to 9
+	 * @param blockSize Number of bytes compressed into each gzip member
+	 * @param threads   Number of blocks compressed at the same time
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int level, int blockSize, int threads) {
+		this.out = out;
+		this.level = level;
+		this.blockSize = blockSize;
+		this.threads = threads;
+		this.block = new byte[blockSize];
+
+		final AtomicInteger count = new AtomicInteger();
+		this.compressors = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "Gzip_Compressor-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		block[blockLength++] = (byte) b;
+		if (blockLength == blockSize) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int count = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, count);
+			blockLength += count;
+			off += count;
+			len -= count;
+			if (blockLength == blockSize) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Compresses the data written so far and writes it out. Every flush ends a gzip member, so
+	 * frequent flushing makes the compression worse.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (blockLength > 0) {
+			submitBlock();
+		}
+		while (!pending.isEmpty()) {
+			writeOldest();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (empty) {
+				// gunzip rejects a file without any member
+				submitBlock();
+			}
+			flush();
+		} finally {
+			compressors.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		pending.add(compressors.submit(() -> compress(data, length)));
+		block = new byte[blockSize];
+		blockLength = 0;
+		empty = false;
+
+		// keep every compressor busy, but don't let finished blocks pile up in memory
+		while (pending.size() > 2 * threads) {
+			writeOldest();
+		}
+	}
+
+	/**
+	 * Waits for the oldest block without giving in to an interrupt, which would lose the blocks still
+	 * pending and leave a shorter, yet valid, gzip file behind. The interrupt is kept for the caller.
+	 */
+	private void writeOldest() throws IOException {
+		Future<byte[]> oldest = pending.removeFirst();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					out.write(oldest.get());
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress block", e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return a complete gzip member holding the data
+	 */
+	private byte[] compress(byte[] data, int length) {
+		ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+		member.write(HEADER, 0, HEADER.length);
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			byte[] buffer = new byte[Math.max(512, length / 4)];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				member.write(buffer, 0, count);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeInt(member, (int) crc.getValue());
+		writeInt(member, length);
+		return member.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports how far a dump has come: the share of the expected rows written, the rows and MB of
+ * output per second, and the time left, for every table and for the whole dump. The output is
+ * measured in bytes of SQL encoded in UTF-8, before compression.
+ * <p>
+ * The expected rows of a table are its estimate from {@link TableSizes}. The rows written are
+ * counted by {@link DumpStats}, and the readers say when they start and finish a table. Every
+ * <code>progress.interval</code> seconds the running tables and the totals are logged, and if
+ * <code>progress.path</code> is set, written to that file as JSON, which is replaced in one step
+ * so that it can be polled while the dump runs. The time left is the remaining rows at the average
+ * rate so far. A table without an estimate counts towards the totals with the rows it has written,
+ * so <code>dump.countRows</code> makes the totals more reliable.
+ */
+public class ProgressReporter implements AutoCloseable {
+
+	private static final Logger LOGGER = LogManager.getLogger(ProgressReporter.class);
+
+	private static final double MEGABYTE = 1048576.0;
+
+	private final List<TableProgress> tables = new ArrayList<TableProgress>();
+	private final Map<Table, TableProgress> progressByTable = new IdentityHashMap<Table, TableProgress>();
+	private final long intervalSeconds;
+	private final File progressFile;
+	private final long start = System.nanoTime();
+	private ScheduledExecutorService timer;
+
+	/**
+	 * @param tables          The tables about to be dumped. Excluded tables are left out.
+	 * @param intervalSeconds Seconds between two reports, or 0 to only report at the end
+	 * @param progressFile    Where the progress is written as JSON, or null
+	 */
+	public ProgressReporter(List<Table> tables, long intervalSeconds, File progressFile) {
+		for (Table table : tables) {
+			if (!table.isExcluded()) {
+				TableProgress progress = new TableProgress(table);
+				this.tables.add(progress);
+				progressByTable.put(table, progress);
+			}
+		}
+		this.intervalSeconds = intervalSeconds;
+		this.progressFile = progressFile;
+	}
+
+	/**
+	 * Set up reporting as configured, estimating the tables first unless that has been done.
+	 */
+	public static ProgressReporter fromConfiguration(List<Table> tables, Connection conn, String schema) {
+		Configuration config = Configuration.getConfiguration();
+		String path = config.getProgressPath();
+		ProgressReporter reporter = new ProgressReporter(tables, config.getProgressInterval(), path == null ? null : new File(path));
+		if (reporter.isEnabled() && !isEstimated(tables)) {
+			TableSizes.estimate(conn, schema, tables, config.getCountRows());
+		}
+		return reporter;
+	}
+
+	private static boolean isEstimated(List<Table> tables) {
+		for (Table table : tables) {
+			if (table.getEstimatedBytes() >= 0 || table.getEstimatedRows() >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if progress is logged or written at all
+	 */
+	public boolean isEnabled() {
+		return intervalSeconds > 0 || progressFile != null;
+	}
+
+	/**
+	 * Start reporting every interval.
+	 */
+	public synchronized void start() {
+		if (intervalSeconds > 0 && timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Progress_Reporter");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.scheduleAtFixedRate(() -> report(false), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Called by a reader before it reads the rows of a table, or of one key range of it.
+	 */
+	public void startTable(Table table) {
+		TableProgress progress = progressByTable.get(table);
+		if (progress != null) {
+			progress.start();
+		}
+	}
+
+	/**
+	 * Called once every row of the table has been read, or the table has been given up on.
+	 */
+	public void finishTable(Table table) {
+		TableProgress progress = progressByTable.get(table);
+		if (progress != null) {
+			progress.finish();
+		}
+	}
+
+	/**
+	 * Stop reporting, after a last report of the totals.
+	 */
+	@Override
+	public synchronized void close() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+		if (isEnabled()) {
+			report(true);
+		}
+	}
+
+	/**
+	 * Log the progress and write the progress file.
+	 *
+	 * @param done Whether the dump has ended
+	 */
+	synchronized void report(boolean done) {
+		long now = System.nanoTime();
+		double elapsed = seconds(now - start);
+		long rows = 0;
+		long expectedRows = 0;
+		long bytes = 0;
+		int finished = 0;
+		int withoutEstimate = 0;
+		for (TableProgress table : tables) {
+			rows += table.getRows();
+			expectedRows += table.getExpectedRowsOrRows();
+			bytes += table.getBytes();
+			finished += table.isFinished() ? 1 : 0;
+			withoutEstimate += table.isEstimated() ? 0 : 1;
+		}
+		Rates total = new Rates(rows, expectedRows, bytes, elapsed, true);
+
+		LOGGER.info(String.format(Locale.ROOT, "%s: %s, %d of %d tables done%s",
+				done ? "Dump ended" : "Progress", total, finished, tables.size(),
+				withoutEstimate == 0 ? "" : ", " + withoutEstimate + " without an estimate of their rows"));
+		if (!done) {
+			for (TableProgress table : tables) {
+				if (table.isRunning()) {
+					LOGGER.info("  " + table.table.getTableName() + ": " + table.getRates(now));
+				}
+			}
+		}
+
+		if (progressFile != null) {
+			try {
+				writeProgressFile(done, now, total, finished, withoutEstimate);
+			} catch (IOException e) {
+				LOGGER.warn("Could not write the progress file " + progressFile + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void writeProgressFile(boolean done, long now, Rates total, int finished, int withoutEstimate) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append(String.format(Locale.ROOT, "{\n"
+						+ "  \"state\": \"%s\",\n"
+						+ "  \"elapsedSeconds\": %.1f,\n"
+						+ "%s,\n"
+						+ "  \"tablesDone\": %d,\n"
+						+ "  \"tables\": %d,\n"
+						+ "  \"tablesWithoutEstimate\": %d,\n"
+						+ "  \"tableProgress\": [",
+				done ? "done" : "running", total.seconds, total.toJson("  "), finished, tables.size(), withoutEstimate));
+		for (int i = 0; i < tables.size(); i++) {
+			TableProgress table = tables.get(i);
+			json.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.ROOT, "    {\n"
+							+ "      \"table\": \"%s\",\n"
+							+ "      \"state\": \"%s\",\n"
+							+ "%s\n"
+							+ "    }",
+					escape(table.table.getTableName()), table.getState(), table.getRates(now).toJson("      ")));
+		}
+		json.append(tables.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+
+		File directory = progressFile.getAbsoluteFile().getParentFile();
+		File temporary = File.createTempFile(progressFile.getName(), ".tmp", directory);
+		try {
+			Files.write(temporary.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	private static String escape(String value) {
+		StringBuilder escaped = new StringBuilder();
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				escaped.append('\\').append(c);
+			} else if (c < 0x20) {
+				escaped.append(String.format("\\u%04x", (int) c));
+			} else {
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * Rows and output of a table or the whole dump over some time.
+	 */
+	private static class Rates {
+		private final long rows;
+		private final long expectedRows;
+		private final long bytes;
+		private final double seconds;
+		private final boolean estimated;
+
+		/**
+		 * @param estimated Whether the expected rows come from an estimate, rather than only the rows so far
+		 */
+		Rates(long rows, long expectedRows, long bytes, double seconds, boolean estimated) {
+			this.rows = rows;
+			this.expectedRows = expectedRows;
+			this.bytes = bytes;
+			this.seconds = seconds;
+			this.estimated = estimated;
+		}
+
+		double getPercent() {
+			return expectedRows <= 0 ? 100 : Math.min(100, rows * 100.0 / expectedRows);
+		}
+
+		double getRowsPerSecond() {
+			return seconds > 0 ? rows / seconds : 0;
+		}
+
+		double getMegabytesPerSecond() {
+			return seconds > 0 ? bytes / MEGABYTE / seconds : 0;
+		}
+
+		/**
+		 * @return the seconds left at the rate so far, or -1 if there is no rate or estimate
+		 */
+		long getEtaSeconds() {
+			if (!estimated) {
+				return -1;
+			}
+			if (rows >= expectedRows) {
+				return 0;
+			}
+			double rowsPerSecond = getRowsPerSecond();
+			return rowsPerSecond <= 0 ? -1 : Math.round((expectedRows - rows) / rowsPerSecond);
+		}
+
+		String toJson(String indent) {
+			long eta = getEtaSeconds();
+			return String.format(Locale.ROOT, "%1$s\"rows\": %2$d,\n"
+							+ "%1$s\"expectedRows\": %3$s,\n"
+							+ "%1$s\"percent\": %4$s,\n"
+							+ "%1$s\"rowsPerSecond\": %5$.1f,\n"
+							+ "%1$s\"megabytesPerSecond\": %6$.3f,\n"
+							+ "%1$s\"etaSeconds\": %7$s",
+					indent, rows, estimated ? String.valueOf(expectedRows) : "null",
+					estimated ? String.format(Locale.ROOT, "%.1f", getPercent()) : "null", getRowsPerSecond(), getMegabytesPerSecond(), eta < 0 ? "null" : String.valueOf(eta));
+		}
+
+		@Override
+		public String toString() {
+			long eta = getEtaSeconds();
+			String share = estimated ? String.format(Locale.ROOT, "%.1f%% of %d rows", getPercent(), expectedRows) : rows + " rows";
+			return String.format(Locale.ROOT, "%s, %.0f rows/s, %.2f MB/s, ETA %s",
+					share, getRowsPerSecond(), getMegabytesPerSecond(),
+					eta < 0 ? "unknown" : String.format(Locale.ROOT, "%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+		}
+	}
+
+	/**
+	 * The progress of one table. The statistics are shared by every dump in this process, so only
+	 * what they gained since the reporter was created counts.
+	 */
+	private static class TableProgress {
+		private final Table table;
+		private final DumpStats.TableStats stats;
+		private final long rowsBefore;
+		private final long bytesBefore;
+		private volatile long started;
+		private volatile long ended;
+
+		TableProgress(Table table) {
+			this.table = table;
+			this.stats = DumpStats.getStats().getTableStats(table);
+			this.rowsBefore = stats.getRows();
+			this.bytesBefore = stats.getBytes();
+		}
+
+		synchronized void start() {
+			if (started == 0) {
+				started = System.nanoTime();
+			}
+		}
+
+		synchronized void finish() {
+			start();
+			ended = System.nanoTime();
+		}
+
+		boolean isRunning() {
+			return started != 0 && ended == 0;
+		}
+
+		boolean isFinished() {
+			return ended != 0;
+		}
+
+		/**
+		 * @return whether the rows the table holds are known, or estimated
+		 */
+		boolean isEstimated() {
+			return isFinished() || table.getEstimatedRows() >= 0;
+		}
+
+		String getState() {
+			return isFinished() ? "done" : isRunning() ? "running" : "waiting";
+		}
+
+		long getRows() {
+			return stats.getRows() - rowsBefore;
+		}
+
+		long getBytes() {
+			return stats.getBytes() - bytesBefore;
+		}
+
+		/**
+		 * @return the rows the table holds once done, as far as they are known by now
+		 */
+		long getExpectedRowsOrRows() {
+			long rows = getRows();
+			return isFinished() || table.getEstimatedRows() < 0 ? rows : Math.max(rows, table.getEstimatedRows());
+		}
+
+		Rates getRates(long now) {
+			long seconds = started == 0 ? 0 : (isFinished() ? ended : now) - started;
+			return new Rates(getRows(), getExpectedRowsOrRows(), getBytes(), ProgressReporter.seconds(seconds), isEstimated());
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes every table into one script, inside a single transaction.
+ */
+public class SingleFileOutput implements DumpOutput {
+
+	private final OutputThread output;
+
+	public SingleFileOutput(OutputThread output) {
+		this.output = output;
+	}
+
+	@Override
+	public void begin() {
+		output.add("AUTOCOMMIT OFF;\n");
+	}
+
+	@Override
+	public OutputThread openTable(Table table) {
+		return output;
+	}
+
+	@Override
+	public void closeTable(Table table, AtomicLong rowCount) {
+	}
+
+	@Override
+	public void end() {
+		output.add("COMMIT;\n");
+		output.add("AUTOCOMMIT ON;\n");
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a script written by the dump into its statements.
+ * <p>
+ * A semicolon ends a statement unless it is part of a string literal, a quoted identifier or a
+ * <code>--</code> comment. String literals may contain newlines, doubled quotes and the backslash
+ * escapes written by {@link au.com.ish.derbydump.derbydump.metadata.Column}.
+ */
+public class SqlScriptReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Reader in;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position;
+	private int limit;
+
+	public SqlScriptReader(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return the next statement without its semicolon and surrounding whitespace, or null at the end of the script
+	 */
+	public String next() throws IOException {
+		StringBuilder statement = new StringBuilder();
+		char quote = 0;
+		boolean escaped = false;
+		boolean comment = false;
+
+		while (position < limit || fill()) {
+			char c = buffer[position++];
+			if (comment) {
+				if (c == '\n') {
+					comment = false;
+					statement.append(c);
+				}
+			} else if (quote != 0) {
+				statement.append(c);
+				if (escaped) {
+					escaped = false;
+				} else if (c == '\\' && quote == '\'') {
+					escaped = true;
+				} else if (c == quote) {
+					// a doubled quote simply leaves the literal and enters it again
+					quote = 0;
+				}
+			} else if (c == ';') {
+				String text = statement.toString().trim();
+				if (text.length() > 0) {
+					return text;
+				}
+				statement.setLength(0);
+			} else if (c == '-' && statement.length() > 0 && statement.charAt(statement.length() - 1) == '-') {
+				statement.setLength(statement.length() - 1);
+				comment = true;
+			} else {
+				if (c == '\'' || c == '"') {
+					quote = c;
+				}
+				statement.append(c);
+			}
+		}
+
+		String text = statement.toString().trim();
+		return text.length() > 0 ? text : null;
+	}
+
+	private boolean fill() throws IOException {
+		limit = in.read(buffer);
+		position = 0;
+		return limit > 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Replace the backslash escapes within the string literals of a statement by the characters
+	 * they stand for, so that it can be run by a database which only knows doubled quotes.
+	 */
+	public static String toStandardSql(String statement) {
+		if (statement.indexOf('\\') < 0) {
+			return statement;
+		}
+		StringBuilder output = new StringBuilder(statement.length());
+		char quote = 0;
+		for (int i = 0; i < statement.length(); i++) {
+			char c = statement.charAt(i);
+			if (quote == '\'' && c == '\\' && i + 1 < statement.length()) {
+				char next = statement.charAt(++i);
+				if (next == '\'') {
+					output.append("''");
+				} else {
+					output.append(unescape(next));
+				}
+				continue;
+			}
+			if (quote == 0 && (c == '\'' || c == '"')) {
+				quote = c;
+			} else if (c == quote) {
+				quote = 0;
+			}
+			output.append(c);
+		}
+		return output.toString();
+	}
+
+	/**
+	 * @param c The character following a backslash in a string literal
+	 * @return the character the pair stands for
+	 */
+	static char unescape(char c) {
+		switch (c) {
+			case '0':
+				return 0x00;
+			case 't':
+				return '\t';
+			case 'b':
+				return '\b';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 'Z':
+				return 0x1a;
+			default:
+				return c;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.util.ChunkBuffer;
+import au.com.ish.derbydump.derbydump.util.Utf8;
+
+/**
+ * Decides where one multi-row INSERT statement ends and the next begins. A statement takes
+ * rows until it reaches either the row limit or the size limit, and a row which would not fit
+ * within the size limit starts a new statement. A row larger than the size limit therefore
+ * always ends up in a statement of its own.
+ * <p>
+ * Every row after the first starts with {@link #ROW_SEPARATOR}, which {@link #endRow(ChunkBuffer)}
+ * replaces with a new statement once the size of the row is known. A row which does not fit
+ * into one chunk is passed on before its size is known, so it is treated as oversized and given
+ * a statement of its own as soon as it spills.
+ * <p>
+ * Sizes are counted in bytes once encoded in UTF-8, as the output is written, since the limit
+ * they are kept within is the packet size of the target database.
+ */
+class StatementBatch {
+
+	static final String ROW_SEPARATOR = ",\n";
+
+	private final String nextStatement;
+	private final long headerSize;
+	private final int maxRows;
+	private final long maxSize;
+
+	private int rows;
+	private long size;
+
+	/**
+	 * @param insertSQL The header of every statement, as returned by {@link au.com.ish.derbydump.derbydump.metadata.Table#getInsertSQL()}
+	 * @param maxRows Most rows in one statement
+	 * @param maxSize Most bytes in one statement, unless a single row is larger
+	 */
+	StatementBatch(String insertSQL, int maxRows, long maxSize) {
+		this.nextStatement = ";\n" + insertSQL + "\n";
+		this.headerSize = Utf8.encodedLength(insertSQL);
+		this.maxRows = maxRows;
+		this.maxSize = maxSize;
+		this.size = headerSize;
+	}
+
+	/**
+	 * Start counting afresh, after the current statement has been ended by the caller.
+	 */
+	void reset() {
+		rows = 0;
+		size = headerSize;
+	}
+
+	/**
+	 * Called by the chunk buffer before the current row is passed on in parts.
+	 */
+	void spill(ChunkBuffer chunk) {
+		if (rows > 0) {
+			chunk.replaceRowStart(ROW_SEPARATOR.length(), nextStatement);
+			rows = 0;
+		}
+	}
+
+	/**
+	 * Settle the start of the row which has just been written.
+	 */
+	void endRow(ChunkBuffer chunk) {
+		if (chunk.isRowSpilled()) {
+			// the size of the row is unknown, so no further row may join its statement
+			chunk.endRow();
+			rows = maxRows;
+			size = maxSize;
+			return;
+		}
+
+		// the length includes the separator, unless this is the first row
+		long rowSize = chunk.getRowEncodedLength();
+		if (rows > 0 && (rows >= maxRows || size + rowSize > maxSize)) {
+			chunk.replaceRowStart(ROW_SEPARATOR.length(), nextStatement);
+			rows = 0;
+			size = headerSize - ROW_SEPARATOR.length();
+		}
+		chunk.endRow();
+
+		rows++;
+		size += rowSize;
+	}
+}
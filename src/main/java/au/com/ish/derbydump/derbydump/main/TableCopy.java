@@ -0,0 +1,361 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies every table straight into another database through JDBC, without turning the values
+ * into SQL text.
+ * <p>
+ * Several tables are copied at the same time, each read on a connection of the pool and written
+ * on a connection to the target of its own. The rows of a table are read by one thread and
+ * inserted by another, which binds the values as read from the source and sends them in batches
+ * of <code>dump.statement.rows</code>. Large objects are streamed from the source into the
+ * target rather than read into memory. The target tables must exist, under their rewritten
+ * names. If <code>output.truncateTables</code> is set, they are all emptied before the first
+ * table is copied, children before their parents.
+ * <p>
+ * Unless <code>dump.waitForParents</code> is turned off, a table is not copied before the tables
+ * its foreign keys refer to, so the target may keep its constraints. Only parents earlier in the
+ * list are waited for, which keeps tables referring to each other in a cycle from waiting forever.
+ * A table is only handed to a reader once its parents are copied, so waiting tables hold neither
+ * a thread nor a connection. Within that, the largest tables are started first, as
+ * {@link TableSizes} orders them.
+ */
+public class TableCopy {
+
+	private static final Logger LOGGER = LogManager.getLogger(TableCopy.class);
+
+	/**
+	 * Batches read ahead of the writer of a table
+	 */
+	private static final int QUEUED_BATCHES = 4;
+	private static final List<Object[]> END = Collections.emptyList();
+
+	private final String targetUrl;
+	private final Configuration config;
+
+	/**
+	 * @param targetUrl The JDBC url of the database the tables are copied into
+	 */
+	public TableCopy(String targetUrl) {
+		this.targetUrl = targetUrl;
+		this.config = Configuration.getConfiguration();
+	}
+
+	/**
+	 * Copy every table which is not excluded, <code>dump.threads</code> at a time.
+	 *
+	 * @param tables The tables to copy
+	 * @param db     The connection pool of the source database
+	 * @param schema The name of the schema we are using
+	 * @return the outcome for every table, in the order of the tables
+	 */
+	public List<DerbyRestore.TableResult> copy(List<Table> tables, DBConnectionManager db, String schema) throws InterruptedException {
+		ExecutorService readers = createWorkers("Table_Reader", config.getDumpThreads());
+		ExecutorService writers = createWorkers("Table_Writer", config.getDumpThreads());
+		Map<Table, CompletableFuture<DerbyRestore.TableResult>> copies = new IdentityHashMap<Table, CompletableFuture<DerbyRestore.TableResult>>();
+		List<Table> copied = new ArrayList<Table>();
+		for (Table table : tables) {
+			if (!table.isExcluded() && !table.getColumns().isEmpty()) {
+				copied.add(table);
+			}
+		}
+		Map<Table, SQLException> notEmptied = config.getTruncateTables() ? emptyTargets(copied) : Collections.<Table, SQLException>emptyMap();
+
+		List<Table> scheduled = TableSizes.schedule(tables, db.getConnection(), schema, config.getWaitForParents());
+		ProgressReporter progress = ProgressReporter.fromConfiguration(scheduled, db.getConnection(), schema);
+		progress.start();
+		for (Table table : scheduled) {
+			if (notEmptied.containsKey(table)) {
+				// the rows would be added to those left in the target
+				copies.put(table, CompletableFuture.completedFuture(new DerbyRestore.TableResult(table.getTableName(), 0, 0, notEmptied.get(table))));
+				progress.finishTable(table);
+			} else if (!table.isExcluded() && !table.getColumns().isEmpty()) {
+				List<CompletableFuture<DerbyRestore.TableResult>> parents = new ArrayList<CompletableFuture<DerbyRestore.TableResult>>();
+				if (config.getWaitForParents()) {
+					for (Table parent : table.getParents()) {
+						if (copies.containsKey(parent)) {
+							parents.add(copies.get(parent));
+						}
+					}
+				}
+				// the parents were scheduled first, so they are known here
+				copies.put(table, DerbyRestore.afterParents(parents, () -> {
+					warnAboutFailedParents(table, parents);
+					progress.startTable(table);
+					try {
+						return copyTable(table, db, schema, writers);
+					} finally {
+						progress.finishTable(table);
+					}
+				}, readers));
+			}
+		}
+
+		List<DerbyRestore.TableResult> results = new ArrayList<DerbyRestore.TableResult>();
+		try {
+			for (Table table : tables) {
+				if (copies.containsKey(table)) {
+					results.add(copies.get(table).get());
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			readers.shutdownNow();
+			writers.shutdownNow();
+			progress.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Empty the target tables, children first, so that no enabled foreign key of the target still
+	 * refers to the rows of a table being emptied. Derby refuses to truncate a table which such a
+	 * foreign key refers to, so its rows are deleted instead.
+	 *
+	 * @param tables The tables to copy, parents first
+	 * @return the error for every table which could not be emptied
+	 */
+	private Map<Table, SQLException> emptyTargets(List<Table> tables) {
+		Map<Table, SQLException> failures = new IdentityHashMap<Table, SQLException>();
+		try (Connection target = DriverManager.getConnection(targetUrl)) {
+			for (int i = tables.size() - 1; i >= 0; i--) {
+				Table table = tables.get(i);
+				try (Statement statement = target.createStatement()) {
+					try {
+						statement.execute("TRUNCATE TABLE \"" + table.getTableName() + "\"");
+					} catch (SQLException e) {
+						LOGGER.debug("Could not truncate table " + table.getTableName() + ", deleting its rows instead: " + e.getMessage());
+						statement.executeUpdate("DELETE FROM \"" + table.getTableName() + "\"");
+					}
+				} catch (SQLException e) {
+					LOGGER.error("Could not empty table " + table.getTableName() + ": " + e.getMessage());
+					failures.put(table, e);
+				}
+			}
+		} catch (SQLException e) {
+			LOGGER.error("Could not connect to " + targetUrl + ": " + e.getMessage());
+			for (Table table : tables) {
+				failures.putIfAbsent(table, e);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * A table whose parent failed is still copied, and fails in turn only where its rows refer to
+	 * rows which are missing.
+	 *
+	 * @param parents The copies of the parents, all done
+	 */
+	private static void warnAboutFailedParents(Table table, List<CompletableFuture<DerbyRestore.TableResult>> parents) throws InterruptedException, ExecutionException {
+		for (Future<DerbyRestore.TableResult> parent : parents) {
+			DerbyRestore.TableResult result = parent.get();
+			if (result.getFailure() != null) {
+				LOGGER.warn("Copying table " + table.getTableName() + " although its parent " + result.getTableName() + " failed");
+			}
+		}
+	}
+
+	private static ExecutorService createWorkers(String name, int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, name + "-" + count.incrementAndGet()));
+	}
+
+	private DerbyRestore.TableResult copyTable(Table table, DBConnectionManager db, String schema, ExecutorService writers) throws InterruptedException {
+		LOGGER.info("Copying table " + table.getTableName() + "...");
+		DumpStats.TableStats stats = DumpStats.getStats().startTable(table);
+		long start = System.nanoTime();
+		BlockingQueue<List<Object[]>> batches = new ArrayBlockingQueue<List<Object[]>>(QUEUED_BATCHES);
+		Future<Long> writer = null;
+		Exception failure = null;
+		long rows = 0;
+
+		Connection connection = null;
+		boolean autoCommit = true;
+		try {
+			connection = db.acquireConnection();
+			// large objects stay readable by the writer until the transaction ends
+			autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			writer = writers.submit(() -> writeTable(table, batches));
+
+			try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			     ResultSet dataRows = statement.executeQuery(table.getSelectQuery(schema))) {
+				int columns = table.getColumns().size();
+				int batchSize = config.getStatementRows();
+				List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+				while (dataRows.next()) {
+					Object[] row = new Object[columns];
+					for (int i = 0; i < columns; i++) {
+						row[i] = dataRows.getObject(i + 1);
+					}
+					batch.add(row);
+					stats.addRow();
+					if (batch.size() == batchSize) {
+						put(batches, batch, writer);
+						batch = new ArrayList<Object[]>(batchSize);
+					}
+				}
+				if (!batch.isEmpty()) {
+					put(batches, batch, writer);
+				}
+				put(batches, END, writer);
+				rows = writer.get();
+			}
+			connection.commit();
+		} catch (SQLException | ExecutionException | RuntimeException e) {
+			failure = e instanceof ExecutionException && e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			LOGGER.error("Could not copy table " + table.getTableName() + ": " + failure.getMessage());
+			if (writer != null) {
+				writer.cancel(true);
+			}
+		} finally {
+			stats.finish(System.nanoTime() - start);
+			if (connection != null) {
+				try {
+					connection.rollback();
+					connection.setAutoCommit(autoCommit);
+				} catch (SQLException e) {
+					LOGGER.warn("Could not reset the connection: " + e.getMessage());
+				}
+			}
+			db.releaseConnection(connection);
+		}
+
+		DerbyRestore.TableResult result = new DerbyRestore.TableResult(table.getTableName(), rows, System.nanoTime() - start, failure);
+		LOGGER.info(result.toString());
+		return result;
+	}
+
+	/**
+	 * Hand a batch to the writer, unless it has given up.
+	 */
+	private static void put(BlockingQueue<List<Object[]>> batches, List<Object[]> batch, Future<Long> writer) throws InterruptedException, ExecutionException {
+		while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+			if (writer.isDone()) {
+				writer.get();
+				throw new IllegalStateException("the writer stopped early");
+			}
+		}
+	}
+
+	/**
+	 * Insert the batches of rows until the end of the table.
+	 *
+	 * @return the number of rows inserted
+	 */
+	private long writeTable(Table table, BlockingQueue<List<Object[]>> batches) throws SQLException, InterruptedException {
+		List<Column> columns = table.getColumns();
+		StringBuilder sql = new StringBuilder(table.getInsertSQL().trim()).append(" (");
+		for (int i = 0; i < columns.size(); i++) {
+			sql.append(i == 0 ? "?" : ",?");
+		}
+		sql.append(')');
+
+		long rows = 0;
+		long uncommittedRows = 0;
+		int commitRows = config.getRestoreCommitRows();
+		try (Connection target = DriverManager.getConnection(targetUrl)) {
+			target.setAutoCommit(false);
+			try {
+				try (PreparedStatement insert = target.prepareStatement(sql.toString())) {
+					List<Object[]> batch;
+					while ((batch = batches.take()) != END) {
+						for (Object[] row : batch) {
+							for (int i = 0; i < row.length; i++) {
+								bind(insert, i + 1, columns.get(i), row[i]);
+							}
+							insert.addBatch();
+						}
+						insert.executeBatch();
+						free(batch);
+						rows += batch.size();
+						uncommittedRows += batch.size();
+						if (commitRows > 0 && uncommittedRows >= commitRows) {
+							target.commit();
+							uncommittedRows = 0;
+						}
+					}
+				}
+				target.commit();
+			} catch (SQLException | InterruptedException | RuntimeException e) {
+				target.rollback();
+				throw e;
+			}
+		}
+		return rows;
+	}
+
+	private static void bind(PreparedStatement insert, int index, Column column, Object value) throws SQLException {
+		if (value == null) {
+			insert.setNull(index, column.getColumnDataType());
+		} else if (value instanceof Blob) {
+			Blob blob = (Blob) value;
+			insert.setBinaryStream(index, blob.getBinaryStream(), blob.length());
+		} else if (value instanceof Clob) {
+			Clob clob = (Clob) value;
+			insert.setCharacterStream(index, clob.getCharacterStream(), clob.length());
+		} else {
+			// the type follows from the value as read, which keeps the scale of decimals
+			insert.setObject(index, value);
+		}
+	}
+
+	private static void free(List<Object[]> batch) throws SQLException {
+		for (Object[] row : batch) {
+			for (Object value : row) {
+				if (value instanceof Blob) {
+					((Blob) value).free();
+				} else if (value instanceof Clob) {
+					((Clob) value).free();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports every table with Derby's own export procedures, which write the data on the database
+ * side without turning each value into SQL. This is much faster for moving data from one Derby
+ * database to another.
+ * <p>
+ * Each table goes into its own delimited file in the output directory, and tables with large
+ * objects also get a file holding those. Several tables are exported at the same time, each on
+ * its own connection, the largest first. {@link #IMPORT_SCRIPT} then calls the matching import procedures, using the
+ * rewritten table names. The script refers to the files by name only, so it is run from within the
+ * output directory. The imports of tables which could not be exported are commented out, and their
+ * files are removed.
+ */
+public class TableExport {
+
+	private static final Logger LOGGER = LogManager.getLogger(TableExport.class);
+
+	public static final String IMPORT_SCRIPT = "import.sql";
+	private static final String CODESET = "UTF-8";
+
+	private final File directory;
+	private final Configuration config;
+
+	/**
+	 * @param directory Where the data files and the import script are written
+	 */
+	public TableExport(File directory) {
+		this.directory = directory;
+		this.config = Configuration.getConfiguration();
+	}
+
+	/**
+	 * Export every table which is not excluded, then write the import script.
+	 *
+	 * @param tables The tables to export, in the order they are imported
+	 * @param db     The connection pool used for the exports
+	 * @param schema The name of the schema we are using
+	 * @return the error for every table which could not be exported
+	 */
+	public Map<Table, SQLException> export(List<Table> tables, DBConnectionManager db, String schema) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the directory " + directory);
+		}
+		// procedures take identifiers as stored, and the schema name is used unquoted elsewhere
+		String schemaName = schema.toUpperCase(Locale.ROOT);
+
+		Map<Table, String> baseNames = new IdentityHashMap<Table, String>();
+		int order = 0;
+		for (Table table : tables) {
+			if (!table.isExcluded()) {
+				baseNames.put(table, String.format("%04d_%s", ++order, table.getTableName().replaceAll("[^A-Za-z0-9_.-]", "_")));
+			}
+		}
+		Map<Table, SQLException> failures = Collections.synchronizedMap(new IdentityHashMap<Table, SQLException>());
+		Set<Table> exported = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Table, Boolean>()));
+
+		// the import script keeps the order of the tables, but the exports may run in any order
+		ExecutorService workers = createWorkers(config.getDumpThreads());
+		for (Table table : TableSizes.schedule(tables, db.getConnection(), schema, false)) {
+			if (table.isExcluded()) {
+				continue;
+			}
+			String dataFile = baseNames.get(table) + ".del";
+			String lobFile = table.hasLobColumns() ? baseNames.get(table) + ".lob" : null;
+
+			workers.execute(() -> {
+				Connection connection = null;
+				try {
+					connection = db.acquireConnection();
+					exportTable(connection, schemaName, table, dataFile, lobFile);
+					exported.add(table);
+				} catch (SQLException e) {
+					LOGGER.error("Could not export table " + table.getTableName() + ": " + e.getErrorCode() + " - " + e.getMessage());
+					failures.put(table, e);
+					// a partial file would otherwise pass for the export
+					new File(directory, dataFile).delete();
+					if (lobFile != null) {
+						new File(directory, lobFile).delete();
+					}
+				} finally {
+					db.releaseConnection(connection);
+				}
+			});
+		}
+
+		workers.shutdown();
+		try {
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			LOGGER.error("Interrupted while waiting for the table exports to finish.");
+			workers.shutdownNow();
+		}
+
+		StringBuilder script = new StringBuilder();
+		script.append("-- Run from the directory holding the exported files\n");
+		for (Table table : tables) {
+			if (table.isExcluded()) {
+				continue;
+			}
+			if (!exported.contains(table)) {
+				failures.putIfAbsent(table, new SQLException("The export did not finish"));
+				script.append("-- Not exported: ").append(failures.get(table).getMessage().replace('\n', ' ')).append("\n-- ");
+			}
+			String baseName = baseNames.get(table);
+			appendImport(script, schemaName, table, baseName + ".del", table.hasLobColumns() ? baseName + ".lob" : null);
+		}
+
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(directory, IMPORT_SCRIPT)), StandardCharsets.UTF_8)) {
+			out.write(script.toString());
+		}
+		return failures;
+	}
+
+	private static ExecutorService createWorkers(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "Table_Exporter-" + count.incrementAndGet()));
+	}
+
+	private void exportTable(Connection connection, String schemaName, Table table, String dataFile, String lobFile) throws SQLException {
+		LOGGER.info("Exporting table " + table.getTableName() + "...\n");
+		File data = new File(directory, dataFile);
+		// the procedures refuse to overwrite files left by an earlier export
+		data.delete();
+		String sql = lobFile == null
+				? "CALL SYSCS_UTIL.SYSCS_EXPORT_TABLE(?, ?, ?, NULL, NULL, ?)"
+				: "CALL SYSCS_UTIL.SYSCS_EXPORT_TABLE_LOBS_TO_EXTFILE(?, ?, ?, NULL, NULL, ?, ?)";
+		try (CallableStatement export = connection.prepareCall(sql)) {
+			export.setString(1, schemaName);
+			export.setString(2, table.getDatabaseTableName());
+			export.setString(3, data.getAbsolutePath());
+			export.setString(4, CODESET);
+			if (lobFile != null) {
+				File lobs = new File(directory, lobFile);
+				lobs.delete();
+				// a name without a path puts the file next to the data file, and keeps the reference in it relative
+				export.setString(5, lobFile);
+			}
+			export.execute();
+		}
+	}
+
+	private void appendImport(StringBuilder script, String schemaName, Table table, String dataFile, String lobFile) {
+		script.append(lobFile == null
+				? "CALL SYSCS_UTIL.SYSCS_IMPORT_TABLE("
+				: "CALL SYSCS_UTIL.SYSCS_IMPORT_TABLE_LOBS_FROM_EXTFILE(");
+		appendLiteral(script, schemaName).append(", ");
+		appendLiteral(script, table.getTableName()).append(", ");
+		appendLiteral(script, dataFile).append(", NULL, NULL, ");
+		appendLiteral(script, CODESET).append(", ");
+		// a replacing import empties the table first
+		script.append(config.getTruncateTables() ? 1 : 0).append(");\n");
+	}
+
+	private static StringBuilder appendLiteral(StringBuilder script, String value) {
+		return script.append('\'').append(value.replace("'", "''")).append('\'');
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import au.com.ish.derbydump.derbydump.util.Crc32c;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Writes every table into its own script in a directory, each in its own transaction, so the tables
+ * can be restored independently and in parallel.
+ * <p>
+ * Every file has its own writer thread. A manifest lists the files in the order they were written,
+ * which keeps every table after the tables its foreign keys refer to, with their row count, size and
+ * CRC-32C checksum.
+ */
+public class TableFilesOutput implements DumpOutput {
+	private static final Logger LOGGER = LogManager.getLogger(TableFilesOutput.class);
+
+	public static final String MANIFEST = "manifest.txt";
+
+	private final File directory;
+	/**
+	 * Limits the number of files open at the same time
+	 */
+	private final Semaphore openFiles;
+	private final Map<Table, TableFile> files = new LinkedHashMap<Table, TableFile>();
+	private IOException failure;
+
+	/**
+	 * @param directory    Where the table files and the manifest are written
+	 * @param maxOpenFiles Number of table files which may be written at the same time
+	 */
+	public TableFilesOutput(File directory, int maxOpenFiles) {
+		this.directory = directory;
+		this.openFiles = new Semaphore(Math.max(1, maxOpenFiles));
+	}
+
+	@Override
+	public void begin() {
+		directory.mkdirs();
+		if (!directory.isDirectory()) {
+			LOGGER.error("Could not create the output directory " + directory);
+			throw new RuntimeException("Not a directory: " + directory);
+		}
+	}
+
+	@Override
+	public boolean isTableOrderFree() {
+		return true;
+	}
+
+	@Override
+	public OutputThread openTable(Table table) {
+		// waits for the writer of an earlier table to finish
+		openFiles.acquireUninterruptibly();
+
+		String fileName = String.format("%04d_%s.sql", files.size() + 1, table.getTableName().replaceAll("[^A-Za-z0-9_.-]", "_"));
+		if (OutputThread.isCompressed()) {
+			fileName += ".gz";
+		}
+		File file = new File(directory, fileName);
+
+		try {
+			CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file));
+			Checksum checksum = new Crc32c();
+			// a file is one of many written at once, so it is compressed on a single thread
+			OutputThread output = OutputThread.createFromOutputStream(new CheckedOutputStream(counter, checksum), 1);
+			Thread writer = new Thread(() -> {
+				try {
+					output.run();
+				} finally {
+					openFiles.release();
+				}
+			}, "Table_Writer-" + table.getTableName());
+			writer.start();
+
+			files.put(table, new TableFile(table.getTableName(), fileName, output, writer, counter, checksum));
+			output.add("AUTOCOMMIT OFF;\n");
+			return output;
+		} catch (IOException e) {
+			openFiles.release();
+			LOGGER.error("Could not write to the file " + file);
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void closeTable(Table table, AtomicLong rowCount) {
+		TableFile tableFile = files.get(table);
+		tableFile.rowCount = rowCount;
+		tableFile.output.add("COMMIT;\n");
+		tableFile.output.add("AUTOCOMMIT ON;\n");
+		// the writer still drains every section opened so far before it stops
+		tableFile.output.finish();
+	}
+
+	@Override
+	public void end() {
+		for (TableFile tableFile : files.values()) {
+			try {
+				tableFile.writer.join();
+			} catch (InterruptedException e) {
+				LOGGER.error("Interrupted while waiting for " + tableFile.fileName + " to be written.");
+				failure = new InterruptedIOException("Interrupted while waiting for " + tableFile.fileName + " to be written.");
+				return;
+			}
+			if (tableFile.output.getFailure() != null && failure == null) {
+				failure = new IOException("Could not write " + tableFile.fileName + ": " + tableFile.output.getFailure().getMessage(), tableFile.output.getFailure());
+			}
+		}
+
+		File manifest = new File(directory, MANIFEST);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), StandardCharsets.UTF_8))) {
+			out.write("# order\ttable\tfile\trows\tbytes\tcrc32c\n");
+			int order = 0;
+			for (TableFile tableFile : files.values()) {
+				out.write(String.format("%d\t%s\t%s\t%d\t%d\t%08x\n", ++order, tableFile.tableName, tableFile.fileName,
+						tableFile.rowCount.get(), tableFile.counter.getByteCount(), tableFile.checksum.getValue()));
+			}
+		} catch (IOException e) {
+			LOGGER.error("Could not write the manifest " + manifest + ": " + e.getMessage());
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * @return the first error which kept a table file or the manifest from being written completely,
+	 * or null once {@link #end()} has written everything
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	private static class TableFile {
+		private final String tableName;
+		private final String fileName;
+		private final OutputThread output;
+		private final Thread writer;
+		private final CountingOutputStream counter;
+		private final Checksum checksum;
+		private AtomicLong rowCount = new AtomicLong();
+
+		private TableFile(String tableName, String fileName, OutputThread output, Thread writer, CountingOutputStream counter, Checksum checksum) {
+			this.tableName = tableName;
+			this.fileName = fileName;
+			this.output = output;
+			this.writer = writer;
+			this.counter = counter;
+			this.checksum = checksum;
+		}
+	}
+}
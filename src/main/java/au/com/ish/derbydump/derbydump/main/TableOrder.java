@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Orders tables so that every table comes after the tables its foreign keys refer to, which lets
+ * a restore insert the rows with the constraints in place.
+ * <p>
+ * Apart from that, tables keep the order they were found in. Tables which refer to each other in
+ * a cycle cannot all come after their parents. Such cycles are reported and kept together, in the
+ * order their tables were found, so their constraints have to be disabled while restoring them.
+ */
+public class TableOrder {
+
+	private static final Logger LOGGER = LogManager.getLogger(TableOrder.class);
+
+	/**
+	 * @param tables The tables in the order they were found, with their parents
+	 * @return the same tables, parents first
+	 */
+	public static List<Table> sort(List<Table> tables) {
+		List<List<Table>> components = new CycleFinder(tables).find();
+		for (List<Table> component : components) {
+			if (component.size() > 1) {
+				LOGGER.warn("The foreign keys of tables " + names(component) + " form a cycle, so their constraints must be disabled to restore them.");
+			}
+		}
+
+		// a cycle is placed as a whole, in the order its tables were found
+		Map<Table, Integer> positions = positions(tables);
+		Map<Table, Integer> componentOf = new IdentityHashMap<Table, Integer>();
+		Map<Integer, Integer> componentAt = new HashMap<Integer, Integer>();
+		for (int i = 0; i < components.size(); i++) {
+			for (Table table : components.get(i)) {
+				componentOf.put(table, i);
+			}
+			componentAt.put(positions.get(components.get(i).get(0)), i);
+		}
+
+		List<List<Integer>> children = new ArrayList<List<Integer>>();
+		int[] waiting = new int[components.size()];
+		for (int i = 0; i < components.size(); i++) {
+			children.add(new ArrayList<Integer>());
+		}
+		for (Table table : tables) {
+			for (Table parent : table.getParents()) {
+				Integer component = componentOf.get(parent);
+				if (component != null && component != componentOf.get(table).intValue()) {
+					children.get(component).add(componentOf.get(table));
+					waiting[componentOf.get(table)]++;
+				}
+			}
+		}
+
+		// the first positions of the components whose parents have all been placed, earliest first
+		TreeSet<Integer> ready = new TreeSet<Integer>();
+		for (int i = 0; i < components.size(); i++) {
+			if (waiting[i] == 0) {
+				ready.add(positions.get(components.get(i).get(0)));
+			}
+		}
+
+		List<Table> sorted = new ArrayList<Table>(tables.size());
+		while (!ready.isEmpty()) {
+			int component = componentAt.get(ready.pollFirst());
+			sorted.addAll(components.get(component));
+			for (int child : children.get(component)) {
+				if (--waiting[child] == 0) {
+					ready.add(positions.get(components.get(child).get(0)));
+				}
+			}
+		}
+		return sorted;
+	}
+
+	/**
+	 * @return the groups of tables which refer to each other through their foreign keys, directly or not
+	 */
+	public static List<List<Table>> findCycles(List<Table> tables) {
+		List<List<Table>> cycles = new ArrayList<List<Table>>();
+		for (List<Table> component : new CycleFinder(tables).find()) {
+			if (component.size() > 1) {
+				cycles.add(component);
+			}
+		}
+		return cycles;
+	}
+
+	private static Map<Table, Integer> positions(List<Table> tables) {
+		Map<Table, Integer> positions = new IdentityHashMap<Table, Integer>();
+		for (int i = 0; i < tables.size(); i++) {
+			positions.put(tables.get(i), i);
+		}
+		return positions;
+	}
+
+	private static String names(List<Table> tables) {
+		List<String> names = new ArrayList<String>();
+		for (Table table : tables) {
+			names.add(table.getTableName());
+		}
+		return String.join(", ", names);
+	}
+
+	/**
+	 * Tarjan's search for the strongly connected components of the graph of foreign keys. A table
+	 * outside any cycle is a component of its own.
+	 */
+	private static class CycleFinder {
+		private final List<Table> tables;
+		private final Map<Table, Integer> positions;
+		private final Map<Table, Integer> index = new HashMap<Table, Integer>();
+		private final Map<Table, Integer> lowLink = new HashMap<Table, Integer>();
+		private final List<Table> stack = new ArrayList<Table>();
+		private final Set<Table> onStack = new HashSet<Table>();
+		private final List<List<Table>> components = new ArrayList<List<Table>>();
+
+		CycleFinder(List<Table> tables) {
+			this.tables = tables;
+			this.positions = positions(tables);
+		}
+
+		List<List<Table>> find() {
+			for (Table table : tables) {
+				if (!index.containsKey(table)) {
+					visit(table);
+				}
+			}
+			return components;
+		}
+
+		private void visit(Table table) {
+			index.put(table, index.size());
+			lowLink.put(table, index.get(table));
+			stack.add(table);
+			onStack.add(table);
+
+			for (Table parent : table.getParents()) {
+				if (!positions.containsKey(parent)) {
+					continue;
+				}
+				if (!index.containsKey(parent)) {
+					visit(parent);
+					lowLink.put(table, Math.min(lowLink.get(table), lowLink.get(parent)));
+				} else if (onStack.contains(parent)) {
+					lowLink.put(table, Math.min(lowLink.get(table), index.get(parent)));
+				}
+			}
+
+			if (lowLink.get(table).equals(index.get(table))) {
+				int start = stack.lastIndexOf(table);
+				List<Table> component = new ArrayList<Table>(stack.subList(start, stack.size()));
+				stack.subList(start, stack.size()).clear();
+				onStack.removeAll(component);
+				component.sort((a, b) -> positions.get(a) - positions.get(b));
+				components.add(component);
+			}
+		}
+	}
+}
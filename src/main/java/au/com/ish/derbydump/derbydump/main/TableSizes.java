@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.derby.catalog.Statistics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Estimates how large tables are, and orders the work on them largest first, so that a big table
+ * does not start last and keep one worker busy long after the others are done.
+ * <p>
+ * The space taken up by the rows of every table comes from <code>SYSCS_DIAG.SPACE_TABLE</code>,
+ * and the number of rows from the index statistics in <code>SYS.SYSSTATISTICS</code>, which only
+ * exist for tables with indexes. Both take one query for the whole schema. Counting the rows of
+ * the tables left without an estimate reads them completely, so it is only done with
+ * <code>dump.countRows</code>.
+ */
+public class TableSizes {
+
+	private static final Logger LOGGER = LogManager.getLogger(TableSizes.class);
+
+	/**
+	 * Pages allocated to the rows of every table of a schema, leaving out its indexes
+	 */
+	private static final String SPACE_QUERY = "SELECT T.TABLENAME, V.NUMALLOCATEDPAGES, V.PAGESIZE"
+			+ " FROM SYS.SYSSCHEMAS S, SYS.SYSTABLES T, TABLE(SYSCS_DIAG.SPACE_TABLE(S.SCHEMANAME, T.TABLENAME)) V"
+			+ " WHERE S.SCHEMAID = T.SCHEMAID AND S.SCHEMANAME = ? AND T.TABLETYPE = 'T' AND V.ISINDEX = 0";
+
+	/**
+	 * The statistics of every index of a schema, which know the number of rows at the time they were taken
+	 */
+	private static final String STATISTICS_QUERY = "SELECT T.TABLENAME, ST.STATISTICS"
+			+ " FROM SYS.SYSSTATISTICS ST"
+			+ " JOIN SYS.SYSTABLES T ON T.TABLEID = ST.TABLEID"
+			+ " JOIN SYS.SYSSCHEMAS S ON S.SCHEMAID = T.SCHEMAID"
+			+ " WHERE S.SCHEMANAME = ?";
+
+	/**
+	 * Estimate the tables and put them largest first, if <code>dump.largestFirst</code> is set.
+	 *
+	 * @param tables         The tables in the order they are written
+	 * @param respectParents Whether a table must stay after the tables its foreign keys refer to
+	 * @return the tables in the order to work on them
+	 */
+	public static List<Table> schedule(List<Table> tables, Connection conn, String schema, boolean respectParents) {
+		Configuration config = Configuration.getConfiguration();
+		if (!config.getLargestFirst()) {
+			return tables;
+		}
+		estimate(conn, schema, tables, config.getCountRows());
+		return largestFirst(tables, respectParents);
+	}
+
+	/**
+	 * Set the estimated rows and bytes of every table. A table whose size cannot be found keeps -1.
+	 *
+	 * @param countRows Whether to count the rows of the tables without statistics
+	 */
+	public static void estimate(Connection conn, String schema, List<Table> tables, boolean countRows) {
+		Map<String, Table> tablesByName = new HashMap<String, Table>();
+		for (Table table : tables) {
+			tablesByName.put(table.getDatabaseTableName(), table);
+		}
+		String schemaName = schema.toUpperCase(Locale.ROOT);
+
+		try (PreparedStatement statement = conn.prepareStatement(SPACE_QUERY)) {
+			statement.setString(1, schemaName);
+			try (ResultSet space = statement.executeQuery()) {
+				while (space.next()) {
+					Table table = tablesByName.get(space.getString(1));
+					if (table != null) {
+						table.setEstimatedBytes(space.getLong(2) * space.getLong(3));
+					}
+				}
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Could not find the space taken up by the tables of schema " + schemaName + ": " + e.getMessage());
+		}
+
+		try (PreparedStatement statement = conn.prepareStatement(STATISTICS_QUERY)) {
+			statement.setString(1, schemaName);
+			try (ResultSet statistics = statement.executeQuery()) {
+				while (statistics.next()) {
+					Table table = tablesByName.get(statistics.getString(1));
+					Object value = statistics.getObject(2);
+					if (table != null && value instanceof Statistics) {
+						// every index counts all the rows, the latest statistics are the closest
+						table.setEstimatedRows(Math.max(table.getEstimatedRows(), ((Statistics) value).getRowEstimate()));
+					}
+				}
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Could not read the statistics of schema " + schemaName + ": " + e.getMessage());
+		}
+
+		if (countRows) {
+			for (Table table : tables) {
+				if (table.getEstimatedRows() < 0 && !table.isExcluded()) {
+					try (Statement statement = conn.createStatement();
+					     ResultSet count = statement.executeQuery(table.getCountQuery(schema))) {
+						count.next();
+						table.setEstimatedRows(count.getLong(1));
+					} catch (SQLException e) {
+						LOGGER.warn("Could not count the rows of table " + table.getTableName() + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Order the tables by their estimated size, largest first, leaving tables of the same or an
+	 * unknown size in their order.
+	 *
+	 * @param respectParents Whether a table must stay after the tables its foreign keys refer to. Only
+	 *                       parents before it in the list count, so that cycles are no obstacle.
+	 */
+	public static List<Table> largestFirst(List<Table> tables, boolean respectParents) {
+		Map<Table, Integer> positions = new IdentityHashMap<Table, Integer>();
+		for (int i = 0; i < tables.size(); i++) {
+			positions.put(tables.get(i), i);
+		}
+		Comparator<Table> largestFirst = Comparator.comparingLong(TableSizes::size).reversed()
+				.thenComparing(table -> positions.get(table));
+
+		if (!respectParents) {
+			List<Table> sorted = new ArrayList<Table>(tables);
+			sorted.sort(largestFirst);
+			return sorted;
+		}
+
+		// whenever a table is placed, the largest of the tables whose parents are all placed follows
+		Map<Table, List<Table>> children = new IdentityHashMap<Table, List<Table>>();
+		int[] waiting = new int[tables.size()];
+		PriorityQueue<Table> ready = new PriorityQueue<Table>(Math.max(1, tables.size()), largestFirst);
+		for (Table table : tables) {
+			for (Table parent : table.getParents()) {
+				Integer position = positions.get(parent);
+				if (position != null && position < positions.get(table)) {
+					children.computeIfAbsent(parent, key -> new ArrayList<Table>()).add(table);
+					waiting[positions.get(table)]++;
+				}
+			}
+			if (waiting[positions.get(table)] == 0) {
+				ready.add(table);
+			}
+		}
+
+		List<Table> sorted = new ArrayList<Table>(tables.size());
+		while (!ready.isEmpty()) {
+			Table table = ready.poll();
+			sorted.add(table);
+			for (Table child : children.getOrDefault(table, new ArrayList<Table>())) {
+				if (--waiting[positions.get(child)] == 0) {
+					ready.add(child);
+				}
+			}
+		}
+		return sorted;
+	}
+
+	/**
+	 * @return the space taken up by the table, failing that its rows, or 0 if neither is known
+	 */
+	private static long size(Table table) {
+		if (table.getEstimatedBytes() >= 0) {
+			return table.getEstimatedBytes();
+		}
+		return Math.max(0, table.getEstimatedRows());
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Properties;
+
+/**
+ * Keeps the high-water mark of every table with a watermark column, so that a dump only contains
+ * the rows which changed since the previous one.
+ * <p>
+ * The watermark column of a table is a last modified timestamp or an increasing id, configured in
+ * the file at <code>watermarkPath</code>. The marks reached by a dump are kept in the file at
+ * <code>watermarkStatePath</code>. A table without a stored mark is dumped in full.
+ * <p>
+ * The highest value of the column is looked up before the rows are read, and the dump covers the
+ * rows above the stored mark up to that value. Rows changed while the dump runs are therefore
+ * picked up by the next one. Rows with a null watermark are only part of the first, full dump, and
+ * deleted rows are not carried over.
+ */
+public class Watermarks {
+
+	private static final Logger LOGGER = LogManager.getLogger(Watermarks.class);
+
+	private final Configuration config;
+	private final File stateFile;
+	private final Properties marks = new Properties();
+
+	/**
+	 * Watermarks without any stored marks, which are never saved.
+	 */
+	public Watermarks() {
+		this(null);
+	}
+
+	/**
+	 * @param stateFile The marks of the previous dump, and where the new ones are saved. Null if they are not kept.
+	 */
+	public Watermarks(File stateFile) {
+		this.config = Configuration.getConfiguration();
+		this.stateFile = stateFile;
+		if (stateFile != null && stateFile.exists()) {
+			try (FileInputStream in = new FileInputStream(stateFile)) {
+				marks.load(in);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not read the watermarks from " + stateFile, e);
+			}
+		}
+	}
+
+	/**
+	 * @return the watermarks kept in the configured state file
+	 */
+	public static Watermarks fromConfiguration() {
+		String path = Configuration.getConfiguration().getWatermarkStatePath();
+		return new Watermarks(path == null ? null : new File(path));
+	}
+
+	/**
+	 * Look up how far the table is going to be dumped.
+	 *
+	 * @param table The table to dump
+	 * @param connection Used to look up the highest watermark value
+	 * @param schema The name of the schema we are using
+	 *
+	 * @return the rows to dump, or null if the table has no watermark and is dumped as usual
+	 */
+	public Delta prepare(Table table, Connection connection, String schema) throws SQLException {
+		String columnName = config.getWatermarkColumn(table.getDatabaseTableName());
+		if (columnName == null) {
+			return null;
+		}
+		Column column = findColumn(table, columnName);
+		if (column == null) {
+			LOGGER.warn("Table " + table.getTableName() + " has no watermark column " + columnName + ", dumping it in full.");
+			return null;
+		}
+
+		String to;
+		try (Statement statement = connection.createStatement();
+		     ResultSet max = statement.executeQuery(table.getMaxQuery(schema, column))) {
+			max.next();
+			to = max.getString(1);
+		}
+
+		String from;
+		synchronized (marks) {
+			from = marks.getProperty(table.getDatabaseTableName());
+		}
+		if (from != null && table.getPrimaryKey().isEmpty()) {
+			LOGGER.warn("Table " + table.getTableName() + " has no primary key, so changed rows are inserted again rather than replaced.");
+		}
+		return new Delta(table, column, schema, from, to);
+	}
+
+	private static Column findColumn(Table table, String columnName) {
+		for (Column column : table.getColumns()) {
+			if (column.getColumnName().equalsIgnoreCase(columnName)) {
+				return column;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remember the mark reached once the rows of a delta have been read.
+	 */
+	public void commit(Delta delta) {
+		if (delta.to != null) {
+			synchronized (marks) {
+				marks.setProperty(delta.table.getDatabaseTableName(), delta.to);
+			}
+		}
+	}
+
+	/**
+	 * Write the marks of all committed deltas, together with the unchanged marks of other tables.
+	 * The file is replaced in one step, so it always holds either the old or the new marks.
+	 */
+	public void save() throws IOException {
+		if (stateFile == null) {
+			return;
+		}
+		File directory = stateFile.getAbsoluteFile().getParentFile();
+		File temporary = File.createTempFile(stateFile.getName(), ".tmp", directory);
+		try {
+			try (OutputStream out = new FileOutputStream(temporary)) {
+				synchronized (marks) {
+					marks.store(out, "High-water marks of the last dump");
+				}
+			}
+			Files.move(temporary.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * @return the value as a literal which can be compared with the column in SQL
+	 */
+	static String toLiteral(Column column, String value) {
+		switch (column.getColumnDataType()) {
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return value;
+			case Types.DATE:
+				return "DATE('" + value + "')";
+			case Types.TIME:
+				return "TIME('" + value + "')";
+			case Types.TIMESTAMP:
+				return "TIMESTAMP('" + value + "')";
+			default:
+				return "'" + value.replace("'", "''") + "'";
+		}
+	}
+
+	/**
+	 * The rows of one table which changed since the previous dump.
+	 */
+	public static class Delta {
+		private final Table table;
+		private final String from;
+		private final String to;
+		private final String selectQuery;
+		private final String keyQuery;
+
+		Delta(Table table, Column column, String schema, String from, String to) {
+			this.table = table;
+			this.from = from;
+			this.to = to;
+			if (from == null) {
+				// without a mark the table is dumped in full, rows with no watermark value included. Rows
+				// changed after the mark was read are left to the next delta, so that no row is dumped twice.
+				selectQuery = to == null ? table.getSelectQuery(schema) : table.getSelectQueryUpTo(schema, column, toLiteral(column, to));
+				keyQuery = null;
+			} else if (to == null) {
+				selectQuery = null;
+				keyQuery = null;
+			} else {
+				String fromLiteral = toLiteral(column, from);
+				String toLiteral = toLiteral(column, to);
+				selectQuery = table.getDeltaSelectQuery(schema, column, fromLiteral, toLiteral);
+				keyQuery = table.getPrimaryKey().isEmpty() ? null : table.getDeltaKeyQuery(schema, column, fromLiteral, toLiteral);
+			}
+		}
+
+		/**
+		 * @return true if there is no earlier mark and the whole table is dumped
+		 */
+		public boolean isFull() {
+			return from == null;
+		}
+
+		/**
+		 * @return the query for the rows to dump, or null if there are none
+		 */
+		public String getSelectQuery() {
+			return selectQuery;
+		}
+
+		/**
+		 * @return the query for the primary key of the rows to dump, whose old versions are deleted
+		 * before they are inserted again, or null if nothing needs to be deleted
+		 */
+		public String getKeyQuery() {
+			return keyQuery;
+		}
+	}
+}
@@ -16,15 +16,13 @@
 
 package au.com.ish.derbydump.derbydump.metadata;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.IOUtils;
+import au.com.ish.derbydump.derbydump.util.ChunkBuffer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
-import java.math.BigDecimal;
 import java.sql.*;
 
 /**
@@ -33,6 +31,11 @@ import java.sql.*;
 public class Column {
 
   private static final Logger LOGGER = LogManager.getLogger(Column.class);
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+  /**
+   * Size of the blocks in which large objects are read and written
+   */
+  static final int LOB_BLOCK_SIZE = 8192;
   /**
    * Name of the column
    */
@@ -41,6 +44,10 @@ public class Column {
    * Data type of the column
    */
   private int columnDataType;
+  /**
+   * Whether the column accepts NULL values
+   */
+  private boolean nullable = true;
 
   /**
    * @return the columnName
@@ -71,77 +78,52 @@ public class Column {
   }
 
   /**
-   * Get a string value for the value in this column in the data row
-   *
-   * @param dataRow The row which we are exporting
-   * @return an SQL statement compliant string version of the value
+   * @return whether the column accepts NULL values
    */
-  public String toString(ResultSet dataRow) throws SQLException {
-
-    switch (getColumnDataType()) {
-      case Types.BINARY:
-      case Types.VARBINARY:
-      case Types.BLOB: {
-        Blob obj = dataRow.getBlob(columnName);
-        return (obj == null) ? "NULL" : processBinaryData(obj);
-      }
-
-      case Types.CLOB: {
-        Clob obj = dataRow.getClob(columnName);
-        return (obj == null) ? "NULL" : processClobData(obj);
-      }
-
-      case Types.CHAR:
-      case Types.LONGNVARCHAR:
-      case Types.VARCHAR: {
-        String obj = dataRow.getString(columnName);
-        return (obj == null) ? "NULL" : processStringData(obj);
-      }
-
-      case Types.TIME: {
-        Time obj = dataRow.getTime(columnName);
-        return (obj == null) ? "NULL" : processStringData(obj.toString());
-      }
-
-      case Types.DATE: {
-        Date obj = dataRow.getDate(columnName);
-        return (obj == null) ? "NULL" : processStringData(obj.toString());
-      }
-
-      case Types.TIMESTAMP: {
-        Timestamp obj = dataRow.getTimestamp(columnName);
-        return (obj == null) ? "NULL" : processStringData(obj.toString());
-      }
-
-      case Types.NUMERIC:
-      case Types.DECIMAL: {
-        BigDecimal obj = dataRow.getBigDecimal(columnName);
-        return (obj == null) ? "NULL" : String.valueOf(obj);
-      }
-
-      case Types.REAL:
-      case Types.FLOAT: {
-        Float obj = dataRow.getFloat(columnName);
-        // dataRow.getFloat() always returns a value. only way to check the null is wasNull() method
-        return (dataRow.wasNull()) ? "NULL" : String.valueOf(obj);
-      }
+  public boolean isNullable() {
+    return nullable;
+  }
 
-      case Types.DOUBLE: {
-        Double obj = dataRow.getDouble(columnName);
-        return (dataRow.wasNull()) ? "NULL" : String.valueOf(obj);
-      }
+  /**
+   * @param nullable whether the column accepts NULL values
+   */
+  public void setNullable(boolean nullable) {
+    this.nullable = nullable;
+  }
 
+  /**
+   * @return true if the column holds whole numbers which fit into a long
+   */
+  public boolean isIntegral() {
+    switch (getColumnDataType()) {
       case Types.SMALLINT:
-      case Types.BIGINT:
       case Types.INTEGER:
-      case Types.BOOLEAN:
-      default: {
-        Object obj = dataRow.getObject(columnName);
-        return (obj == null) ? "NULL" : obj.toString();
-      }
+      case Types.BIGINT:
+        return true;
+      default:
+        return false;
     }
   }
 
+  /**
+   * @return true if the column holds large objects, which Derby can export into a separate file
+   */
+  public boolean isLob() {
+    return getColumnDataType() == Types.BLOB || getColumnDataType() == Types.CLOB;
+  }
+
+  /**
+   * Get a string value for the value in this column in the data row
+   *
+   * @param dataRow The row which we are exporting
+   * @return an SQL statement compliant string version of the value
+   */
+  public String toString(ResultSet dataRow) throws SQLException {
+    StringBuilder output = new StringBuilder();
+    ColumnEncoder.forColumn(this, dataRow.findColumn(columnName)).encode(dataRow, output);
+    return output.toString();
+  }
+
 
   /**
    * this is a tricky one. according to
@@ -163,14 +145,65 @@ public class Column {
     if (blob == null) {
       return "NULL";
     }
-    int blobLength = (int) blob.length();
-    if (blobLength == 0) {
-      return "NULL";
+    StringBuilder result = new StringBuilder();
+    ChunkBuffer output = new ChunkBuffer(LOB_BLOCK_SIZE, result::append);
+    writeBinaryData(blob, output);
+    output.flush();
+    return result.toString();
+  }
+
+  /**
+   * Write the blob in the format of {@link #processBinaryData(Blob)}. The blob is read and hex encoded
+   * in blocks of a fixed size and the output is flushed between blocks, so the memory used does not
+   * depend on the size of the blob.
+   *
+   * @param blob   Blob which we will convert to hex encoded string
+   * @param output Where the hex encoded value is written
+   */
+  public static void writeBinaryData(Blob blob, ChunkBuffer output) throws SQLException {
+    if (blob == null || blob.length() == 0) {
+      output.getBuilder().append("NULL");
+      return;
     }
-    byte[] bytes = blob.getBytes(1L, blobLength);
 
-//    return "0x" + new String(Hex.encodeHex(bytes)).toUpperCase();
-    return "CAST(X'" + new String(Hex.encodeHex(bytes)).toUpperCase() + "' as BLOB)";
+    output.getBuilder().append("CAST(X'");
+    byte[] block = new byte[LOB_BLOCK_SIZE];
+    char[] hex = new char[LOB_BLOCK_SIZE * 2];
+    try (InputStream in = blob.getBinaryStream()) {
+      int read;
+      while ((read = in.read(block)) != -1) {
+        toHex(block, read, hex);
+        output.getBuilder().append(hex, 0, 2 * read);
+        output.flushIfFull();
+      }
+    } catch (IOException e) {
+      throw new SQLException("Could not read data from stream :" + e.getMessage(), e);
+    }
+    output.getBuilder().append("' as BLOB)");
+  }
+
+  /**
+   * Append binary data in the format of {@link #processBinaryData(Blob)}.
+   *
+   * @param data   The value, or null
+   * @param output Where the hex encoded value is appended
+   */
+  static void appendBinaryData(byte[] data, StringBuilder output) {
+    if (data == null || data.length == 0) {
+      output.append("NULL");
+      return;
+    }
+    char[] hex = new char[data.length * 2];
+    toHex(data, data.length, hex);
+    output.append("CAST(X'").append(hex).append("' as BLOB)");
+  }
+
+  private static void toHex(byte[] data, int length, char[] hex) {
+    for (int i = 0; i < length; i++) {
+      int value = data[i] & 0xFF;
+      hex[2 * i] = HEX_DIGITS[value >>> 4];
+      hex[2 * i + 1] = HEX_DIGITS[value & 0x0F];
+    }
   }
 
   /**
@@ -181,24 +214,47 @@ public class Column {
     if (data == null)
       return "NULL";
 
-    Reader reader = null;
-    BufferedReader br = null;
+    StringBuilder result = new StringBuilder();
+    ChunkBuffer output = new ChunkBuffer(LOB_BLOCK_SIZE, result::append);
     try {
-      reader = data.getCharacterStream();
-      br = new BufferedReader(reader);
-
-      return processStringData(IOUtils.toString(br));
+      writeClobData(data, output);
+      output.flush();
+      return result.toString();
     } catch (SQLException e) {
       LOGGER.error("Could not read data from stream :" + e.getErrorCode() + " - " + e.getMessage(), e);
-    } catch (IOException e) {
-      LOGGER.error("Could not read data from stream :" + e.getMessage(), e);
-    } finally {
-      IOUtils.closeQuietly(reader);
-      IOUtils.closeQuietly(br);
     }
     return "NULL";
   }
 
+  /**
+   * Write the clob in the format of {@link #processClobData(Clob)}. The clob is read and escaped in
+   * windows of a fixed size and the output is flushed between windows, so the memory used does not
+   * depend on the size of the clob. Every character is escaped on its own, so the window boundaries
+   * never split an escape sequence.
+   *
+   * @param data   Clob to process and encode
+   * @param output Where the quoted and escaped value is written
+   */
+  public static void writeClobData(Clob data, ChunkBuffer output) throws SQLException {
+    if (data == null) {
+      output.getBuilder().append("NULL");
+      return;
+    }
+
+    output.getBuilder().append('\'');
+    char[] window = new char[LOB_BLOCK_SIZE];
+    try (Reader reader = data.getCharacterStream()) {
+      int read;
+      while ((read = reader.read(window)) != -1) {
+        escapeQuotes(window, 0, read, output.getBuilder());
+        output.flushIfFull();
+      }
+    } catch (IOException e) {
+      throw new SQLException("Could not read data from stream :" + e.getMessage(), e);
+    }
+    output.getBuilder().append('\'');
+  }
+
   /**
    * @param data String to process
    * @return String representation of string data after escaping.
@@ -207,42 +263,94 @@ public class Column {
     if (data == null)
       return "NULL";
 
-    return "'" + escapeQuotes(data) + "'";
+    StringBuilder output = new StringBuilder(data.length() + 2);
+    output.append('\'');
+    escapeQuotes(data, output);
+    output.append('\'');
+    return output.toString();
   }
 
   /**
    * Escapes sql special characters
    *
    * @param raw String value which will be processed and escaped
-   * @return Escaped query
+   * @return Escaped query, or raw itself if it contains nothing to escape
    */
   static String escapeQuotes(String raw) {
-    String output;
-
-    // Replace "\" with "\\"
-    output = raw.replaceAll("\\\\", "\\\\\\\\");
-
-    // Replace ASCII NUL
-    output = output.replaceAll("\\x00", "\\\\0");
-
-    // Replace tab with "\t"
-    output = output.replaceAll("\\x09", "\\\\t");
-
-    // Replace backspace with "\b"
-    output = output.replaceAll("\\x08", "\\\\b");
+    int length = raw.length();
+    int start = 0;
+    while (start < length && escapeSequence(raw.charAt(start)) == null) {
+      start++;
+    }
+    if (start == length) {
+      return raw;
+    }
 
-    // Replace newline with "\n"
-    output = output.replaceAll("\\n", "\\\\n");
+    StringBuilder output = new StringBuilder(length + 16);
+    output.append(raw, 0, start);
+    escapeQuotes(raw, start, length, output);
+    return output.toString();
+  }
 
-    // Replace carriage return with "\r"
-    output = output.replaceAll("\\r", "\\\\r");
+  /**
+   * Escapes sql special characters in a single pass, appending the result to output.
+   *
+   * @param raw String value which will be processed and escaped
+   * @param output Where the escaped value is appended
+   */
+  static void escapeQuotes(CharSequence raw, StringBuilder output) {
+    escapeQuotes(raw, 0, raw.length(), output);
+  }
 
-    // Replace ASCII 26 (Windows eof)
-    output = output.replaceAll("\\x1a", "\\\\Z");
+  private static void escapeQuotes(CharSequence raw, int start, int end, StringBuilder output) {
+    // runs of characters which need no escaping are copied in one go
+    int run = start;
+    for (int i = start; i < end; i++) {
+      String escaped = escapeSequence(raw.charAt(i));
+      if (escaped != null) {
+        output.append(raw, run, i).append(escaped);
+        run = i + 1;
+      }
+    }
+    output.append(raw, run, end);
+  }
 
-    // Replace "'" with "\'"
-    output = output.replaceAll("\'", "''");
+  private static void escapeQuotes(char[] raw, int start, int end, StringBuilder output) {
+    int run = start;
+    for (int i = start; i < end; i++) {
+      String escaped = escapeSequence(raw[i]);
+      if (escaped != null) {
+        output.append(raw, run, i - run).append(escaped);
+        run = i + 1;
+      }
+    }
+    output.append(raw, run, end - run);
+  }
 
-    return output;
+  /**
+   * @param c a character of a string value
+   * @return the sequence which replaces c in the output, or null if c is written as is
+   */
+  private static String escapeSequence(char c) {
+    switch (c) {
+      case '\\':
+        return "\\\\";
+      case 0x00: // ASCII NUL
+        return "\\0";
+      case '\t':
+        return "\\t";
+      case '\b':
+        return "\\b";
+      case '\n':
+        return "\\n";
+      case '\r':
+        return "\\r";
+      case 0x1a: // ASCII 26 (Windows eof)
+        return "\\Z";
+      case '\'':
+        return "''";
+      default:
+        return null;
+    }
   }
 }
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.metadata;
+
+import au.com.ish.derbydump.derbydump.util.ChunkBuffer;
+
+import java.math.BigDecimal;
+import java.sql.*;
+
+/**
+ * Appends the SQL literal of one column of the current row to a buffer.
+ * <p>
+ * An encoder is chosen once for the data type of its column and reads the value by its
+ * position in the result set, using primitive getters where the type allows it.
+ */
+public abstract class ColumnEncoder {
+
+  private static final String NULL = "NULL";
+
+  /**
+   * 1-based position of the column in the result set
+   */
+  protected final int index;
+
+  protected ColumnEncoder(int index) {
+    this.index = index;
+  }
+
+  /**
+   * @param dataRow The row which we are exporting
+   * @param output  Where the SQL statement compliant version of the value is appended
+   */
+  public abstract void encode(ResultSet dataRow, StringBuilder output) throws SQLException;
+
+  /**
+   * Encoders for large objects override this to write their value in blocks, flushing the
+   * output in between.
+   *
+   * @param dataRow The row which we are exporting
+   * @param output  Where the SQL statement compliant version of the value is written
+   */
+  public void encode(ResultSet dataRow, ChunkBuffer output) throws SQLException {
+    encode(dataRow, output.getBuilder());
+  }
+
+  /**
+   * @param column The column to encode
+   * @param index  The 1-based position of the column in the result set
+   * @return an encoder for the data type of the column
+   */
+  public static ColumnEncoder forColumn(Column column, int index) {
+    switch (column.getColumnDataType()) {
+      case Types.BINARY:
+      case Types.VARBINARY:
+      case Types.BLOB:
+        return new BlobEncoder(index);
+
+      case Types.CLOB:
+        return new ClobEncoder(index);
+
+      case Types.CHAR:
+      case Types.LONGNVARCHAR:
+      case Types.VARCHAR:
+        return new StringEncoder(index);
+
+      case Types.TIME:
+        return new TimeEncoder(index);
+
+      case Types.DATE:
+        return new DateEncoder(index);
+
+      case Types.TIMESTAMP:
+        return new TimestampEncoder(index);
+
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return new DecimalEncoder(index);
+
+      case Types.REAL:
+      case Types.FLOAT:
+        return new FloatEncoder(index);
+
+      case Types.DOUBLE:
+        return new DoubleEncoder(index);
+
+      case Types.SMALLINT:
+      case Types.INTEGER:
+        return new IntegerEncoder(index);
+
+      case Types.BIGINT:
+        return new LongEncoder(index);
+
+      case Types.BOOLEAN:
+        return new BooleanEncoder(index);
+
+      default:
+        return new ObjectEncoder(index);
+    }
+  }
+
+  /**
+   * Append the SQL literal of a value which has already been read, in the same form the encoder
+   * for the column would write it.
+   *
+   * @param column The column the value belongs to
+   * @param value  The value, or null
+   * @param output Where the literal is appended
+   */
+  public static void appendLiteral(Column column, Object value, StringBuilder output) {
+    if (value == null) {
+      output.append(NULL);
+      return;
+    }
+    switch (column.getColumnDataType()) {
+      case Types.BINARY:
+      case Types.VARBINARY:
+      case Types.BLOB:
+        Column.appendBinaryData((byte[]) value, output);
+        break;
+
+      case Types.CLOB:
+      case Types.CHAR:
+      case Types.LONGNVARCHAR:
+      case Types.VARCHAR:
+      case Types.TIME:
+      case Types.DATE:
+      case Types.TIMESTAMP:
+        appendQuoted(value.toString(), output);
+        break;
+
+      default:
+        output.append(value);
+    }
+  }
+
+  private static void appendQuoted(String value, StringBuilder output) {
+    output.append('\'');
+    Column.escapeQuotes(value, output);
+    output.append('\'');
+  }
+
+  private static final class BlobEncoder extends ColumnEncoder {
+    BlobEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      Blob value = dataRow.getBlob(index);
+      if (value == null) {
+        output.append(NULL);
+        return;
+      }
+      try {
+        output.append(Column.processBinaryData(value));
+      } finally {
+        value.free();
+      }
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, ChunkBuffer output) throws SQLException {
+      Blob value = dataRow.getBlob(index);
+      if (value == null) {
+        output.getBuilder().append(NULL);
+        return;
+      }
+      try {
+        Column.writeBinaryData(value, output);
+      } finally {
+        value.free();
+      }
+    }
+  }
+
+  private static final class ClobEncoder extends ColumnEncoder {
+    ClobEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      Clob value = dataRow.getClob(index);
+      if (value == null) {
+        output.append(NULL);
+        return;
+      }
+      try {
+        output.append(Column.processClobData(value));
+      } finally {
+        value.free();
+      }
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, ChunkBuffer output) throws SQLException {
+      Clob value = dataRow.getClob(index);
+      if (value == null) {
+        output.getBuilder().append(NULL);
+        return;
+      }
+      try {
+        Column.writeClobData(value, output);
+      } finally {
+        value.free();
+      }
+    }
+  }
+
+  private static final class StringEncoder extends ColumnEncoder {
+    StringEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      String value = dataRow.getString(index);
+      if (value == null) {
+        output.append(NULL);
+      } else {
+        appendQuoted(value, output);
+      }
+    }
+  }
+
+  private static final class TimeEncoder extends ColumnEncoder {
+    TimeEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      Time value = dataRow.getTime(index);
+      if (value == null) {
+        output.append(NULL);
+      } else {
+        appendQuoted(value.toString(), output);
+      }
+    }
+  }
+
+  private static final class DateEncoder extends ColumnEncoder {
+    DateEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      Date value = dataRow.getDate(index);
+      if (value == null) {
+        output.append(NULL);
+      } else {
+        appendQuoted(value.toString(), output);
+      }
+    }
+  }
+
+  private static final class TimestampEncoder extends ColumnEncoder {
+    TimestampEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      Timestamp value = dataRow.getTimestamp(index);
+      if (value == null) {
+        output.append(NULL);
+      } else {
+        appendQuoted(value.toString(), output);
+      }
+    }
+  }
+
+  private static final class DecimalEncoder extends ColumnEncoder {
+    DecimalEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      BigDecimal value = dataRow.getBigDecimal(index);
+      output.append(value == null ? NULL : value.toString());
+    }
+  }
+
+  private static final class FloatEncoder extends ColumnEncoder {
+    FloatEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      float value = dataRow.getFloat(index);
+      // getFloat() always returns a value. only way to check the null is wasNull() method
+      if (dataRow.wasNull()) {
+        output.append(NULL);
+      } else {
+        output.append(value);
+      }
+    }
+  }
+
+  private static final class DoubleEncoder extends ColumnEncoder {
+    DoubleEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      double value = dataRow.getDouble(index);
+      if (dataRow.wasNull()) {
+        output.append(NULL);
+      } else {
+        output.append(value);
+      }
+    }
+  }
+
+  private static final class IntegerEncoder extends ColumnEncoder {
+    IntegerEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      int value = dataRow.getInt(index);
+      if (dataRow.wasNull()) {
+        output.append(NULL);
+      } else {
+        output.append(value);
+      }
+    }
+  }
+
+  private static final class LongEncoder extends ColumnEncoder {
+    LongEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      long value = dataRow.getLong(index);
+      if (dataRow.wasNull()) {
+        output.append(NULL);
+      } else {
+        output.append(value);
+      }
+    }
+  }
+
+  private static final class BooleanEncoder extends ColumnEncoder {
+    BooleanEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      boolean value = dataRow.getBoolean(index);
+      if (dataRow.wasNull()) {
+        output.append(NULL);
+      } else {
+        output.append(value);
+      }
+    }
+  }
+
+  private static final class ObjectEncoder extends ColumnEncoder {
+    ObjectEncoder(int index) {
+      super(index);
+    }
+
+    @Override
+    public void encode(ResultSet dataRow, StringBuilder output) throws SQLException {
+      Object value = dataRow.getObject(index);
+      output.append(value == null ? NULL : value.toString());
+    }
+  }
+}
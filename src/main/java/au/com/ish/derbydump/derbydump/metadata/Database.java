@@ -18,7 +18,6 @@ package au.com.ish.derbydump.derbydump.metadata;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 
 
 /**
@@ -39,11 +38,7 @@ public class Database {
 
   public void addTable(Table table) {
     if (table != null) {
-      if (table.getTableName().toLowerCase(Locale.ROOT).equals("customer")) {
-        tables.add(0, table);
-      } else {
-        tables.add(table);
-      }
+      tables.add(table);
     }
   }
 
@@ -36,6 +36,30 @@ public class Table {
 	 * Name of the table in the database.
 	 */
 	private String tableName;
+	/**
+	 * True if the name was read back from a dump, where it has been rewritten already.
+	 */
+	private boolean nameRewritten = false;
+	/**
+	 * Indexed whole number column used to split the table into key ranges, or null.
+	 */
+	private Column keyColumn;
+	/**
+	 * Primary key columns in key order, empty if there is no primary key.
+	 */
+	private List<Column> primaryKey = new ArrayList<Column>();
+	/**
+	 * Tables referred to by the foreign keys of this table, other than itself.
+	 */
+	private List<Table> parents = new ArrayList<Table>();
+	/**
+	 * Rows the table is expected to hold, or -1 if unknown.
+	 */
+	private long estimatedRows = -1;
+	/**
+	 * Bytes the rows of the table take up on disk, or -1 if unknown.
+	 */
+	private long estimatedBytes = -1;
 	private Configuration config = Configuration.getConfiguration();
 
 	/**
@@ -50,6 +74,140 @@ public class Table {
 		return stringBuilder.toString();
 	}
 
+	/**
+	 * @param schema Database schema name
+	 * @param from Lowest key value to return
+	 * @param to Highest key value to return
+	 *
+	 * @return Returns a select query for the rows whose key lies in the given range, in key order.
+	 */
+	public String getSelectQuery(String schema, long from, long to) {
+		StringBuilder stringBuilder = new StringBuilder(getSelectQuery(schema));
+		stringBuilder.append(" WHERE \"").append(keyColumn.getColumnName()).append("\"");
+		stringBuilder.append(" BETWEEN ").append(from).append(" AND ").append(to);
+		stringBuilder.append(" ORDER BY \"").append(keyColumn.getColumnName()).append("\"");
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * @param schema Database schema name
+	 *
+	 * @return Returns a select query for all rows, in key order.
+	 */
+	public String getKeyOrderedSelectQuery(String schema) {
+		StringBuilder stringBuilder = new StringBuilder(getSelectQuery(schema));
+		stringBuilder.append(" ORDER BY \"").append(keyColumn.getColumnName()).append("\"");
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * @param schema Database schema name
+	 * @param after Key value of the last row already read
+	 *
+	 * @return Returns a select query for the rows whose key is above the given one, in key order.
+	 */
+	public String getSelectQueryAfter(String schema, long after) {
+		StringBuilder stringBuilder = new StringBuilder(getSelectQuery(schema));
+		stringBuilder.append(" WHERE \"").append(keyColumn.getColumnName()).append("\" > ").append(after);
+		stringBuilder.append(" ORDER BY \"").append(keyColumn.getColumnName()).append("\"");
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * @param schema Database schema name
+	 *
+	 * @return Returns a select query for the rows which have no key value.
+	 */
+	public String getNullKeySelectQuery(String schema) {
+		StringBuilder stringBuilder = new StringBuilder(getSelectQuery(schema));
+		stringBuilder.append(" WHERE \"").append(keyColumn.getColumnName()).append("\" IS NULL");
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * @param schema Database schema name
+	 *
+	 * @return Returns a query for the lowest and highest key value of the table.
+	 */
+	public String getKeyRangeQuery(String schema) {
+		StringBuilder stringBuilder = new StringBuilder();
+		stringBuilder.append("SELECT MIN(\"").append(keyColumn.getColumnName()).append("\"), ");
+		stringBuilder.append("MAX(\"").append(keyColumn.getColumnName()).append("\") FROM ");
+		stringBuilder.append(schema).append(".").append(tableName);
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * @param schema Database schema name
+	 * @param column The column to look at
+	 *
+	 * @return Returns a query for the highest value of the column.
+	 */
+	public String getMaxQuery(String schema, Column column) {
+		StringBuilder stringBuilder = new StringBuilder();
+		stringBuilder.append("SELECT MAX(\"").append(column.getColumnName()).append("\") FROM ");
+		stringBuilder.append(schema).append(".").append(tableName);
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * @param schema Database schema name
+	 * @param watermark The column whose values only grow as rows change
+	 * @param to SQL literal of the highest value to dump
+	 *
+	 * @return Returns a select query for all rows up to the watermark, including those without a value.
+	 */
+	public String getSelectQueryUpTo(String schema, Column watermark, String to) {
+		return getSelectQuery(schema) + getDeltaCondition(watermark, null, to);
+	}
+
+	/**
+	 * @param schema Database schema name
+	 * @param watermark The column whose values only grow as rows change
+	 * @param from SQL literal of the value up to which rows have already been dumped, or null for all rows
+	 * @param to SQL literal of the highest value to dump
+	 *
+	 * @return Returns a select query for the rows changed since the last dump, in watermark order.
+	 */
+	public String getDeltaSelectQuery(String schema, Column watermark, String from, String to) {
+		return getSelectQuery(schema) + getDeltaCondition(watermark, from, to)
+				+ " ORDER BY \"" + watermark.getColumnName() + "\"";
+	}
+
+	/**
+	 * @param schema Database schema name
+	 * @param watermark The column whose values only grow as rows change
+	 * @param from SQL literal of the value up to which rows have already been dumped, or null for all rows
+	 * @param to SQL literal of the highest value to dump
+	 *
+	 * @return Returns a query for the primary key of the rows changed since the last dump.
+	 */
+	public String getDeltaKeyQuery(String schema, Column watermark, String from, String to) {
+		StringBuilder stringBuilder = new StringBuilder("SELECT ");
+		for (int i = 0; i < primaryKey.size(); i++) {
+			if (i > 0) {
+				stringBuilder.append(", ");
+			}
+			stringBuilder.append('"').append(primaryKey.get(i).getColumnName()).append('"');
+		}
+		stringBuilder.append(" FROM ").append(schema).append(".").append(tableName);
+		stringBuilder.append(getDeltaCondition(watermark, from, to));
+		return stringBuilder.toString();
+	}
+
+	private static String getDeltaCondition(Column watermark, String from, String to) {
+		StringBuilder stringBuilder = new StringBuilder(" WHERE ");
+		if (from != null) {
+			stringBuilder.append('"').append(watermark.getColumnName()).append("\" > ").append(from).append(" AND ");
+			stringBuilder.append('"').append(watermark.getColumnName()).append("\" <= ").append(to);
+		} else {
+			// rows without a value have never been dumped either
+			stringBuilder.append("(\"").append(watermark.getColumnName()).append("\" <= ").append(to);
+			stringBuilder.append(" OR \"").append(watermark.getColumnName()).append("\" IS NULL)");
+		}
+		return stringBuilder.toString();
+	}
+
 	/**
 	 * Computes a string representation of the count query for a table,
 	 * calculating the number of rows present in the table.
@@ -93,6 +251,62 @@ public class Table {
 		return columns;
 	}
 
+	/**
+	 * The encoders are bound to the column positions of {@link #getSelectQuery(String)} and the
+	 * queries derived from it, which return the columns in the order of {@link #getColumns()}.
+	 *
+	 * @return an encoder for each column, in column order
+	 */
+	public ColumnEncoder[] createEncoders() {
+		ColumnEncoder[] encoders = new ColumnEncoder[columns.size()];
+		for (int i = 0; i < encoders.length; i++) {
+			encoders[i] = ColumnEncoder.forColumn(columns.get(i), i + 1);
+		}
+		return encoders;
+	}
+
+	/**
+	 * @param columnName the name of the column, as reported by the database
+	 *
+	 * @return the column with this name or null
+	 */
+	public Column getColumn(String columnName) {
+		for (Column column : columns) {
+			if (column.getColumnName().equals(columnName)) {
+				return column;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the column used to split the table into key ranges, or null if there is none
+	 */
+	public Column getKeyColumn() {
+		return keyColumn;
+	}
+
+	/**
+	 * @param keyColumn an indexed whole number column of this table
+	 */
+	public void setKeyColumn(Column keyColumn) {
+		this.keyColumn = keyColumn;
+	}
+
+	/**
+	 * @return the primary key columns in key order, empty if the table has no primary key
+	 */
+	public List<Column> getPrimaryKey() {
+		return primaryKey;
+	}
+
+	/**
+	 * @param primaryKey the primary key columns in key order
+	 */
+	public void setPrimaryKey(List<Column> primaryKey) {
+		this.primaryKey = primaryKey;
+	}
+
 	public boolean isExcluded() {
 		return getTableName().equals("--exclude--");
 	}
@@ -101,7 +315,64 @@ public class Table {
 	 * @return the tableName
 	 */
 	public String getTableName() {
-		return config.rewriteTableName(tableName);
+		return nameRewritten ? tableName : config.rewriteTableName(tableName);
+	}
+
+	/**
+	 * @return the name of the table in the database, before any rewrite
+	 */
+	public String getDatabaseTableName() {
+		return tableName;
+	}
+
+	/**
+	 * @return the tables whose rows the rows of this table refer to, and which are therefore restored first
+	 */
+	public List<Table> getParents() {
+		return parents;
+	}
+
+	/**
+	 * @param parent A table referred to by a foreign key of this table
+	 */
+	public void addParent(Table parent) {
+		if (parent != null && parent != this && !parents.contains(parent)) {
+			parents.add(parent);
+		}
+	}
+
+	/**
+	 * @return the number of rows the table is expected to hold, or -1 if unknown
+	 */
+	public long getEstimatedRows() {
+		return estimatedRows;
+	}
+
+	public void setEstimatedRows(long estimatedRows) {
+		this.estimatedRows = estimatedRows;
+	}
+
+	/**
+	 * @return the space the rows of the table take up on disk, or -1 if unknown
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	public void setEstimatedBytes(long estimatedBytes) {
+		this.estimatedBytes = estimatedBytes;
+	}
+
+	/**
+	 * @return true if any column holds large objects
+	 */
+	public boolean hasLobColumns() {
+		for (Column column : columns) {
+			if (column.isLob()) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -110,6 +381,15 @@ public class Table {
 	 */
 	public void setTableName(String tableName) {
 		this.tableName = tableName;
+		this.nameRewritten = false;
+	}
+
+	/**
+	 * @param tableName the name the table was written under by a dump, which is used as it is
+	 */
+	public void setRewrittenTableName(String tableName) {
+		this.tableName = tableName;
+		this.nameRewritten = true;
 	}
 
 	/**
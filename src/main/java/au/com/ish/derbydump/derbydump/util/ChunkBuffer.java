@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.util;
+
+import java.util.function.Consumer;
+
+/**
+ * Collects output text and passes it on in chunks of roughly a fixed size.
+ * <p>
+ * Callers append to {@link #getBuilder()} and call {@link #flushIfFull()} at points where the
+ * text may be cut, for example after every row, or between the blocks of a large value.
+ * <p>
+ * The start of a row can still be changed after the row has been written, as long as the row
+ * fits into one chunk: while a row is open, only the text before it is passed on. A row which
+ * does not fit is passed on in parts, and the spill handler gets one last chance to change its
+ * start before that happens.
+ */
+public class ChunkBuffer {
+
+  private final int chunkSize;
+  private final Consumer<String> target;
+  private StringBuilder builder;
+  /**
+   * Position in the builder where the current row starts, or -1 outside of a row
+   */
+  private int rowStart = -1;
+  private boolean rowSpilled;
+  private Runnable spillHandler;
+
+  /**
+   * @param chunkSize number of characters after which the buffer is passed on
+   * @param target    receives every chunk, in order
+   */
+  public ChunkBuffer(int chunkSize, Consumer<String> target) {
+    this.chunkSize = chunkSize;
+    this.target = target;
+    this.builder = newBuilder();
+  }
+
+  /**
+   * @return the builder to append to. It is replaced after a flush, so don't hold on to it.
+   */
+  public StringBuilder getBuilder() {
+    return builder;
+  }
+
+  /**
+   * Pass the buffered text on once it has reached the chunk size.
+   */
+  public void flushIfFull() {
+    if (builder.length() >= chunkSize) {
+      if (rowStart > 0 && builder.length() - rowStart < chunkSize) {
+        // keep the open row, so that its start can still be changed
+        target.accept(builder.substring(0, rowStart));
+        builder.delete(0, rowStart);
+        rowStart = 0;
+      } else {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * @param spillHandler called before part of the current row is passed on, while
+   *                     {@link #replaceRowStart(int, String)} can still be used
+   */
+  public void setSpillHandler(Runnable spillHandler) {
+    this.spillHandler = spillHandler;
+  }
+
+  /**
+   * Mark the start of a row at the current end of the buffer.
+   */
+  public void startRow() {
+    rowStart = builder.length();
+    rowSpilled = false;
+  }
+
+  /**
+   * @return the length of the current row, as long as it has not been spilled
+   */
+  public int getRowLength() {
+    return builder.length() - rowStart;
+  }
+
+  /**
+   * @return the size of the current row once encoded in UTF-8, as long as it has not been spilled
+   */
+  public long getRowEncodedLength() {
+    return Utf8.encodedLength(builder, rowStart, builder.length());
+  }
+
+  /**
+   * Replace the first characters of the current row.
+   *
+   * @param length Number of characters to replace
+   * @param text   The replacement
+   */
+  public void replaceRowStart(int length, String text) {
+    builder.replace(rowStart, rowStart + length, text);
+  }
+
+  /**
+   * @return true if the current row did not fit into the buffer and has been passed on in parts
+   */
+  public boolean isRowSpilled() {
+    return rowSpilled;
+  }
+
+  /**
+   * Mark the end of the current row.
+   */
+  public void endRow() {
+    rowStart = -1;
+  }
+
+  /**
+   * Pass on whatever has been buffered.
+   */
+  public void flush() {
+    if (rowStart >= 0) {
+      if (spillHandler != null) {
+        spillHandler.run();
+      }
+      rowStart = -1;
+      rowSpilled = true;
+    }
+    if (builder.length() > 0) {
+      target.accept(builder.toString());
+      builder.setLength(0);
+    }
+    if (builder.capacity() > 4 * chunkSize) {
+      // don't hold on to the space taken by an unusually large value
+      builder = newBuilder();
+    }
+  }
+
+  private StringBuilder newBuilder() {
+    return new StringBuilder((int) Math.min(Integer.MAX_VALUE - 16, chunkSize + chunkSize / 4L));
+  }
+}
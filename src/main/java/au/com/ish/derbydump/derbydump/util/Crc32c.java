@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.util;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, the variant used by iSCSI, ext4 and most storage tools.
+ * <p>
+ * java.util.zip.CRC32C only exists from Java 9 on, and this project still builds for Java 8.
+ */
+public final class Crc32c implements Checksum {
+
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+      }
+      TABLE[i] = crc;
+    }
+  }
+
+  private int crc = 0xFFFFFFFF;
+
+  @Override
+  public void update(int b) {
+    crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+  }
+
+  @Override
+  public void update(byte[] b, int off, int len) {
+    int value = crc;
+    for (int i = off; i < off + len; i++) {
+      value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xFF];
+    }
+    crc = value;
+  }
+
+  @Override
+  public long getValue() {
+    return (~crc) & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public void reset() {
+    crc = 0xFFFFFFFF;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.util;
+
+/**
+ * Sizes of text once encoded in UTF-8, the encoding every output is written in.
+ */
+public final class Utf8 {
+
+  private Utf8() {
+  }
+
+  /**
+   * @return the number of bytes the text takes up in UTF-8, without encoding it. An unpaired
+   * surrogate counts as the single byte of the '?' the encoder writes in its place.
+   */
+  public static long encodedLength(CharSequence text) {
+    return encodedLength(text, 0, text.length());
+  }
+
+  /**
+   * @param start Index of the first character to count
+   * @param end   Index after the last character to count
+   * @return the number of bytes the characters between start and end take up in UTF-8
+   */
+  public static long encodedLength(CharSequence text, int start, int end) {
+    long length = end - start;
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        continue;
+      }
+      if (c < 0x800) {
+        length += 1;
+      } else if (!Character.isSurrogate(c)) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+        // four bytes for the two characters of the pair
+        length += 2;
+        i++;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CheckpointsTest {
+
+  private final File outputFile = new File("./build/outputs/checkpoints.sql");
+  private final File journalFile = new File("./build/outputs/checkpoints.sql.journal");
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    outputFile.getParentFile().mkdirs();
+
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+    config.setTruncateTables(true);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.items (id INTEGER PRIMARY KEY, name VARCHAR(20))");
+      statement.execute("CREATE TABLE app.notes (note VARCHAR(20))");
+      for (int i = 1; i <= 40; i++) {
+        statement.execute("INSERT INTO app.items VALUES (" + i + ", 'item number " + i + "')");
+      }
+      statement.execute("INSERT INTO app.notes VALUES ('first'), ('second')");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    config.setTruncateTables(false);
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+    FileUtils.deleteQuietly(outputFile);
+    FileUtils.deleteQuietly(journalFile);
+  }
+
+  private Checkpoints dump(boolean resume) throws Exception {
+    Checkpoints checkpoints = Checkpoints.open(outputFile, journalFile, 200, resume);
+    OutputThread output = OutputThread.createFromOutputStream(checkpoints.getOutputStream(), 1);
+    Thread writer = new Thread(output, "File_Writer");
+    writer.start();
+    new DatabaseReader(new SingleFileOutput(output), new Watermarks(), checkpoints);
+    output.addMarker(checkpoints.dumpWritten());
+    writer.interrupt();
+    writer.join();
+    checkpoints.close();
+    return checkpoints;
+  }
+
+  private List<String> journal() throws Exception {
+    return FileUtils.readLines(journalFile, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testJournalOffsets() throws Exception {
+    dump(false);
+    String sql = FileUtils.readFileToString(outputFile, StandardCharsets.UTF_8);
+    List<String> lines = journal();
+
+    Assertions.assertTrue(lines.get(0).startsWith("KEY\tITEMS\t"), lines.toString());
+    Assertions.assertTrue(lines.stream().anyMatch(line -> line.startsWith("TABLE\tITEMS\t")), lines.toString());
+    Assertions.assertTrue(lines.stream().anyMatch(line -> line.startsWith("TABLE\tNOTES\t")), lines.toString());
+    Assertions.assertEquals("END\t" + outputFile.length(), lines.get(lines.size() - 1));
+
+    // every checkpoint falls between two statements
+    for (String line : lines) {
+      String[] fields = line.split("\t");
+      int offset = Integer.parseInt(fields[fields.length - 1]);
+      Assertions.assertTrue(sql.substring(0, offset).endsWith(";\n"), line);
+    }
+  }
+
+  @Test
+  public void testResumeFromKey() throws Exception {
+    dump(false);
+    String complete = FileUtils.readFileToString(outputFile, StandardCharsets.UTF_8);
+    List<String> lines = journal();
+
+    // cut the journal after the second checkpoint within ITEMS, as if the dump had crashed there
+    List<String> crashed = new ArrayList<String>();
+    for (String line : lines) {
+      crashed.add(line);
+      if (line.startsWith("KEY\tITEMS\t") && crashed.size() > 1) {
+        break;
+      }
+    }
+    Assertions.assertTrue(crashed.get(crashed.size() - 1).startsWith("KEY\tITEMS\t"), lines.toString());
+    FileUtils.writeLines(journalFile, "UTF-8", crashed, "\n");
+    FileUtils.writeStringToFile(journalFile, "KEY\tITEMS\t3", StandardCharsets.UTF_8, true);
+    FileUtils.writeStringToFile(outputFile, "(99,'half a row", StandardCharsets.UTF_8, true);
+
+    Assertions.assertFalse(dump(true).isComplete());
+    Assertions.assertEquals(complete, FileUtils.readFileToString(outputFile, StandardCharsets.UTF_8));
+    Assertions.assertEquals(lines, journal());
+  }
+
+  @Test
+  public void testResumeCompleteDump() throws Exception {
+    dump(false);
+    String complete = FileUtils.readFileToString(outputFile, StandardCharsets.UTF_8);
+
+    Checkpoints checkpoints = Checkpoints.open(outputFile, journalFile, 200, true);
+    checkpoints.close();
+    checkpoints.getOutputStream().close();
+    Assertions.assertTrue(checkpoints.isComplete());
+    Assertions.assertEquals(complete, FileUtils.readFileToString(outputFile, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testFailedTableIsNotCheckpointed() throws Exception {
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY('derby.locks.waitTimeout', '1')");
+    }
+    // the reader times out waiting for the lock, so NOTES cannot be read
+    Connection locker = db.createNewConnection();
+    locker.setAutoCommit(false);
+    try (Statement statement = locker.createStatement()) {
+      statement.execute("LOCK TABLE app.notes IN EXCLUSIVE MODE");
+
+      Checkpoints checkpoints = Checkpoints.open(outputFile, journalFile, 200, false);
+      OutputThread output = OutputThread.createFromOutputStream(checkpoints.getOutputStream(), 1);
+      Thread writer = new Thread(output, "File_Writer");
+      writer.start();
+      DatabaseReader reader = new DatabaseReader(new SingleFileOutput(output), new Watermarks(), checkpoints);
+      output.finish();
+      writer.join();
+      checkpoints.close();
+
+      Assertions.assertFalse(reader.isComplete());
+      Assertions.assertTrue(reader.getFailedTables().contains("NOTES"), reader.getFailedTables().toString());
+    } finally {
+      locker.rollback();
+      locker.close();
+    }
+
+    List<String> lines = journal();
+    Assertions.assertTrue(lines.stream().anyMatch(line -> line.startsWith("TABLE\tITEMS\t")), lines.toString());
+    Assertions.assertFalse(lines.stream().anyMatch(line -> line.startsWith("TABLE\tNOTES\t")), lines.toString());
+  }
+}
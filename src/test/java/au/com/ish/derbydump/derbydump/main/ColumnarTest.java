@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+public class ColumnarTest {
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.mixed (id INTEGER PRIMARY KEY, big BIGINT, small SMALLINT, "
+          + "status VARCHAR(10), name VARCHAR(50), code CHAR(3), notes CLOB, data BLOB, day DATE, clock TIME, "
+          + "changed TIMESTAMP, amount DECIMAL(10,2), ratio REAL, score DOUBLE, flag BOOLEAN)");
+    }
+    try (PreparedStatement insert = db.getConnection().prepareStatement(
+        "INSERT INTO app.mixed VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)")) {
+      for (int i = 0; i < 300; i++) {
+        boolean nulls = i % 7 == 3;
+        insert.setInt(1, i);
+        insert.setObject(2, nulls ? null : 1000000000000L - 37L * i, java.sql.Types.BIGINT);
+        insert.setObject(3, nulls ? null : (short) (i % 50 - 25), java.sql.Types.SMALLINT);
+        insert.setString(4, new String[]{"open", "closed", "held"}[i % 3]);
+        insert.setString(5, nulls ? null : "name'" + i + "\n\\漢字");
+        insert.setString(6, "c" + i % 10);
+        insert.setString(7, nulls ? null : "note " + i);
+        insert.setBytes(8, nulls ? null : i % 11 == 0 ? new byte[0] : new byte[]{(byte) i, 0, (byte) 0xFF});
+        insert.setDate(9, nulls ? null : java.sql.Date.valueOf(java.time.LocalDate.of(2013, 1, 1).plusDays(i)));
+        insert.setTime(10, nulls ? null : java.sql.Time.valueOf(java.time.LocalTime.of(i % 24, i % 60, 5)));
+        insert.setTimestamp(11, nulls ? null : new Timestamp(1000000000000L + 1000L * i + i % 1000));
+        insert.setBigDecimal(12, nulls ? null : new java.math.BigDecimal(i).movePointLeft(2).negate());
+        insert.setObject(13, nulls ? null : i / 3.0f, java.sql.Types.REAL);
+        insert.setObject(14, nulls ? null : i / 7.0, java.sql.Types.DOUBLE);
+        insert.setObject(15, nulls ? null : i % 2 == 0, java.sql.Types.BOOLEAN);
+        insert.executeUpdate();
+      }
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    config.setTableRewriteProperty("MIXED", "MIXED");
+    config.setTableRewriteProperty("BLEND", "BLEND");
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  private String dumpSql() throws Exception {
+    StringWriter sql = new StringWriter();
+    OutputThread output = OutputThread.createInMemory(sql);
+    Thread writer = new Thread(output, "File_Writer");
+    writer.start();
+    new DatabaseReader(output);
+    writer.interrupt();
+    writer.join();
+    return sql.toString();
+  }
+
+  private byte[] dumpColumnar() throws Exception {
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ColumnarWriter writer = new ColumnarWriter(out, 128)) {
+      Assertions.assertTrue(writer.writeTables(database.getTables(), db.getConnection(), config.getSchemaName()).isEmpty());
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testSqlFromColumnarMatchesSqlDump() throws Exception {
+    String expected = dumpSql();
+    byte[] columnar = dumpColumnar();
+
+    StringWriter sql = new StringWriter();
+    try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(columnar))) {
+      ColumnarRestore.writeSql(reader, sql);
+    }
+
+    Assertions.assertEquals(expected, sql.toString());
+    Assertions.assertTrue(columnar.length < expected.length() / 2, "Columnar dump of " + columnar.length + " bytes is not compact");
+  }
+
+  @Test
+  public void testLoadThroughJdbc() throws Exception {
+    String expected = dumpSql();
+    byte[] columnar = dumpColumnar();
+
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("DELETE FROM app.mixed");
+      // table names in the dump are not qualified, like in the SQL output
+      statement.execute("SET SCHEMA app");
+    }
+    try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(columnar))) {
+      ColumnarRestore.load(reader, db.getConnection());
+    }
+
+    Assertions.assertEquals(expected, dumpSql());
+  }
+
+  @Test
+  public void testTableNameIsRewrittenOnce() throws Exception {
+    config.setTableRewriteProperty("MIXED", "Blend");
+    config.setTableRewriteProperty("BLEND", "Other");
+    byte[] columnar = dumpColumnar();
+
+    try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(columnar))) {
+      Table table = reader.nextTable();
+      Assertions.assertEquals("Blend", table.getTableName());
+      Assertions.assertTrue(table.getInsertSQL().startsWith("INSERT INTO \"Blend\" "), table.getInsertSQL());
+    }
+  }
+
+  @Test
+  public void testFailedTableKeepsLaterTablesReadable() throws Exception {
+    Table table = new MetadataReader().readDatabase(db.getConnection()).getTables().get(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ColumnarWriter writer = new ColumnarWriter(out, 128);
+         Statement statement = db.getConnection().createStatement()) {
+      try (ResultSet rows = statement.executeQuery(table.getSelectQuery(config.getSchemaName()))) {
+        writer.writeTable(table, failAfter(rows, 200));
+        Assertions.fail("The failure was not passed on.");
+      } catch (SQLException e) {
+        Assertions.assertEquals("connection lost", e.getMessage());
+      }
+      try (ResultSet rows = statement.executeQuery(table.getSelectQuery(config.getSchemaName()))) {
+        writer.writeTable(table, rows);
+      }
+    }
+
+    try (ColumnarReader reader = new ColumnarReader(new ByteArrayInputStream(out.toByteArray()))) {
+      // the rows of the first row group were written before the failure, the rest is dropped
+      Assertions.assertEquals("MIXED", reader.nextTable().getTableName());
+      Assertions.assertEquals(128, countRows(reader));
+      Assertions.assertTrue(reader.isTableAborted());
+
+      Assertions.assertEquals("MIXED", reader.nextTable().getTableName());
+      Assertions.assertEquals(300, countRows(reader));
+      Assertions.assertFalse(reader.isTableAborted());
+      Assertions.assertNull(reader.nextTable());
+    }
+  }
+
+  private static int countRows(ColumnarReader reader) throws Exception {
+    int rows = 0;
+    Object[][] values;
+    while ((values = reader.nextRowGroup()) != null) {
+      rows += values[0].length;
+    }
+    return rows;
+  }
+
+  /**
+   * @return the rows, failing as the given number of them have been read
+   */
+  private static ResultSet failAfter(ResultSet rows, int count) {
+    int[] read = new int[1];
+    return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+      if (method.getName().equals("next") && read[0]++ == count) {
+        throw new SQLException("connection lost");
+      }
+      try {
+        return method.invoke(rows, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    });
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DerbyRestoreTest {
+
+  private static final String TARGET = "jdbc:derby:memory:restoredb";
+  private static final String[] TABLES = {
+      "CREATE TABLE app.items (id INTEGER PRIMARY KEY, name VARCHAR(40), price DECIMAL(10,2), ratio DOUBLE,"
+          + " created TIMESTAMP, active BOOLEAN, big BIGINT, picture BLOB, notes CLOB)",
+      "CREATE TABLE app.notes (note VARCHAR(40))"
+  };
+
+  private final File outputFile = new File("./build/outputs/restore.sql");
+  private final File outputDirectory = new File("./build/outputs/restore");
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    outputFile.getParentFile().mkdirs();
+    FileUtils.deleteQuietly(outputDirectory);
+
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+    config.setTruncateTables(true);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      for (String table : TABLES) {
+        statement.execute(table);
+      }
+    }
+    try (PreparedStatement insert = db.getConnection().prepareStatement("INSERT INTO app.items VALUES (?,?,?,?,?,?,?,?,?)")) {
+      for (int i = 1; i <= 25; i++) {
+        insert.setInt(1, i);
+        insert.setString(2, i % 5 == 0 ? null : "it's; item\n" + i + "\\\t\r\u001a\0");
+        insert.setBigDecimal(3, new java.math.BigDecimal("-12.34").multiply(java.math.BigDecimal.valueOf(i)));
+        insert.setDouble(4, 1.0 / i);
+        insert.setTimestamp(5, new java.sql.Timestamp(1000000000000L + i * 1234L));
+        insert.setBoolean(6, i % 2 == 0);
+        insert.setLong(7, Long.MAX_VALUE - i);
+        insert.setBytes(8, i % 4 == 0 ? null : new byte[]{(byte) i, 0, (byte) 0xff, ';', '\''});
+        insert.setString(9, "clob;\n'" + i + "'");
+        insert.executeUpdate();
+      }
+    }
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("INSERT INTO app.notes VALUES ('first'), ('second;')");
+    }
+
+    try (Connection target = DriverManager.getConnection(TARGET + ";create=true");
+         Statement statement = target.createStatement()) {
+      for (String table : TABLES) {
+        statement.execute(table);
+      }
+      // replaced by the truncation in the dump
+      statement.execute("INSERT INTO app.notes VALUES ('stale')");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    config.setTruncateTables(false);
+    db.getConnection().close();
+    for (String url : new String[]{"jdbc:derby:" + config.getDerbyDbPath(), TARGET}) {
+      try {
+        new DBConnectionManager(url + ";drop=true");
+      } catch (SQLNonTransientConnectionException e) {
+        //the db was dropped
+      }
+    }
+    FileUtils.deleteQuietly(outputFile);
+    FileUtils.deleteQuietly(outputDirectory);
+  }
+
+  @Test
+  public void testRestoreSingleFile() throws Exception {
+    OutputThread output = OutputThread.createFromOutputStream(new FileOutputStream(outputFile), 1);
+    Thread writer = new Thread(output, "File_Writer");
+    writer.start();
+    new DatabaseReader(output);
+    writer.interrupt();
+    writer.join();
+
+    List<DerbyRestore.TableResult> results = new DerbyRestore(TARGET, 2, 7).restore(outputFile);
+
+    Assertions.assertEquals(2, results.size());
+    Assertions.assertEquals("ITEMS", results.get(0).getTableName());
+    Assertions.assertEquals(25, results.get(0).getRows());
+    Assertions.assertEquals(2, results.get(1).getRows());
+    Assertions.assertNull(results.get(0).getFailure());
+    assertSameRows();
+  }
+
+  @Test
+  public void testRestoreTableFiles() throws Exception {
+    new DatabaseReader(new TableFilesOutput(outputDirectory, 2));
+
+    List<DerbyRestore.TableResult> results = new DerbyRestore(TARGET, 2, 0).restore(outputDirectory);
+
+    Assertions.assertEquals(2, results.size());
+    for (DerbyRestore.TableResult result : results) {
+      Assertions.assertNull(result.getFailure(), result.toString());
+    }
+    assertSameRows();
+  }
+
+  @Test
+  public void testFailedTableIsReported() throws Exception {
+    FileUtils.writeStringToFile(outputFile, "INSERT INTO \"NOTES\" (NOTE) VALUES\n('a;'),\n('b');\n"
+        + "INSERT INTO \"MISSING\" (X) VALUES\n(1);\n"
+        + "INSERT INTO \"NOTES\" (NOTE) VALUES\n('c');\n", "UTF-8");
+
+    List<DerbyRestore.TableResult> results = new DerbyRestore(TARGET, 2, 0).restore(outputFile);
+
+    Assertions.assertEquals(3, results.size());
+    Assertions.assertNull(results.get(0).getFailure());
+    Assertions.assertNotNull(results.get(1).getFailure());
+    Assertions.assertNull(results.get(2).getFailure());
+    Assertions.assertEquals(Arrays.asList("[a;]", "[b]", "[c]", "[stale]"), rows(DriverManager.getConnection(TARGET), "NOTES", "NOTE"));
+  }
+
+  @Test
+  public void testChildWaitsForParent() throws Exception {
+    try (Connection target = DriverManager.getConnection(TARGET);
+         Statement statement = target.createStatement()) {
+      statement.execute("CREATE TABLE app.parent (id INTEGER PRIMARY KEY)");
+      statement.execute("CREATE TABLE app.child (id INTEGER REFERENCES app.parent (id))");
+    }
+    StringBuilder dump = new StringBuilder();
+    for (String table : new String[]{"PARENT", "CHILD"}) {
+      dump.append("INSERT INTO \"").append(table).append("\" (ID) VALUES\n");
+      for (int i = 1; i <= 5000; i++) {
+        dump.append('(').append(i).append(i == 5000 ? ");\n" : "),\n");
+      }
+    }
+    FileUtils.writeStringToFile(outputFile, dump.toString(), "UTF-8");
+
+    List<DerbyRestore.TableResult> results = new DerbyRestore(TARGET, 2, 0).restore(outputFile);
+
+    Assertions.assertEquals(2, results.size());
+    for (DerbyRestore.TableResult result : results) {
+      Assertions.assertNull(result.getFailure(), result.toString());
+      Assertions.assertEquals(5000, result.getRows());
+    }
+  }
+
+  @Test
+  public void testParentsInOtherSchemaAreIgnored() throws Exception {
+    try (Connection target = DriverManager.getConnection(TARGET);
+         Statement statement = target.createStatement()) {
+      statement.execute("CREATE SCHEMA other");
+      statement.execute("CREATE TABLE other.notes (note VARCHAR(40) PRIMARY KEY)");
+      statement.execute("CREATE TABLE other.items (note VARCHAR(40) REFERENCES other.notes (note))");
+      statement.execute("CREATE TABLE app.parent (id INTEGER PRIMARY KEY)");
+      statement.execute("CREATE TABLE app.child (id INTEGER REFERENCES app.parent (id))");
+
+      Map<String, CompletableFuture<DerbyRestore.TableResult>> lastLoads = new HashMap<String, CompletableFuture<DerbyRestore.TableResult>>();
+      lastLoads.put("NOTES", new CompletableFuture<DerbyRestore.TableResult>());
+      lastLoads.put("PARENT", new CompletableFuture<DerbyRestore.TableResult>());
+      // the table of the same name in the other schema refers to NOTES
+      Assertions.assertTrue(DerbyRestore.parentLoads("ITEMS", lastLoads, target.getMetaData()).isEmpty());
+      Assertions.assertEquals(Arrays.asList(lastLoads.get("PARENT")), DerbyRestore.parentLoads("CHILD", lastLoads, target.getMetaData()));
+    }
+  }
+
+  @Test
+  public void testWaitingTablesLeaveThreadsFree() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      CompletableFuture<DerbyRestore.TableResult> parent = new CompletableFuture<DerbyRestore.TableResult>();
+      CompletableFuture<DerbyRestore.TableResult> child = DerbyRestore.afterParents(Arrays.asList(parent),
+          () -> new DerbyRestore.TableResult("CHILD", 1, 0, null), executor);
+      // an independent table gets the only thread while the child waits for its parent
+      CompletableFuture<DerbyRestore.TableResult> independent = DerbyRestore.afterParents(new ArrayList<CompletableFuture<DerbyRestore.TableResult>>(),
+          () -> new DerbyRestore.TableResult("OTHER", 2, 0, null), executor);
+      Assertions.assertEquals("OTHER", independent.get(10, TimeUnit.SECONDS).getTableName());
+      Assertions.assertFalse(child.isDone());
+
+      parent.complete(new DerbyRestore.TableResult("PARENT", 0, 0, new java.sql.SQLException("failed")));
+      Assertions.assertEquals("CHILD", child.get(10, TimeUnit.SECONDS).getTableName());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void assertSameRows() throws Exception {
+    try (Connection target = DriverManager.getConnection(TARGET)) {
+      Assertions.assertEquals(rows(db.getConnection(), "ITEMS", "ID"), rows(target, "ITEMS", "ID"));
+      Assertions.assertEquals(rows(db.getConnection(), "NOTES", "NOTE"), rows(target, "NOTES", "NOTE"));
+    }
+  }
+
+  private static List<String> rows(Connection connection, String table, String order) throws Exception {
+    List<String> rows = new ArrayList<String>();
+    try (Statement statement = connection.createStatement();
+         ResultSet result = statement.executeQuery("SELECT * FROM app." + table + " ORDER BY " + order)) {
+      int columns = result.getMetaData().getColumnCount();
+      while (result.next()) {
+        List<String> row = new ArrayList<String>();
+        for (int i = 1; i <= columns; i++) {
+          Object value = result.getObject(i);
+          if (value instanceof java.sql.Blob) {
+            java.sql.Blob blob = (java.sql.Blob) value;
+            value = Arrays.toString(blob.getBytes(1, (int) blob.length()));
+          } else if (value instanceof java.sql.Clob) {
+            java.sql.Clob clob = (java.sql.Clob) value;
+            value = clob.getSubString(1, (int) clob.length());
+          }
+          row.add(String.valueOf(value));
+        }
+        rows.add(row.toString());
+      }
+    }
+    return rows;
+  }
+}
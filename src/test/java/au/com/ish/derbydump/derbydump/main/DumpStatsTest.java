@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+
+public class DumpStatsTest {
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.measured (id INTEGER, name VARCHAR(10))");
+      statement.execute("INSERT INTO app.measured VALUES (1, 'ä'), (2, 'ö'), (3, '漢字')");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  @Test
+  public void testStatsThroughJmx() throws Exception {
+    DumpStats.getStats().register();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(DumpStats.OBJECT_NAME);
+    long rowsBefore = (Long) server.getAttribute(name, "RowsRead");
+    long writtenBefore = (Long) server.getAttribute(name, "CharactersWritten");
+    long bytesReadBefore = (Long) server.getAttribute(name, "BytesRead");
+    long bytesWrittenBefore = (Long) server.getAttribute(name, "BytesWritten");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputThread output = OutputThread.createFromOutputStream(out);
+    Thread writer = new Thread(output, "File_Writer");
+    writer.start();
+    new DatabaseReader(output);
+    output.finish();
+    writer.join();
+    String sql = out.toString("UTF-8");
+
+    Assertions.assertEquals(rowsBefore + 3, server.getAttribute(name, "RowsRead"));
+    Assertions.assertEquals(writtenBefore + sql.length(), server.getAttribute(name, "CharactersWritten"));
+    // the names take two bytes per character in UTF-8
+    Assertions.assertEquals(bytesWrittenBefore + out.size(), server.getAttribute(name, "BytesWritten"));
+    Assertions.assertTrue(out.size() > sql.length());
+    // the statements to start and end the transaction are not read from a table
+    Assertions.assertEquals(bytesReadBefore + out.size() - "AUTOCOMMIT OFF;\nCOMMIT;\nAUTOCOMMIT ON;\n".length(), server.getAttribute(name, "BytesRead"));
+    Assertions.assertEquals(0, server.getAttribute(name, "QueueDepth"));
+    Assertions.assertEquals(0, ((String[]) server.getAttribute(name, "CurrentTables")).length);
+
+    TabularData tables = (TabularData) server.getAttribute(name, "TableStats");
+    CompositeData measured = (CompositeData) tables.get(new Object[]{"MEASURED"}).get("value");
+    Assertions.assertEquals(3L, measured.get("rows"));
+    Assertions.assertTrue((Long) measured.get("characters") > 0);
+    Assertions.assertTrue((Long) measured.get("bytes") > (Long) measured.get("characters"));
+  }
+}
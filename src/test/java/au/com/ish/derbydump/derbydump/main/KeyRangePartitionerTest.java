@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.List;
+
+public class KeyRangePartitionerTest {
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.keyed (id INTEGER PRIMARY KEY, name VARCHAR(10))");
+      statement.execute("CREATE TABLE app.indexed (code BIGINT, name VARCHAR(10))");
+      statement.execute("CREATE INDEX indexed_code ON app.indexed (code)");
+      statement.execute("CREATE TABLE app.unkeyed (name VARCHAR(10))");
+      statement.execute("INSERT INTO app.keyed VALUES (1, 'a'), (2, 'b'), (10, 'c')");
+      statement.execute("INSERT INTO app.indexed VALUES (-5, 'a'), (NULL, 'b')");
+      statement.execute("INSERT INTO app.unkeyed VALUES ('a')");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  @Test
+  public void testSplitsPrimaryKeyIntoRanges() throws Exception {
+    List<String> queries = partition("KEYED", 3);
+
+    Assertions.assertEquals(3, queries.size());
+    Assertions.assertTrue(queries.get(0).endsWith("WHERE \"ID\" BETWEEN 1 AND 3 ORDER BY \"ID\""), queries.get(0));
+    Assertions.assertTrue(queries.get(1).endsWith("WHERE \"ID\" BETWEEN 4 AND 6 ORDER BY \"ID\""), queries.get(1));
+    Assertions.assertTrue(queries.get(2).endsWith("WHERE \"ID\" BETWEEN 7 AND 10 ORDER BY \"ID\""), queries.get(2));
+  }
+
+  @Test
+  public void testNullableIndexGetsNullRange() throws Exception {
+    List<String> queries = partition("INDEXED", 4);
+
+    // the key range holds a single value, so only one range plus the NULL keys remain
+    Assertions.assertEquals(2, queries.size());
+    Assertions.assertTrue(queries.get(0).endsWith("WHERE \"CODE\" BETWEEN -5 AND -5 ORDER BY \"CODE\""), queries.get(0));
+    Assertions.assertTrue(queries.get(1).endsWith("WHERE \"CODE\" IS NULL"), queries.get(1));
+  }
+
+  @Test
+  public void testTableWithoutKeyIsNotSplit() throws Exception {
+    List<String> queries = partition("UNKEYED", 4);
+
+    Assertions.assertEquals(1, queries.size());
+    Assertions.assertEquals("SELECT * FROM app.UNKEYED", queries.get(0));
+  }
+
+  private List<String> partition(String tableName, int partitions) throws Exception {
+    Connection connection = db.getConnection();
+    Database database = new MetadataReader().readDatabase(connection);
+    for (Table table : database.getTables()) {
+      if (table.getTableName().equals(tableName)) {
+        return new KeyRangePartitioner(partitions).getSelectQueries(table, connection, config.getSchemaName());
+      }
+    }
+    throw new AssertionError("Table " + tableName + " not found");
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+
+public class MetadataCacheTest {
+
+  private final File cacheFile = new File("./build/outputs/metadata.cache");
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    cacheFile.getParentFile().mkdirs();
+    FileUtils.deleteQuietly(cacheFile);
+
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.lines (invoice INTEGER NOT NULL, line INTEGER NOT NULL, name VARCHAR(10), PRIMARY KEY (line, invoice))");
+      statement.execute("CREATE TABLE app.plain (name VARCHAR(10))");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+    FileUtils.deleteQuietly(cacheFile);
+  }
+
+  @Test
+  public void testCachedMetadataMatchesDatabase() throws Exception {
+    Connection connection = db.getConnection();
+    MetadataCache cache = new MetadataCache(cacheFile);
+    Database read = cache.readDatabase(connection);
+    Assertions.assertTrue(cacheFile.isFile());
+
+    Database cached = cache.load(cache.fingerprint(connection, "APP"));
+    Assertions.assertNotNull(cached);
+    Assertions.assertEquals(describe(read), describe(cached));
+    Assertions.assertEquals(describe(new MetadataReader().readDatabase(connection)), describe(cached));
+  }
+
+  @Test
+  public void testSchemaChangeInvalidatesCache() throws Exception {
+    Connection connection = db.getConnection();
+    MetadataCache cache = new MetadataCache(cacheFile);
+    cache.readDatabase(connection);
+    String fingerprint = cache.fingerprint(connection, "APP");
+    Assertions.assertEquals(fingerprint, cache.fingerprint(connection, "APP"));
+
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("ALTER TABLE app.plain ADD COLUMN id BIGINT");
+    }
+    Assertions.assertNotEquals(fingerprint, cache.fingerprint(connection, "APP"));
+    Assertions.assertNull(cache.load(cache.fingerprint(connection, "APP")));
+    Assertions.assertTrue(describe(cache.readDatabase(connection)).contains("PLAIN(NAME 12 true,ID -5 true)"));
+
+    fingerprint = cache.fingerprint(connection, "APP");
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE INDEX plain_id ON app.plain (id)");
+    }
+    Assertions.assertNotEquals(fingerprint, cache.fingerprint(connection, "APP"));
+    Assertions.assertTrue(describe(cache.readDatabase(connection)).contains("PLAIN(NAME 12 true,ID -5 true) primary [] key ID"));
+
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE app.notes (line INTEGER, invoice INTEGER)");
+    }
+    fingerprint = cache.fingerprint(connection, "APP");
+    cache.readDatabase(connection);
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("ALTER TABLE app.notes ADD CONSTRAINT notes_lines FOREIGN KEY (line, invoice) REFERENCES app.lines (line, invoice)");
+    }
+    Assertions.assertNotEquals(fingerprint, cache.fingerprint(connection, "APP"));
+    String description = describe(cache.readDatabase(connection));
+    Assertions.assertTrue(description.contains("NOTES(LINE 4 true,INVOICE 4 true) primary [] key LINE parents [LINES ]"), description);
+    Assertions.assertEquals(description, describe(cache.load(cache.fingerprint(connection, "APP"))));
+  }
+
+  @Test
+  public void testDamagedCacheIsIgnored() throws Exception {
+    Connection connection = db.getConnection();
+    MetadataCache cache = new MetadataCache(cacheFile);
+    cache.readDatabase(connection);
+    String fingerprint = cache.fingerprint(connection, "APP");
+
+    FileUtils.writeStringToFile(cacheFile, "derbydump metadata 2\n" + fingerprint + "\nTABLE\tLINES\nKEY\tMISSING\n", "UTF-8");
+    Assertions.assertNull(cache.load(fingerprint));
+    Assertions.assertEquals(describe(new MetadataReader().readDatabase(connection)), describe(cache.readDatabase(connection)));
+    Assertions.assertNotNull(cache.load(fingerprint));
+  }
+
+  @Test
+  public void testFailedReadIsNotCached() throws Exception {
+    Connection connection = db.getConnection();
+    // the schema can be fingerprinted, but reading its tables fails
+    Connection failing = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+      if (method.getName().equals("getMetaData")) {
+        throw new SQLException("A lock could not be obtained within the time requested");
+      }
+      try {
+        return method.invoke(connection, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    });
+    MetadataCache cache = new MetadataCache(cacheFile);
+
+    Assertions.assertTrue(cache.readDatabase(failing).getTables().isEmpty());
+    Assertions.assertFalse(cacheFile.exists(), "The failed read was cached.");
+    Assertions.assertEquals(2, cache.readDatabase(connection).getTables().size());
+    Assertions.assertNotNull(cache.load(cache.fingerprint(connection, "APP")));
+  }
+
+  private static String describe(Database database) {
+    StringBuilder description = new StringBuilder();
+    for (Table table : database.getTables()) {
+      description.append(table.getDatabaseTableName()).append('(');
+      for (Column column : table.getColumns()) {
+        description.append(column.getColumnName()).append(' ').append(column.getColumnDataType())
+            .append(' ').append(column.isNullable()).append(',');
+      }
+      description.setLength(description.length() - 1);
+      description.append(") primary [");
+      for (Column column : table.getPrimaryKey()) {
+        description.append(column.getColumnName()).append(' ');
+      }
+      description.append("] key ").append(table.getKeyColumn() == null ? null : table.getKeyColumn().getColumnName());
+      description.append(" parents [");
+      for (Table parent : table.getParents()) {
+        description.append(parent.getDatabaseTableName()).append(' ');
+      }
+      description.append("]\n");
+    }
+    return description.toString();
+  }
+}
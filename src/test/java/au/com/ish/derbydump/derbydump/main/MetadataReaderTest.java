@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Column;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MetadataReaderTest {
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.lines (name VARCHAR(10), invoice INTEGER NOT NULL, line INTEGER NOT NULL, PRIMARY KEY (line, invoice))");
+      statement.execute("CREATE TABLE app.codes (name VARCHAR(10), code BIGINT NOT NULL UNIQUE, other INTEGER)");
+      statement.execute("CREATE INDEX codes_other ON app.codes (other)");
+      statement.execute("CREATE TABLE app.plain (name VARCHAR(10))");
+      statement.execute("CREATE SCHEMA archive");
+      statement.execute("CREATE TABLE archive.lines (id INTEGER PRIMARY KEY)");
+      statement.execute("CREATE TABLE archive.old (id INTEGER PRIMARY KEY)");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  @Test
+  public void testReadsOnlyConfiguredSchema() throws Exception {
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+
+    List<String> names = new ArrayList<String>();
+    for (Table table : database.getTables()) {
+      names.add(table.getTableName());
+    }
+    Assertions.assertEquals(3, names.size(), names.toString());
+    Assertions.assertTrue(names.contains("LINES"));
+    Assertions.assertTrue(names.contains("CODES"));
+    Assertions.assertTrue(names.contains("PLAIN"));
+
+    // the table of the same name in the other schema does not add its columns
+    Table lines = table(database, "LINES");
+    Assertions.assertEquals("[NAME, INVOICE, LINE]", columnNames(lines.getColumns()));
+  }
+
+  @Test
+  public void testReadsKeys() throws Exception {
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+
+    Table lines = table(database, "LINES");
+    Assertions.assertEquals("[LINE, INVOICE]", columnNames(lines.getPrimaryKey()));
+    Assertions.assertEquals("LINE", lines.getKeyColumn().getColumnName());
+
+    // a unique index wins over an index allowing duplicates
+    Table codes = table(database, "CODES");
+    Assertions.assertTrue(codes.getPrimaryKey().isEmpty());
+    Assertions.assertEquals("CODE", codes.getKeyColumn().getColumnName());
+
+    Table plain = table(database, "PLAIN");
+    Assertions.assertTrue(plain.getPrimaryKey().isEmpty());
+    Assertions.assertNull(plain.getKeyColumn());
+  }
+
+  @Test
+  public void testBulkKeysMatchPerTableKeys() throws Exception {
+    MetadataReader reader = new MetadataReader();
+    Database database = reader.readDatabase(db.getConnection());
+    DatabaseMetaData metaData = db.getConnection().getMetaData();
+
+    for (Table table : database.getTables()) {
+      List<Column> primaryKey = reader.readPrimaryKey(metaData, "APP", table, table.getDatabaseTableName());
+      Assertions.assertEquals(primaryKey, table.getPrimaryKey(), table.getTableName());
+      Assertions.assertEquals(reader.readKeyColumn(metaData, "APP", table, table.getDatabaseTableName()), table.getKeyColumn(), table.getTableName());
+    }
+  }
+
+  @Test
+  public void testPerTableKeysStayInSchema() throws Exception {
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE archive.plain (name VARCHAR(10) NOT NULL PRIMARY KEY)");
+      statement.execute("CREATE TABLE archive.codes (code BIGINT NOT NULL PRIMARY KEY, name VARCHAR(10) NOT NULL, other INTEGER)");
+    }
+    MetadataReader reader = new MetadataReader();
+    Database database = reader.readDatabase(db.getConnection());
+    DatabaseMetaData metaData = db.getConnection().getMetaData();
+
+    // the tables of the same name in the other schema have primary keys of their own
+    Assertions.assertTrue(reader.readPrimaryKey(metaData, "APP", table(database, "PLAIN"), "PLAIN").isEmpty());
+    Assertions.assertTrue(reader.readPrimaryKey(metaData, "APP", table(database, "CODES"), "CODES").isEmpty());
+    Assertions.assertEquals("[LINE, INVOICE]", columnNames(reader.readPrimaryKey(metaData, "APP", table(database, "LINES"), "LINES")));
+  }
+
+  @Test
+  public void testReadsForeignKeysAndOrdersParentsFirst() throws Exception {
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.allocations (id INTEGER PRIMARY KEY, code BIGINT REFERENCES app.codes (code),"
+          + " line INTEGER, invoice INTEGER, previous INTEGER REFERENCES app.allocations (id),"
+          + " FOREIGN KEY (line, invoice) REFERENCES app.lines (line, invoice))");
+      statement.execute("CREATE TABLE archive.notes (code BIGINT REFERENCES app.codes (code))");
+    }
+    MetadataReader reader = new MetadataReader();
+    Database database = reader.readDatabase(db.getConnection());
+
+    List<String> names = new ArrayList<String>();
+    for (Table table : database.getTables()) {
+      names.add(table.getTableName());
+    }
+    Assertions.assertEquals("[CODES, LINES, ALLOCATIONS, PLAIN]", names.toString());
+
+    // a table referring to itself is not its own parent
+    Table allocations = table(database, "ALLOCATIONS");
+    Assertions.assertEquals(2, allocations.getParents().size());
+    Assertions.assertTrue(allocations.getParents().contains(table(database, "CODES")));
+    Assertions.assertTrue(allocations.getParents().contains(table(database, "LINES")));
+    Assertions.assertTrue(table(database, "CODES").getParents().isEmpty());
+
+    // the foreign keys read table by table are the same
+    List<Table> tables = new ArrayList<Table>();
+    for (Table table : database.getTables()) {
+      Table copy = new Table();
+      copy.setTableName(table.getDatabaseTableName());
+      tables.add(copy);
+    }
+    reader.readParents(db.getConnection(), null, tables);
+    Assertions.assertEquals(2, tables.get(2).getParents().size());
+    Assertions.assertEquals(Arrays.asList(tables.get(0), tables.get(1)), TableOrder.sort(tables).subList(0, 2));
+  }
+
+  private static Table table(Database database, String name) {
+    for (Table table : database.getTables()) {
+      if (table.getTableName().equals(name)) {
+        return table;
+      }
+    }
+    throw new AssertionError("Table " + name + " not found");
+  }
+
+  private static String columnNames(List<Column> columns) {
+    List<String> names = new ArrayList<String>();
+    for (Column column : columns) {
+      names.add(column.getColumnName());
+    }
+    return names.toString();
+  }
+}
@@ -18,6 +18,7 @@ package au.com.ish.derbydump.derbydump.main;
 
 
 import au.com.ish.derbydump.derbydump.config.Configuration;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.jupiter.api.Assertions;
@@ -25,6 +26,8 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.*;
+import java.time.Duration;
+import java.util.zip.GZIPInputStream;
 
 public class OutputThreadTest {
 
@@ -81,4 +84,166 @@ public class OutputThreadTest {
 
     Assertions.assertEquals(line, "漢字", "File writer didn't write correct UTF.");
   }
+
+  @Test
+  public void testSectionsKeepOrder() throws Exception {
+    StringWriter stringWriter = new StringWriter();
+    OutputThread output = OutputThread.createInMemory(stringWriter);
+    Thread writer = new Thread(output, "writer test");
+    writer.start();
+
+    output.add("begin\n");
+    OutputThread.Section first = output.openSection();
+    OutputThread.Section second = output.openSection();
+    output.add("end\n");
+
+    // fill the later section before the earlier one
+    second.add("second\n");
+    second.close();
+    Thread producer = new Thread(() -> {
+      first.add("first\n");
+      first.close();
+    });
+    producer.start();
+    producer.join();
+
+    writer.interrupt();
+    writer.join();
+
+    Assertions.assertEquals("begin\nfirst\nsecond\nend\n", stringWriter.toString(), "Sections were not written in order.");
+  }
+
+  @Test
+  public void testLaterRangeFinishesFirst() throws Exception {
+    StringWriter stringWriter = new StringWriter();
+    OutputThread output = OutputThread.createInMemory(stringWriter);
+    Thread writer = new Thread(output, "writer test");
+    writer.start();
+
+    // two key ranges of one table, the second read completely while the first has barely started
+    OutputThread.Section first = output.openSection();
+    OutputThread.Section second = output.openSection();
+    first.add("first 0\n");
+    Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      for (int i = 0; i < 100; i++) {
+        second.add("second " + i + "\n");
+      }
+      second.addMarker(() -> stringWriter.write("marker\n"));
+      second.add("second end\n");
+      second.close();
+    }, "The second range waited for the first one.");
+    for (int i = 1; i < 100; i++) {
+      first.add("first " + i + "\n");
+    }
+    first.close();
+    output.finish();
+    writer.join();
+
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      expected.append("first ").append(i).append('\n');
+    }
+    for (int i = 0; i < 100; i++) {
+      expected.append("second ").append(i).append('\n');
+    }
+    expected.append("marker\nsecond end\n");
+    Assertions.assertNull(output.getFailure());
+    Assertions.assertEquals(expected.toString(), stringWriter.toString(), "The ranges were not written in order.");
+  }
+
+  @Test
+  public void testLaterTablesSpoolWhileEarlierOneIsRead() throws Exception {
+    StringWriter stringWriter = new StringWriter();
+    OutputThread output = OutputThread.createInMemory(stringWriter);
+    Thread writer = new Thread(output, "writer test");
+    writer.start();
+
+    String row = "INSERT INTO \"T\" VALUES ('" + new String(new char[1000]).replace('\0', 'x') + "');\n";
+    OutputThread.Section[] tables = new OutputThread.Section[3];
+    for (int i = 0; i < tables.length; i++) {
+      tables[i] = output.openSection();
+    }
+    long spooledBefore = DumpStats.getStats().getCharactersSpooled();
+
+    // the tables after the first are read completely while the first one is still being read
+    Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      for (int i = 1; i < tables.length; i++) {
+        for (int j = 0; j < 50; j++) {
+          tables[i].add(i + row);
+        }
+        tables[i].close();
+      }
+    }, "A table waited for the one before it.");
+    // each of them holds 16 chunks in memory and spools the rest
+    Assertions.assertEquals(spooledBefore + 2 * 34 * (row.length() + 1), DumpStats.getStats().getCharactersSpooled());
+
+    for (int j = 0; j < 50; j++) {
+      tables[0].add(0 + row);
+    }
+    tables[0].close();
+    output.finish();
+    writer.join();
+
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < tables.length; i++) {
+      for (int j = 0; j < 50; j++) {
+        expected.append(i).append(row);
+      }
+    }
+    Assertions.assertEquals(expected.toString(), stringWriter.toString(), "The tables were not written in order.");
+  }
+
+  @Test
+  public void testStopWhileCompressing() throws Exception {
+    StringBuilder chunk = new StringBuilder();
+    while (chunk.length() < 64 * 1024) {
+      chunk.append("INSERT INTO \"T\" VALUES (").append(chunk.length()).append(");\n");
+    }
+
+    for (boolean interrupt : new boolean[]{true, false}) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      OutputThread output = new OutputThread(new OutputStreamWriter(new ParallelGzipOutputStream(compressed, 6, 16 * 1024, 1), "UTF-8"));
+      Thread writer = new Thread(output, "writer test");
+      writer.start();
+
+      // stop the writer while it still has a backlog to compress
+      for (int i = 0; i < 100; i++) {
+        output.add(chunk.toString());
+      }
+      if (interrupt) {
+        writer.interrupt();
+      } else {
+        output.finish();
+      }
+      writer.join();
+
+      byte[] restored = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+      Assertions.assertEquals(100L * chunk.length(), restored.length, "The output was cut short.");
+    }
+  }
+
+  @Test
+  public void testFailedMarkerStopsWriting() throws Exception {
+    StringWriter stringWriter = new StringWriter();
+    OutputThread output = OutputThread.createInMemory(stringWriter);
+    Thread writer = new Thread(output, "writer test");
+    writer.start();
+
+    output.add("begin\n");
+    OutputThread.Section section = output.openSection();
+    section.addMarker(() -> {
+      throw new IOException("disk full");
+    });
+    // far more than a section holds, which the producer must still get rid of
+    for (int i = 0; i < 100; i++) {
+      section.add("row\n");
+    }
+    section.close();
+    output.add("end\n");
+    output.finish();
+    writer.join();
+
+    Assertions.assertEquals("disk full", output.getFailure().getMessage());
+    Assertions.assertEquals("begin\n", stringWriter.toString(), "Output after the failure was written.");
+  }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelGzipOutputStreamTest {
+
+  @Test
+  public void testManyBlocksReadBackAsOneStream() throws Exception {
+    // text that compresses, spread over many blocks and a partial last one
+    StringBuilder text = new StringBuilder();
+    Random random = new Random(3);
+    while (text.length() < 100000) {
+      text.append("INSERT INTO \"T\" VALUES (").append(random.nextInt(1000)).append(",'漢字'),\n");
+    }
+    byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 6, 4096, 3)) {
+      out.write(data, 0, 10);
+      out.write(data[10]);
+      out.write(data, 11, data.length - 11);
+    }
+
+    Assertions.assertTrue(compressed.size() < data.length / 2, "Data was not compressed");
+    byte[] restored = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+    Assertions.assertArrayEquals(data, restored);
+  }
+
+  @Test
+  public void testInterruptKeepsPendingBlocks() throws Exception {
+    byte[] data = new byte[64 * 4096];
+    new Random(5).nextBytes(data);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    // a writer asked to stop while blocks are still being compressed
+    Thread.currentThread().interrupt();
+    try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 6, 4096, 1)) {
+      out.write(data, 0, data.length);
+    } finally {
+      Assertions.assertTrue(Thread.interrupted(), "The interrupt was not kept");
+    }
+
+    byte[] restored = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+    Assertions.assertArrayEquals(data, restored);
+  }
+
+  @Test
+  public void testEmptyStream() throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    new ParallelGzipOutputStream(compressed, 6, 4096, 2).close();
+
+    byte[] restored = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+    Assertions.assertEquals(0, restored.length);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+public class ProgressReporterTest {
+
+  private final File progressFile = new File("./build/outputs/progress.json");
+
+  private Configuration config;
+
+  @BeforeEach
+  public void setUp() {
+    progressFile.getParentFile().mkdirs();
+    FileUtils.deleteQuietly(progressFile);
+    config = Configuration.getConfiguration();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    config.setProgressPath("");
+    config.setProgressInterval(60);
+    FileUtils.deleteQuietly(progressFile);
+  }
+
+  @Test
+  public void testReportsTablesAndTotals() throws Exception {
+    Table estimated = table("PROGRESS_ESTIMATED", 200);
+    Table unknown = table("PROGRESS_UNKNOWN", -1);
+    Table waiting = table("PROGRESS_WAITING", 100);
+    ProgressReporter progress = new ProgressReporter(Arrays.asList(estimated, unknown, waiting), 0, progressFile);
+
+    progress.startTable(estimated);
+    progress.startTable(unknown);
+    DumpStats.TableStats stats = DumpStats.getStats().startTable(estimated);
+    for (int i = 0; i < 50; i++) {
+      stats.addRow();
+    }
+    stats.addBytes(1048576);
+    DumpStats.getStats().startTable(unknown).addRow();
+    progress.report(false);
+
+    String json = FileUtils.readFileToString(progressFile, StandardCharsets.UTF_8);
+    Assertions.assertTrue(json.contains("\"state\": \"running\""), json);
+    // the table without an estimate counts with the row it has
+    Assertions.assertTrue(json.contains("  \"rows\": 51,\n  \"expectedRows\": 301,\n  \"percent\": 16.9,"), json);
+    Assertions.assertTrue(json.contains("\"tablesWithoutEstimate\": 1,"), json);
+    Assertions.assertTrue(json.contains("\"table\": \"PROGRESS_ESTIMATED\",\n      \"state\": \"running\",\n      \"rows\": 50,\n"
+        + "      \"expectedRows\": 200,\n      \"percent\": 25.0,"), json);
+    Assertions.assertTrue(json.contains("\"table\": \"PROGRESS_UNKNOWN\",\n      \"state\": \"running\",\n      \"rows\": 1,\n"
+        + "      \"expectedRows\": null,\n      \"percent\": null,"), json);
+    Assertions.assertTrue(json.contains("\"table\": \"PROGRESS_WAITING\",\n      \"state\": \"waiting\",\n      \"rows\": 0,\n"
+        + "      \"expectedRows\": 100,\n      \"percent\": 0.0,"), json);
+
+    progress.finishTable(estimated);
+    progress.finishTable(unknown);
+    progress.finishTable(waiting);
+    progress.close();
+    json = FileUtils.readFileToString(progressFile, StandardCharsets.UTF_8);
+    Assertions.assertTrue(json.contains("\"state\": \"done\""), json);
+    // finished tables count the rows they had, whatever their estimate
+    Assertions.assertTrue(json.contains("  \"rows\": 51,\n  \"expectedRows\": 51,\n  \"percent\": 100.0,"), json);
+    Assertions.assertTrue(json.contains("\"etaSeconds\": 0\n}") || json.contains("\"etaSeconds\": 0\n    }"), json);
+  }
+
+  @Test
+  public void testProgressOfDump() throws Exception {
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+    config.setProgressPath(progressFile.getPath());
+    config.setProgressInterval(0);
+
+    DBConnectionManager db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.progress_rows (id INTEGER)");
+      statement.execute("CREATE TABLE app.progress_empty (id INTEGER)");
+      statement.execute("INSERT INTO app.progress_rows VALUES (1), (2), (3)");
+    }
+    try {
+      OutputThread output = OutputThread.createInMemory(new StringWriter());
+      Thread writer = new Thread(output, "File_Writer");
+      writer.start();
+      new DatabaseReader(output);
+      writer.interrupt();
+      writer.join();
+    } finally {
+      db.getConnection().close();
+      try {
+        new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+      } catch (SQLNonTransientConnectionException e) {
+        //the db was dropped
+      }
+    }
+
+    String json = FileUtils.readFileToString(progressFile, StandardCharsets.UTF_8);
+    Assertions.assertTrue(json.contains("\"state\": \"done\""), json);
+    Assertions.assertTrue(json.contains("\"tablesDone\": 2,\n  \"tables\": 2,"), json);
+    Assertions.assertTrue(json.contains("\"table\": \"PROGRESS_ROWS\",\n      \"state\": \"done\",\n      \"rows\": 3,"), json);
+    Assertions.assertTrue(json.contains("\"table\": \"PROGRESS_EMPTY\",\n      \"state\": \"done\",\n      \"rows\": 0,"), json);
+  }
+
+  private static Table table(String name, long estimatedRows) {
+    Table table = new Table();
+    table.setTableName(name);
+    table.setEstimatedRows(estimatedRows);
+    return table;
+  }
+}
@@ -1,5 +1,6 @@
 package au.com.ish.derbydump.derbydump.main;
 
+import au.com.ish.derbydump.derbydump.util.Crc32c;
 import org.apache.commons.codec.CharEncoding;
 import org.apache.commons.codec.binary.Hex;
 import org.junit.jupiter.api.Assertions;
@@ -29,4 +30,13 @@ public class SimpleTests {
 		Assertions.assertEquals(new String(test2_expected).toUpperCase(), new String(test2_output).toUpperCase(), "failure In converting byte to HEX For Chinese");
 
 	}
+
+	@Test
+	public void testCrc32c() {
+		Crc32c crc = new Crc32c();
+		byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+		crc.update(check, 0, check.length);
+
+		Assertions.assertEquals(0xE3069283L, crc.getValue(), "CRC-32C check value");
+	}
 }
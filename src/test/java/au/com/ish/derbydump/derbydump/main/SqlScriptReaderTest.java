@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SqlScriptReaderTest {
+
+  @Test
+  public void testSplitsOutsideOfLiterals() throws Exception {
+    List<String> statements = read("AUTOCOMMIT OFF;\n"
+        + "INSERT INTO \"A;B\" (X) VALUES\n('one;\ntwo'),\n('it''s; \\'quoted\\'; \\\\'),\n('\\\\');\n"
+        + "-- a comment; with a semicolon\n"
+        + "DELETE FROM \"A;B\" WHERE \"X\" IN ('x');;\n"
+        + "COMMIT");
+
+    Assertions.assertEquals(4, statements.size(), statements.toString());
+    Assertions.assertEquals("AUTOCOMMIT OFF", statements.get(0));
+    Assertions.assertEquals("INSERT INTO \"A;B\" (X) VALUES\n('one;\ntwo'),\n('it''s; \\'quoted\\'; \\\\'),\n('\\\\')", statements.get(1));
+    Assertions.assertEquals("DELETE FROM \"A;B\" WHERE \"X\" IN ('x')", statements.get(2));
+    Assertions.assertEquals("COMMIT", statements.get(3));
+  }
+
+  @Test
+  public void testStatementsLongerThanBuffer() throws Exception {
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      value.append(i % 10 == 0 ? ";" : "x");
+    }
+    List<String> statements = read("INSERT INTO \"T\" (X) VALUES ('" + value + "');SELECT 1;");
+
+    Assertions.assertEquals(2, statements.size());
+    Assertions.assertTrue(statements.get(0).endsWith(value + "')"));
+  }
+
+  @Test
+  public void testToStandardSql() {
+    Assertions.assertEquals("SELECT 'a''b\nc\\d' FROM \"x\\n\"", SqlScriptReader.toStandardSql("SELECT 'a\\'b\\nc\\\\d' FROM \"x\\n\""));
+    Assertions.assertEquals("SELECT 'it''s'", SqlScriptReader.toStandardSql("SELECT 'it''s'"));
+  }
+
+  private static List<String> read(String script) throws Exception {
+    List<String> statements = new ArrayList<String>();
+    try (SqlScriptReader reader = new SqlScriptReader(new StringReader(script))) {
+      String statement;
+      while ((statement = reader.next()) != null) {
+        statements.add(statement);
+      }
+    }
+    return statements;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.util.ChunkBuffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class StatementBatchTest {
+
+  private static final String INSERT = "INSERT INTO \"T\" (A) VALUES\n";
+
+  /**
+   * Write rows the way the database reader does, with each row being its value repeated.
+   */
+  private static String write(int chunkSize, StatementBatch batch, String... rows) {
+    StringBuilder out = new StringBuilder();
+    ChunkBuffer chunk = new ChunkBuffer(chunkSize, out::append);
+    chunk.setSpillHandler(() -> batch.spill(chunk));
+    for (int i = 0; i < rows.length; i++) {
+      if (i == 0) {
+        chunk.getBuilder().append(INSERT);
+        chunk.startRow();
+      } else {
+        chunk.startRow();
+        chunk.getBuilder().append(StatementBatch.ROW_SEPARATOR);
+      }
+      chunk.getBuilder().append('(');
+      // write the value in pieces, like a streamed large value
+      for (int j = 0; j < rows[i].length(); j += 10) {
+        chunk.getBuilder().append(rows[i], j, Math.min(j + 10, rows[i].length()));
+        chunk.flushIfFull();
+      }
+      chunk.getBuilder().append(')');
+      batch.endRow(chunk);
+      chunk.flushIfFull();
+    }
+    chunk.getBuilder().append(";\n");
+    chunk.flush();
+    return out.toString();
+  }
+
+  @Test
+  public void testRowLimit() {
+    String out = write(1024, new StatementBatch(INSERT, 2, 1024), "1", "2", "3");
+    Assertions.assertEquals(INSERT + "(1),\n(2);\n" + INSERT + "\n(3);\n", out);
+  }
+
+  @Test
+  public void testSizeLimit() {
+    // the header is 27 characters, each row 4 and each separator 2
+    String out = write(1024, new StatementBatch(INSERT, 100, 45), "11", "22", "33", "44");
+    Assertions.assertEquals(INSERT + "(11),\n(22),\n(33);\n" + INSERT + "\n(44);\n", out);
+  }
+
+  @Test
+  public void testSizeLimitInBytes() {
+    // with its separator a row is 6 characters but 10 bytes, so three rows would fit into 45 characters but only two fit into 45 bytes
+    String out = write(1024, new StatementBatch(INSERT, 100, 45), "漢字", "漢字", "漢字");
+    Assertions.assertEquals(INSERT + "(漢字),\n(漢字);\n" + INSERT + "\n(漢字);\n", out);
+  }
+
+  @Test
+  public void testOversizedRowGetsOwnStatement() {
+    String big = new String(new char[50]).replace('\0', 'x');
+    String out = write(1024, new StatementBatch(INSERT, 100, 40), "1", big, "2");
+    Assertions.assertEquals(INSERT + "(1);\n" + INSERT + "\n(" + big + ");\n" + INSERT + "\n(2);\n", out);
+  }
+
+  @Test
+  public void testSpilledRowGetsOwnStatement() {
+    // the row is larger than the chunk buffer, so it is passed on before its size is known
+    String big = new String(new char[100]).replace('\0', 'x');
+    String out = write(32, new StatementBatch(INSERT, 100, 1024), "1", big, "2");
+    Assertions.assertEquals(INSERT + "(1);\n" + INSERT + "\n(" + big + ");\n" + INSERT + "\n(2);\n", out);
+  }
+}
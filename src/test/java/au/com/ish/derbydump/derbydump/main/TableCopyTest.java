@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TableCopyTest {
+
+  private static final String TARGET = "jdbc:derby:memory:copydb";
+  private static final String COLUMNS = "(id INTEGER PRIMARY KEY, name VARCHAR(40), price DECIMAL(10,2), ratio DOUBLE,"
+      + " created TIMESTAMP, active BOOLEAN, picture BLOB, notes CLOB)";
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+    config.setTruncateTables(true);
+    config.setDumpThreads(2);
+    config.setTableRewriteProperty("PARTS", "Parts");
+    config.setTableRewriteProperty("HIDDEN", "--exclude--");
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.parts " + COLUMNS);
+      statement.execute("CREATE TABLE app.hidden (id INTEGER)");
+      statement.execute("CREATE TABLE app.labels (label VARCHAR(20))");
+      statement.execute("INSERT INTO app.hidden VALUES (1)");
+      statement.execute("INSERT INTO app.labels VALUES ('a'), (NULL)");
+    }
+    try (PreparedStatement insert = db.getConnection().prepareStatement("INSERT INTO app.parts VALUES (?,?,?,?,?,?,?,?)")) {
+      for (int i = 1; i <= 250; i++) {
+        insert.setInt(1, i);
+        insert.setString(2, i % 7 == 0 ? null : "part's\n" + i + "\\");
+        insert.setBigDecimal(3, new BigDecimal("3.75").multiply(BigDecimal.valueOf(i)));
+        insert.setDouble(4, 1.0 / i);
+        insert.setTimestamp(5, new Timestamp(1000000000000L + i * 1001L));
+        insert.setBoolean(6, i % 2 == 0);
+        byte[] picture = new byte[i * 100];
+        Arrays.fill(picture, (byte) i);
+        insert.setBytes(7, i % 5 == 0 ? null : picture);
+        insert.setString(8, i % 3 == 0 ? null : "notes " + i);
+        insert.executeUpdate();
+      }
+    }
+
+    try (Connection target = DriverManager.getConnection(TARGET + ";create=true");
+         Statement statement = target.createStatement()) {
+      statement.execute("CREATE TABLE \"Parts\" " + COLUMNS);
+      statement.execute("CREATE TABLE labels (label VARCHAR(20))");
+      // replaced, as the tables are truncated first
+      statement.execute("INSERT INTO labels VALUES ('stale')");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    config.setTruncateTables(false);
+    config.setDumpThreads(1);
+    config.setTableRewriteProperty("PARTS", "PARTS");
+    config.setTableRewriteProperty("HIDDEN", "HIDDEN");
+    db.getConnection().close();
+    for (String url : new String[]{"jdbc:derby:" + config.getDerbyDbPath(), TARGET}) {
+      try {
+        new DBConnectionManager(url + ";drop=true");
+      } catch (SQLNonTransientConnectionException e) {
+        //the db was dropped
+      }
+    }
+  }
+
+  @Test
+  public void testCopiesTablesIntoTarget() throws Exception {
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+    List<DerbyRestore.TableResult> results = new TableCopy(TARGET).copy(database.getTables(), db, config.getSchemaName());
+
+    Assertions.assertEquals(2, results.size(), results.toString());
+    for (DerbyRestore.TableResult result : results) {
+      Assertions.assertNull(result.getFailure(), result.toString());
+      Assertions.assertEquals(result.getTableName().equals("Parts") ? 250 : 2, result.getRows(), result.toString());
+    }
+
+    try (Connection target = DriverManager.getConnection(TARGET)) {
+      Assertions.assertEquals(rows(db.getConnection(), "app.parts"), rows(target, "\"Parts\""));
+      Assertions.assertEquals(rows(db.getConnection(), "app.labels"), rows(target, "labels"));
+    }
+  }
+
+  @Test
+  public void testFailedTableDoesNotStopOthers() throws Exception {
+    try (Connection target = DriverManager.getConnection(TARGET);
+         Statement statement = target.createStatement()) {
+      statement.execute("DROP TABLE labels");
+    }
+
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+    List<DerbyRestore.TableResult> results = new TableCopy(TARGET).copy(database.getTables(), db, config.getSchemaName());
+
+    for (DerbyRestore.TableResult result : results) {
+      if (result.getTableName().equals("Parts")) {
+        Assertions.assertNull(result.getFailure(), result.toString());
+      } else {
+        Assertions.assertNotNull(result.getFailure(), result.toString());
+      }
+    }
+    try (Connection target = DriverManager.getConnection(TARGET)) {
+      Assertions.assertEquals(250, rows(target, "\"Parts\"").size());
+    }
+  }
+
+  @Test
+  public void testEmptiesTargetWithForeignKeys() throws Exception {
+    for (String url : new String[]{config.getDerbyUrl(), TARGET}) {
+      try (Connection connection = DriverManager.getConnection(url);
+           Statement statement = connection.createStatement()) {
+        statement.execute("CREATE TABLE app.owners (id INTEGER PRIMARY KEY)");
+        statement.execute("CREATE TABLE app.pets (name VARCHAR(20), owner INTEGER REFERENCES app.owners (id))");
+        statement.execute("INSERT INTO app.owners VALUES (1), (2)");
+        statement.execute("INSERT INTO app.pets VALUES ('" + (url.equals(TARGET) ? "stale" : "rex") + "', 2)");
+      }
+    }
+
+    // the target keeps its constraints, so the owners cannot be truncated
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+    List<DerbyRestore.TableResult> results = new TableCopy(TARGET).copy(database.getTables(), db, config.getSchemaName());
+
+    for (DerbyRestore.TableResult result : results) {
+      Assertions.assertNull(result.getFailure(), result.toString());
+    }
+    try (Connection target = DriverManager.getConnection(TARGET)) {
+      Assertions.assertEquals(rows(db.getConnection(), "app.owners"), rows(target, "app.owners"));
+      Assertions.assertEquals(Arrays.asList("[rex, 2]"), rows(target, "app.pets"));
+      Assertions.assertEquals(rows(db.getConnection(), "app.labels"), rows(target, "labels"));
+    }
+  }
+
+  private static List<String> rows(Connection connection, String table) throws Exception {
+    List<String> rows = new ArrayList<String>();
+    try (Statement statement = connection.createStatement();
+         ResultSet result = statement.executeQuery("SELECT * FROM " + table + " ORDER BY 1")) {
+      int columns = result.getMetaData().getColumnCount();
+      while (result.next()) {
+        List<String> row = new ArrayList<String>();
+        for (int i = 1; i <= columns; i++) {
+          Object value = result.getObject(i);
+          if (value instanceof Blob) {
+            value = Arrays.hashCode(((Blob) value).getBytes(1, (int) ((Blob) value).length()));
+          } else if (value instanceof Clob) {
+            value = ((Clob) value).getSubString(1, (int) ((Clob) value).length());
+          }
+          row.add(String.valueOf(value));
+        }
+        rows.add(row.toString());
+      }
+    }
+    return rows;
+  }
+}
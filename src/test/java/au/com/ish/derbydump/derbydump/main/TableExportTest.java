@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+public class TableExportTest {
+
+  private final File outputDirectory = new File("./build/outputs/export");
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    FileUtils.deleteQuietly(outputDirectory);
+
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+    config.setTruncateTables(false);
+    config.setTableRewriteProperty("ITEMS", "Items");
+    config.setTableRewriteProperty("SECRETS", "--exclude--");
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.items (id INTEGER, doc CLOB)");
+      statement.execute("CREATE TABLE app.plain (id INTEGER)");
+      statement.execute("CREATE TABLE app.secrets (id INTEGER)");
+      statement.execute("INSERT INTO app.items VALUES (1, 'first ''doc'''), (2, NULL)");
+      statement.execute("INSERT INTO app.plain VALUES (7)");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    config.setTableRewriteProperty("ITEMS", "ITEMS");
+    config.setTableRewriteProperty("SECRETS", "SECRETS");
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  @Test
+  public void testExportWithImportScript() throws Exception {
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+    new TableExport(outputDirectory).export(database.getTables(), db, config.getSchemaName());
+
+    List<String> script = FileUtils.readLines(new File(outputDirectory, TableExport.IMPORT_SCRIPT), StandardCharsets.UTF_8);
+    Assertions.assertEquals(3, script.size(), script.toString());
+    Assertions.assertEquals("CALL SYSCS_UTIL.SYSCS_IMPORT_TABLE_LOBS_FROM_EXTFILE('APP', 'Items', '0001_Items.del', NULL, NULL, 'UTF-8', 0);", script.get(1));
+    Assertions.assertEquals("CALL SYSCS_UTIL.SYSCS_IMPORT_TABLE('APP', 'PLAIN', '0002_PLAIN.del', NULL, NULL, 'UTF-8', 0);", script.get(2));
+    Assertions.assertTrue(new File(outputDirectory, "0001_Items.lob").exists());
+
+    // the data file refers to the file with the large objects relative to itself
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.\"Items\" (id INTEGER, doc CLOB)");
+      statement.execute(script.get(1).replace("'0001_Items.del'", "'" + new File(outputDirectory, "0001_Items.del").getAbsolutePath() + "'").replace(";", ""));
+      try (ResultSet rows = statement.executeQuery("SELECT doc FROM app.\"Items\" ORDER BY id")) {
+        Assertions.assertTrue(rows.next());
+        Assertions.assertEquals("first 'doc'", rows.getString(1));
+        Assertions.assertTrue(rows.next());
+        Assertions.assertNull(rows.getString(1));
+        Assertions.assertFalse(rows.next());
+      }
+    }
+  }
+
+  @Test
+  public void testFailedTableIsCommentedOut() throws Exception {
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("DROP TABLE app.plain");
+    }
+    Map<Table, SQLException> failures = new TableExport(outputDirectory).export(database.getTables(), db, config.getSchemaName());
+
+    Assertions.assertEquals(1, failures.size());
+    Assertions.assertEquals("PLAIN", failures.keySet().iterator().next().getTableName());
+    List<String> script = FileUtils.readLines(new File(outputDirectory, TableExport.IMPORT_SCRIPT), StandardCharsets.UTF_8);
+    Assertions.assertEquals(4, script.size(), script.toString());
+    Assertions.assertTrue(script.get(1).startsWith("CALL "), script.get(1));
+    Assertions.assertTrue(script.get(2).startsWith("-- Not exported: "), script.get(2));
+    Assertions.assertEquals("-- CALL SYSCS_UTIL.SYSCS_IMPORT_TABLE('APP', 'PLAIN', '0002_PLAIN.del', NULL, NULL, 'UTF-8', 0);", script.get(3));
+    Assertions.assertFalse(new File(outputDirectory, "0002_PLAIN.del").exists());
+  }
+}
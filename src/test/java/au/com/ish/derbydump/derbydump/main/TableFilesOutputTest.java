@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.util.Crc32c;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+public class TableFilesOutputTest {
+
+  private final File outputDirectory = new File("./build/outputs/tables");
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    FileUtils.deleteQuietly(outputDirectory);
+
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+    config.setTruncateTables(true);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.orders (id INTEGER)");
+      statement.execute("CREATE TABLE app.notes (name VARCHAR(10))");
+      statement.execute("INSERT INTO app.orders VALUES (1), (2), (3)");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    config.setTruncateTables(false);
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  @Test
+  public void testFilePerTableWithManifest() throws Exception {
+    TableFilesOutput output = new TableFilesOutput(outputDirectory, 2);
+    new DatabaseReader(output);
+    Assertions.assertNull(output.getFailure());
+
+    List<String> manifest = FileUtils.readLines(new File(outputDirectory, TableFilesOutput.MANIFEST), StandardCharsets.UTF_8);
+    Assertions.assertEquals(3, manifest.size(), manifest.toString());
+
+    Assertions.assertTrue(manifest.get(0).startsWith("#"), manifest.get(0));
+
+    String[] first = entry(manifest, "ORDERS");
+    Assertions.assertEquals("3", first[3]);
+    String script = FileUtils.readFileToString(new File(outputDirectory, first[2]), StandardCharsets.UTF_8);
+    Assertions.assertTrue(script.startsWith("AUTOCOMMIT OFF;\nTRUNCATE TABLE \"ORDERS\";\nINSERT INTO \"ORDERS\""), script);
+    Assertions.assertTrue(script.endsWith("(3);\nCOMMIT;\nAUTOCOMMIT ON;\n"), script);
+    assertSizeAndChecksum(first);
+
+    String[] second = entry(manifest, "NOTES");
+    Assertions.assertEquals("0", second[3]);
+    Assertions.assertEquals("AUTOCOMMIT OFF;\nCOMMIT;\nAUTOCOMMIT ON;\n", FileUtils.readFileToString(new File(outputDirectory, second[2]), StandardCharsets.UTF_8));
+    assertSizeAndChecksum(second);
+  }
+
+  @Test
+  public void testFailureIsReported() throws Exception {
+    // a directory in the way of the manifest
+    new File(outputDirectory, TableFilesOutput.MANIFEST).mkdirs();
+    TableFilesOutput output = new TableFilesOutput(outputDirectory, 2);
+    new DatabaseReader(output);
+
+    Assertions.assertNotNull(output.getFailure(), "The missing manifest was not reported.");
+  }
+
+  @Test
+  public void testCompressedTableInKeyRanges() throws Exception {
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.lines (id INTEGER PRIMARY KEY, text VARCHAR(200))");
+      statement.execute("INSERT INTO app.lines VALUES (1, '" + new String(new char[40]).replace("\0", "line ") + "')");
+      for (int count = 1; count < 20000; count *= 2) {
+        statement.execute("INSERT INTO app.lines SELECT id + " + count + ", text FROM app.lines");
+      }
+    }
+    config.setCompression("gzip");
+    config.setCompressionBlockSize(1);
+    config.setPartitions(4);
+    config.setDumpThreads(2);
+    try {
+      // the writer of every file is still compressing the first rows when the reader is done with the table
+      Assertions.assertTimeoutPreemptively(Duration.ofSeconds(60), () -> new DatabaseReader(new TableFilesOutput(outputDirectory, 2)));
+    } finally {
+      config.setCompression("none");
+      config.setCompressionBlockSize(1024);
+      config.setPartitions(1);
+      config.setDumpThreads(1);
+    }
+
+    String[] lines = entry(FileUtils.readLines(new File(outputDirectory, TableFilesOutput.MANIFEST), StandardCharsets.UTF_8), "LINES");
+    Assertions.assertEquals("32768", lines[3]);
+    assertSizeAndChecksum(lines);
+    try (GZIPInputStream in = new GZIPInputStream(new FileInputStream(new File(outputDirectory, lines[2])))) {
+      String script = IOUtils.toString(in, StandardCharsets.UTF_8);
+      Assertions.assertEquals(32768, script.split("'line ", -1).length - 1);
+      Assertions.assertTrue(script.endsWith("COMMIT;\nAUTOCOMMIT ON;\n"), "The file was cut short.");
+    }
+  }
+
+  private static String[] entry(List<String> manifest, String tableName) {
+    for (String line : manifest) {
+      String[] entry = line.split("\t");
+      if (entry[1].equals(tableName)) {
+        return entry;
+      }
+    }
+    throw new AssertionError("No manifest entry for " + tableName);
+  }
+
+  private void assertSizeAndChecksum(String[] entry) throws Exception {
+    byte[] content = FileUtils.readFileToByteArray(new File(outputDirectory, entry[2]));
+    Crc32c crc = new Crc32c();
+    crc.update(content, 0, content.length);
+
+    Assertions.assertEquals(Long.parseLong(entry[4]), content.length, "size of " + entry[2]);
+    Assertions.assertEquals(String.format("%08x", crc.getValue()), entry[5], "checksum of " + entry[2]);
+  }
+}
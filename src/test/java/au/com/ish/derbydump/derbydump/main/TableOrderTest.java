@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TableOrderTest {
+
+  @Test
+  public void testParentsComeFirst() {
+    Table invoice = table("INVOICE");
+    Table contact = table("CONTACT");
+    Table line = table("LINE");
+    Table site = table("SITE");
+    Table payment = table("PAYMENT");
+    invoice.addParent(contact);
+    line.addParent(invoice);
+    line.addParent(site);
+    payment.addParent(invoice);
+
+    List<Table> sorted = TableOrder.sort(Arrays.asList(line, invoice, payment, contact, site));
+
+    // otherwise the tables keep their order
+    Assertions.assertEquals("[CONTACT, INVOICE, PAYMENT, SITE, LINE]", names(sorted));
+    Assertions.assertTrue(TableOrder.findCycles(sorted).isEmpty());
+  }
+
+  @Test
+  public void testParentsOutsideTheListAreIgnored() {
+    Table invoice = table("INVOICE");
+    Table contact = table("CONTACT");
+    invoice.addParent(table("EXCLUDED"));
+    invoice.addParent(invoice);
+
+    Assertions.assertEquals("[INVOICE, CONTACT]", names(TableOrder.sort(Arrays.asList(invoice, contact))));
+    Assertions.assertTrue(invoice.getParents().size() == 1);
+  }
+
+  @Test
+  public void testCyclesAreReportedAndBroken() {
+    Table contact = table("CONTACT");
+    Table student = table("STUDENT");
+    Table tutor = table("TUTOR");
+    Table room = table("ROOM");
+    Table site = table("SITE");
+    // contact -> student -> tutor -> contact, and room <-> site
+    contact.addParent(tutor);
+    student.addParent(contact);
+    tutor.addParent(student);
+    room.addParent(site);
+    site.addParent(room);
+    Table enrolment = table("ENROLMENT");
+    enrolment.addParent(student);
+
+    List<Table> tables = Arrays.asList(enrolment, student, room, tutor, contact, site);
+    List<List<Table>> cycles = TableOrder.findCycles(tables);
+    List<String> cycleNames = new ArrayList<String>();
+    for (List<Table> cycle : cycles) {
+      cycleNames.add(names(cycle));
+    }
+    Assertions.assertEquals(2, cycles.size(), cycleNames.toString());
+    Assertions.assertTrue(cycleNames.contains("[STUDENT, TUTOR, CONTACT]"), cycleNames.toString());
+    Assertions.assertTrue(cycleNames.contains("[ROOM, SITE]"), cycleNames.toString());
+
+    // every table is kept, and the child of a cycle still follows it
+    List<Table> sorted = TableOrder.sort(tables);
+    Assertions.assertEquals(6, sorted.size());
+    Assertions.assertTrue(sorted.indexOf(enrolment) > sorted.indexOf(student));
+    Assertions.assertTrue(sorted.indexOf(enrolment) > sorted.indexOf(contact));
+  }
+
+  private static Table table(String name) {
+    Table table = new Table();
+    table.setTableName(name);
+    return table;
+  }
+
+  private static String names(List<Table> tables) {
+    List<String> names = new ArrayList<String>();
+    for (Table table : tables) {
+      names.add(table.getDatabaseTableName());
+    }
+    return names.toString();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Database;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TableSizesTest {
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.accounts (id INTEGER PRIMARY KEY)");
+      statement.execute("CREATE TABLE app.entries (id INTEGER, account INTEGER REFERENCES app.accounts (id), text VARCHAR(200))");
+      statement.execute("CREATE TABLE app.tags (name VARCHAR(10))");
+      statement.execute("INSERT INTO app.accounts VALUES (1), (2)");
+      statement.execute("INSERT INTO app.tags VALUES ('a'), ('b'), ('c')");
+    }
+    try (PreparedStatement insert = db.getConnection().prepareStatement("INSERT INTO app.entries VALUES (?, 1, ?)")) {
+      for (int i = 0; i < 5000; i++) {
+        insert.setInt(1, i);
+        insert.setString(2, "entry number " + i + " of a table spread over many pages");
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', 'ENTRIES', NULL)");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  @Test
+  public void testEstimatesSizes() throws Exception {
+    Database database = new MetadataReader().readDatabase(db.getConnection());
+    List<Table> tables = database.getTables();
+    TableSizes.estimate(db.getConnection(), config.getSchemaName(), tables, false);
+
+    Table accounts = table(tables, "ACCOUNTS");
+    Table entries = table(tables, "ENTRIES");
+    Table tags = table(tables, "TAGS");
+    Assertions.assertTrue(entries.getEstimatedBytes() > 10 * tags.getEstimatedBytes(), entries.getEstimatedBytes() + " " + tags.getEstimatedBytes());
+    Assertions.assertTrue(tags.getEstimatedBytes() > 0);
+    // only the index on the foreign key has statistics
+    Assertions.assertEquals(5000, entries.getEstimatedRows());
+    Assertions.assertEquals(-1, tags.getEstimatedRows());
+
+    TableSizes.estimate(db.getConnection(), config.getSchemaName(), tables, true);
+    Assertions.assertEquals(3, tags.getEstimatedRows());
+    Assertions.assertEquals(2, accounts.getEstimatedRows());
+    Assertions.assertEquals(5000, entries.getEstimatedRows());
+  }
+
+  @Test
+  public void testLargestFirst() {
+    Table accounts = table("ACCOUNTS", 100, -1);
+    Table entries = table("ENTRIES", 900, -1);
+    Table tags = table("TAGS", -1, -1);
+    Table notes = table("NOTES", 500, -1);
+    Table users = table("USERS", -1, 10);
+    entries.addParent(accounts);
+    List<Table> tables = Arrays.asList(accounts, tags, entries, users, notes);
+
+    Assertions.assertEquals("[ENTRIES, NOTES, ACCOUNTS, USERS, TAGS]", names(TableSizes.largestFirst(tables, false)));
+    // the largest table has to wait for its parent, the largest of the others goes first meanwhile
+    Assertions.assertEquals("[NOTES, ACCOUNTS, ENTRIES, USERS, TAGS]", names(TableSizes.largestFirst(tables, true)));
+  }
+
+  @Test
+  public void testScheduleKeepsOrderUnlessLargestFirst() {
+    List<Table> tables = Arrays.asList(table("SMALL", 1, 1), table("LARGE", 2, 2));
+    try {
+      config.setLargestFirst(false);
+      Assertions.assertSame(tables, TableSizes.schedule(tables, db.getConnection(), config.getSchemaName(), false));
+    } finally {
+      config.setLargestFirst(true);
+    }
+  }
+
+  private static Table table(String name, long bytes, long rows) {
+    Table table = new Table();
+    table.setTableName(name);
+    table.setEstimatedBytes(bytes);
+    table.setEstimatedRows(rows);
+    return table;
+  }
+
+  private static Table table(List<Table> tables, String name) {
+    for (Table table : tables) {
+      if (table.getDatabaseTableName().equals(name)) {
+        return table;
+      }
+    }
+    throw new AssertionError("Table " + name + " not found");
+  }
+
+  private static String names(List<Table> tables) {
+    List<String> names = new ArrayList<String>();
+    for (Table table : tables) {
+      names.add(table.getDatabaseTableName());
+    }
+    return names.toString();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 ish group pty ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.com.ish.derbydump.derbydump.main;
+
+import au.com.ish.derbydump.derbydump.config.Configuration;
+import au.com.ish.derbydump.derbydump.config.DBConnectionManager;
+import au.com.ish.derbydump.derbydump.metadata.Table;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.StringWriter;
+import java.sql.ResultSet;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.Properties;
+
+public class WatermarksTest {
+
+  private final File stateFile = new File("./build/outputs/watermarks.state");
+
+  private Configuration config;
+  private DBConnectionManager db;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    FileUtils.deleteQuietly(stateFile);
+    stateFile.getParentFile().mkdirs();
+
+    config = Configuration.getConfiguration();
+    config.setDerbyDbPath(DumpTest.RESOURCE_DATABASE_PATH);
+    config.setDriverClassName(DumpTest.RESOURCE_DRIVER_NAME);
+    config.setSchemaName(DumpTest.RESOURCE_SCHEMA_NAME);
+    config.setTruncateTables(true);
+    config.setWatermarkProperty("EVENTS", "changed");
+
+    db = new DBConnectionManager(config.getDerbyUrl().replace("create=false", "create=true"));
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("CREATE TABLE app.events (id INTEGER PRIMARY KEY, name VARCHAR(10), changed TIMESTAMP)");
+      statement.execute("INSERT INTO app.events VALUES (1, 'a', '2020-01-01 10:00:00'), (2, 'b', '2020-01-02 10:00:00'), "
+          + "(3, 'c', '2020-01-03 10:00:00')");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    config.setTruncateTables(false);
+    config.setWatermarkProperty("EVENTS", "");
+    db.getConnection().close();
+    try {
+      new DBConnectionManager("jdbc:derby:" + config.getDerbyDbPath() + ";drop=true");
+    } catch (SQLNonTransientConnectionException e) {
+      //the db was dropped
+    }
+  }
+
+  private String dump() throws Exception {
+    Watermarks watermarks = new Watermarks(stateFile);
+    StringWriter sql = new StringWriter();
+    OutputThread output = OutputThread.createInMemory(sql);
+    Thread writer = new Thread(output, "File_Writer");
+    writer.start();
+    new DatabaseReader(new SingleFileOutput(output), watermarks);
+    writer.interrupt();
+    writer.join();
+    watermarks.save();
+    return sql.toString();
+  }
+
+  private String storedMark() throws Exception {
+    Properties marks = new Properties();
+    try (FileInputStream in = new FileInputStream(stateFile)) {
+      marks.load(in);
+    }
+    return marks.getProperty("EVENTS");
+  }
+
+  @Test
+  public void testOnlyChangedRowsAfterFirstDump() throws Exception {
+    String full = dump();
+    Assertions.assertTrue(full.contains("TRUNCATE TABLE \"EVENTS\""), full);
+    Assertions.assertTrue(full.contains("(3,'c','2020-01-03 10:00:00.0');"), full);
+    Assertions.assertEquals("2020-01-03 10:00:00.0", storedMark());
+
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("UPDATE app.events SET name = 'B', changed = '2020-01-04 10:00:00' WHERE id = 2");
+      statement.execute("INSERT INTO app.events VALUES (4, 'd', '2020-01-05 10:00:00')");
+    }
+
+    String delta = dump();
+    Assertions.assertEquals("AUTOCOMMIT OFF;\n"
+        + "DELETE FROM \"EVENTS\" WHERE \"ID\" IN (2,4);\n"
+        + "INSERT INTO \"EVENTS\" (ID,NAME,CHANGED) VALUES\n"
+        + "(2,'B','2020-01-04 10:00:00.0'),\n"
+        + "(4,'d','2020-01-05 10:00:00.0');\n"
+        + "COMMIT;\nAUTOCOMMIT ON;\n", delta);
+    Assertions.assertEquals("2020-01-05 10:00:00.0", storedMark());
+
+    Assertions.assertEquals("AUTOCOMMIT OFF;\nCOMMIT;\nAUTOCOMMIT ON;\n", dump());
+  }
+
+  @Test
+  public void testFullDumpStopsAtMark() throws Exception {
+    Table table = new MetadataReader().readDatabase(db.getConnection()).getTables().get(0);
+    Watermarks.Delta delta = new Watermarks(stateFile).prepare(table, db.getConnection(), config.getSchemaName());
+    Assertions.assertTrue(delta.isFull());
+
+    // changed after the mark was read, so they belong to the next delta
+    try (Statement statement = db.getConnection().createStatement()) {
+      statement.execute("UPDATE app.events SET changed = '2020-01-04 10:00:00' WHERE id = 2");
+      statement.execute("INSERT INTO app.events VALUES (4, 'd', NULL)");
+    }
+
+    StringBuilder ids = new StringBuilder();
+    try (Statement statement = db.getConnection().createStatement();
+         ResultSet rows = statement.executeQuery(delta.getSelectQuery() + " ORDER BY id")) {
+      while (rows.next()) {
+        ids.append(rows.getInt(1)).append(' ');
+      }
+    }
+    Assertions.assertEquals("1 3 4 ", ids.toString());
+  }
+}
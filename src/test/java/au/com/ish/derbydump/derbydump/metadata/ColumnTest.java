@@ -1,5 +1,7 @@
 package au.com.ish.derbydump.derbydump.metadata;
 
+import au.com.ish.derbydump.derbydump.util.ChunkBuffer;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -8,6 +10,9 @@ import javax.sql.rowset.serial.SerialBlob;
 import javax.sql.rowset.serial.SerialClob;
 import java.io.InputStream;
 import java.sql.Clob;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 
 public class ColumnTest {
@@ -21,11 +26,24 @@ public class ColumnTest {
 
 		String result = Column.processBinaryData(new SerialBlob(inputData));
 
-		// FIXME: Improve testing
-//		Assertions.assertEquals(11140, result.length());
-//
-//		Assertions.assertEquals("0x61", Column.processBinaryData(new SerialBlob(new byte[]{'a'})));
-//		Assertions.assertEquals("0x0A", Column.processBinaryData(new SerialBlob(new byte[]{'\n'})));
+		Assertions.assertEquals("CAST(X'" + Hex.encodeHexString(inputData).toUpperCase() + "' as BLOB)", result);
+		Assertions.assertEquals("CAST(X'61' as BLOB)", Column.processBinaryData(new SerialBlob(new byte[]{'a'})));
+		Assertions.assertEquals("CAST(X'0AFF00' as BLOB)", Column.processBinaryData(new SerialBlob(new byte[]{'\n', (byte) 0xff, 0})));
+	}
+
+	@Test
+	public void testWriteBinaryDataInBlocks() throws Exception {
+		// several read blocks, written through a buffer much smaller than the value
+		byte[] inputData = new byte[3 * Column.LOB_BLOCK_SIZE + 17];
+		new Random(7).nextBytes(inputData);
+
+		List<String> chunks = new ArrayList<String>();
+		ChunkBuffer output = new ChunkBuffer(1024, chunks::add);
+		Column.writeBinaryData(new SerialBlob(inputData), output);
+		output.flush();
+
+		Assertions.assertTrue(chunks.size() > 3, "Blob was not written in blocks");
+		Assertions.assertEquals("CAST(X'" + Hex.encodeHexString(inputData).toUpperCase() + "' as BLOB)", String.join("", chunks));
 	}
 
 	@Test
@@ -44,6 +62,28 @@ public class ColumnTest {
 		Assertions.assertEquals("'"+oneSimpleClob+"'", processedString);
 	}
 
+	@Test
+	public void testWriteClobDataInWindows() throws Exception {
+		// special characters right at and around the window boundaries
+		StringBuilder value = new StringBuilder();
+		Random random = new Random(11);
+		char[] alphabet = {'a', '\'', '\\', '\n', '\r', '\u0000', '漢'};
+		while (value.length() < 3 * Column.LOB_BLOCK_SIZE + 5) {
+			value.append(alphabet[random.nextInt(alphabet.length)]);
+		}
+		value.setCharAt(Column.LOB_BLOCK_SIZE - 1, '\'');
+		value.setCharAt(Column.LOB_BLOCK_SIZE, '\'');
+		value.setCharAt(2 * Column.LOB_BLOCK_SIZE - 1, '\\');
+
+		List<String> chunks = new ArrayList<String>();
+		ChunkBuffer output = new ChunkBuffer(1024, chunks::add);
+		Column.writeClobData(new SerialClob(value.toString().toCharArray()), output);
+		output.flush();
+
+		Assertions.assertTrue(chunks.size() > 3, "Clob was not written in windows");
+		Assertions.assertEquals("'" + escapeQuotesWithRegex(value.toString()) + "'", String.join("", chunks));
+	}
+
 	@Test
 	public void testProcessNullClobData() throws Exception {
 		Assertions.assertEquals("NULL", Column.processClobData(null));
@@ -70,4 +110,49 @@ public class ColumnTest {
 
 
 	}
+
+	@Test
+	public void testEscapeQuotesMatchesRegexChain() {
+		String[] inputs = {
+				"", "plain", "漢字", "'", "''", "\\", "\\\\'", "\u0000", "\t", "\b", "\n", "\r", "\u001a",
+				"\r\n", "it's a \"quote\"", "C:\\temp\\new", "tab\tin\tthe\tmiddle", "\u001a\u0000\b\t\n\r'\\",
+				"ends with quote'", "'starts with quote", "\\n is not a newline", "$0 and $1", "\u0001\u0019\u001b\u007f"
+		};
+		for (String input : inputs) {
+			Assertions.assertEquals(escapeQuotesWithRegex(input), Column.escapeQuotes(input), input);
+		}
+
+		// every character the escaper cares about, with its neighbours and some ordinary text
+		char[] alphabet = {'a', 'Z', '0', '\'', '"', '\\', '\u0000', '\t', '\b', '\n', '\r', '\u001a', '\u001b', '$', '漢'};
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			char[] chars = new char[random.nextInt(20)];
+			for (int j = 0; j < chars.length; j++) {
+				chars[j] = alphabet[random.nextInt(alphabet.length)];
+			}
+			String input = new String(chars);
+			Assertions.assertEquals(escapeQuotesWithRegex(input), Column.escapeQuotes(input), input);
+		}
+	}
+
+	@Test
+	public void testEscapeQuotesReturnsCleanValueAsIs() {
+		String clean = "nothing to escape here";
+		Assertions.assertSame(clean, Column.escapeQuotes(clean));
+	}
+
+	/**
+	 * The replaceAll chain escapeQuotes used to be, kept as the reference for its output.
+	 */
+	private static String escapeQuotesWithRegex(String raw) {
+		String output = raw.replaceAll("\\\\", "\\\\\\\\");
+		output = output.replaceAll("\\x00", "\\\\0");
+		output = output.replaceAll("\\x09", "\\\\t");
+		output = output.replaceAll("\\x08", "\\\\b");
+		output = output.replaceAll("\\n", "\\\\n");
+		output = output.replaceAll("\\r", "\\\\r");
+		output = output.replaceAll("\\x1a", "\\\\Z");
+		output = output.replaceAll("\'", "''");
+		return output;
+	}
 }